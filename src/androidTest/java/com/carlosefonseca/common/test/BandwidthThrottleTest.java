@@ -0,0 +1,82 @@
+package com.carlosefonseca.common.test;
+
+import android.test.AndroidTestCase;
+import com.carlosefonseca.common.utils.BandwidthThrottle;
+import junit.framework.Assert;
+
+public class BandwidthThrottleTest extends AndroidTestCase {
+
+    private static final int CHUNK = 8 * 1024;
+
+    public void testLongRunRateIsKept() {
+        final long rate = 200 * 1024;
+        final BandwidthThrottle throttle = new BandwidthThrottle(rate);
+        final long start = System.nanoTime();
+        long bytes = 0;
+        while (bytes < 300 * 1024) {
+            Assert.assertTrue(throttle.acquire(CHUNK));
+            bytes += CHUNK;
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        // the first quarter of a second comes from the initial burst
+        final double expected = (bytes - rate / 4.0) / rate;
+        Assert.assertTrue("took " + seconds, seconds >= expected * 0.9);
+        Assert.assertTrue("took " + seconds, seconds <= expected + 0.5);
+    }
+
+    public void testBurstIsCapped() throws InterruptedException {
+        final long rate = 100 * 1024;
+        final BandwidthThrottle throttle = new BandwidthThrottle(rate);
+        // idle for long enough to earn half a second of traffic, but only a quarter is kept
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        Assert.assertTrue(throttle.acquire((int) (rate / 4)));
+        Assert.assertTrue(millisSince(start) < 50);
+
+        start = System.nanoTime();
+        Assert.assertTrue(throttle.acquire((int) (rate / 4)));
+        Assert.assertTrue("waited " + millisSince(start), millisSince(start) >= 200);
+    }
+
+    public void testRateChangesAtRuntime() {
+        final BandwidthThrottle throttle = new BandwidthThrottle(64 * 1024);
+        // the burst, then half a second at 64 KB/s
+        Assert.assertTrue(throttle.acquire(16 * 1024));
+        long start = System.nanoTime();
+        Assert.assertTrue(throttle.acquire(32 * 1024));
+        Assert.assertTrue("waited " + millisSince(start), millisSince(start) >= 400);
+
+        // ten times faster: 320 KB in half a second instead of five
+        throttle.setBytesPerSecond(640 * 1024);
+        Assert.assertEquals(640 * 1024, throttle.getBytesPerSecond());
+        start = System.nanoTime();
+        for (int i = 0; i < 40; i++) Assert.assertTrue(throttle.acquire(CHUNK));
+        final long millis = millisSince(start);
+        Assert.assertTrue("took " + millis, millis >= 300 && millis <= 1000);
+
+        // unlimited
+        throttle.setBytesPerSecond(0);
+        Assert.assertFalse(throttle.isLimited());
+        start = System.nanoTime();
+        Assert.assertTrue(throttle.acquire(100 * 1024 * 1024));
+        Assert.assertTrue(millisSince(start) < 50);
+    }
+
+    public void testInterruptStopsTheWait() {
+        final BandwidthThrottle throttle = new BandwidthThrottle(1024);
+        Thread.currentThread().interrupt();
+        try {
+            Assert.assertFalse(throttle.acquire(1024 * 1024));
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            Thread.interrupted();
+        }
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+}
@@ -0,0 +1,115 @@
+package com.carlosefonseca.common.test;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.view.View;
+import com.carlosefonseca.common.utils.BitmapPool;
+import com.carlosefonseca.common.utils.ImageUtils;
+import junit.framework.Assert;
+
+import java.io.ByteArrayOutputStream;
+
+public class BitmapPoolTest extends AndroidTestCase {
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        BitmapPool.clear();
+    }
+
+    public void testDecodeIntoPooledBitmap() {
+        if (!BitmapPool.isSupported()) return;
+        final byte[] png = png(64, 48);
+
+        Bitmap first = decode(png);
+        Assert.assertTrue(first.isMutable());
+        Assert.assertTrue(BitmapPool.put(first));
+
+        final int hits = BitmapPool.getHitCount();
+        Bitmap second = decode(png);
+        Assert.assertSame(first, second);
+        Assert.assertEquals(64, second.getWidth());
+        Assert.assertEquals(48, second.getHeight());
+        Assert.assertEquals(hits + 1, BitmapPool.getHitCount());
+        Assert.assertEquals(0, BitmapPool.getSize());
+    }
+
+    public void testSmallerDecodeReusesBiggerBitmap() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) return;
+        Bitmap big = decode(png(64, 64));
+        BitmapPool.put(big);
+        Bitmap small = decode(png(40, 40));
+        Assert.assertSame(big, small);
+        Assert.assertEquals(40, small.getWidth());
+    }
+
+    public void testMissAndBudget() {
+        if (!BitmapPool.isSupported()) return;
+        final long maxSize = BitmapPool.getMaxSize();
+        try {
+            final int misses = BitmapPool.getMissCount();
+            Assert.assertNull(BitmapPool.get(10, 10, Bitmap.Config.ARGB_8888));
+            Assert.assertEquals(misses + 1, BitmapPool.getMissCount());
+
+            BitmapPool.setMaxSize(3 * 32 * 32 * 4);
+            for (int i = 0; i < 5; i++) {
+                BitmapPool.put(Bitmap.createBitmap(32, 32, Bitmap.Config.ARGB_8888));
+            }
+            Assert.assertTrue(BitmapPool.getSize() <= BitmapPool.getMaxSize());
+            Assert.assertFalse(BitmapPool.put(Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888)));
+        } finally {
+            BitmapPool.setMaxSize(maxSize);
+        }
+    }
+
+    public void testPooledOnlyOffScreen() {
+        if (!BitmapPool.isSupported()) return;
+        final Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        final View view = new View(getContext());
+
+        // in two caches and on screen
+        BitmapPool.retain(bitmap);
+        BitmapPool.retain(bitmap);
+        BitmapPool.show(view, bitmap);
+        Assert.assertFalse(BitmapPool.release(bitmap));
+        Assert.assertFalse(BitmapPool.put(bitmap));
+        Assert.assertFalse(BitmapPool.release(bitmap));
+        Assert.assertEquals(0, BitmapPool.getSize());
+
+        // the view lets go
+        BitmapPool.show(view, null);
+        Assert.assertEquals(ImageUtils.sizeBitmap(bitmap), BitmapPool.getSize());
+    }
+
+    public void testNeverShownOrPinnedIsNotPooled() {
+        if (!BitmapPool.isSupported()) return;
+        final Bitmap cached = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        BitmapPool.retain(cached);
+        Assert.assertFalse(BitmapPool.release(cached));
+
+        final Bitmap pinned = BitmapPool.pin(Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888));
+        final View view = new View(getContext());
+        BitmapPool.show(view, pinned);
+        BitmapPool.show(view, null);
+        Assert.assertFalse(BitmapPool.put(pinned));
+        Assert.assertEquals(0, BitmapPool.getSize());
+    }
+
+    private static Bitmap decode(byte[] data) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        options.inJustDecodeBounds = false;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        BitmapPool.prepare(options, options.outWidth, options.outHeight);
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private static byte[] png(int width, int height) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+}
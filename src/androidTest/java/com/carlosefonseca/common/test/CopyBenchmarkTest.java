@@ -0,0 +1,179 @@
+package com.carlosefonseca.common.test;
+
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.FileDownloader;
+import com.carlosefonseca.common.utils.FileUtils;
+import com.carlosefonseca.common.utils.Log;
+import junit.framework.Assert;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Compares the old stream copies (small heap arrays) with the channel copies of {@link FileUtils#copy(File, File)} and
+ * {@link FileDownloader}, in time and in bytes allocated on the heap (the GC churn). Numbers are logged; the only
+ * assertion is that the new paths don't allocate more.
+ * <p/>
+ * File copies go up to 500 MB if there's space for them. Downloads stop at 32 MB because {@link LocalHttpServer} keeps
+ * the files in memory.
+ */
+@SuppressWarnings("deprecation")
+public class CopyBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = CodeUtils.getTag(CopyBenchmarkTest.class);
+    private static final int KB = 1024;
+    private static final int MB = 1024 * KB;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Log.setConsoleLogging(true);
+    }
+
+    @LargeTest
+    public void testFileCopy() throws IOException {
+        for (long size : new long[]{10 * KB, MB, 10 * MB, 100 * MB, 500 * MB}) {
+            if (getContext().getCacheDir().getUsableSpace() < 3 * size) {
+                Log.w(TAG, "Not enough space to copy %d MB", size / MB);
+                continue;
+            }
+            final File src = newFile("src.bin");
+            final File dst = newFile("dst.bin");
+            writeRandom(src, size);
+
+            Measure old = new Measure();
+            InputStream in = new FileInputStream(src);
+            OutputStream out = new FileOutputStream(dst);
+            try {
+                legacyCopy(in, out, 1024);
+            } finally {
+                in.close();
+                out.close();
+            }
+            old.stop();
+            Assert.assertEquals(size, dst.length());
+
+            //noinspection ResultOfMethodCallIgnored
+            dst.delete();
+            Measure nio = new Measure();
+            FileUtils.copy(src, dst);
+            nio.stop();
+            Assert.assertEquals(size, dst.length());
+
+            log("copy", size, old, nio);
+            Assert.assertTrue(nio.allocated <= old.allocated);
+            //noinspection ResultOfMethodCallIgnored
+            src.delete();
+            //noinspection ResultOfMethodCallIgnored
+            dst.delete();
+        }
+    }
+
+    @LargeTest
+    public void testDownload() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            for (int size : new int[]{10 * KB, MB, 10 * MB, 32 * MB}) {
+                final byte[] body = LocalHttpServer.randomBody(size);
+                final String url = server.put("body.bin", body);
+                final File file = newFile("body.bin");
+
+                Measure old = new Measure();
+                HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+                InputStream in = new BufferedInputStream(connection.getInputStream());
+                OutputStream out = new FileOutputStream(file);
+                try {
+                    legacyCopy(in, out, 4 * 1024);
+                } finally {
+                    in.close();
+                    out.close();
+                }
+                old.stop();
+                Assert.assertEquals(size, file.length());
+
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                Measure nio = new Measure();
+                Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)));
+                nio.stop();
+                if (size <= 10 * MB) FileDownloaderBenchmarkTest.assertContent(file, body);
+
+                log("download", size, old, nio);
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    /**
+     * The copy loop both paths used before.
+     */
+    private static void legacyCopy(InputStream in, OutputStream out, int bufferSize) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        int n;
+        Thread thread = Thread.currentThread();
+        while ((n = in.read(buffer)) != -1) {
+            if (thread.isInterrupted()) return;
+            out.write(buffer, 0, n);
+        }
+    }
+
+    private File newFile(String name) {
+        final File file = new File(getContext().getCacheDir(), name);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return file;
+    }
+
+    private static void writeRandom(File file, long size) throws IOException {
+        byte[] chunk = new byte[MB];
+        new Random(size).nextBytes(chunk);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < size; written += chunk.length) {
+                out.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void log(String what, long size, Measure old, Measure nio) {
+        Log.i(TAG, "%s %d KB: old %d ms %.1f MB/s %d KB allocated | nio %d ms %.1f MB/s %d KB allocated",
+              what, size / KB,
+              old.millis, old.throughput(size), old.allocated / KB,
+              nio.millis, nio.throughput(size), nio.allocated / KB);
+    }
+
+    /**
+     * Time and heap allocations of this thread, from creation to {@link #stop()}.
+     */
+    private static final class Measure {
+        private final long mStart;
+        long millis;
+        long allocated;
+
+        Measure() {
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            mStart = System.nanoTime();
+        }
+
+        void stop() {
+            millis = Math.max(1, (System.nanoTime() - mStart) / 1000000L);
+            Debug.stopAllocCounting();
+            allocated = Debug.getThreadAllocSize();
+        }
+
+        double throughput(long size) {
+            return size / (double) MB * 1000 / millis;
+        }
+    }
+}
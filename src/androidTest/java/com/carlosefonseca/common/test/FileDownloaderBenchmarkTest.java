@@ -0,0 +1,134 @@
+package com.carlosefonseca.common.test;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.FileDownloader;
+import com.carlosefonseca.common.utils.Log;
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Arrays;
+
+/**
+ * Compares download strategies against {@link LocalHttpServer}. Numbers are logged; assertions only check the gains
+ * that must hold regardless of the device.
+ */
+public class FileDownloaderBenchmarkTest extends AndroidTestCase {
+
+    private static final String TAG = CodeUtils.getTag(FileDownloaderBenchmarkTest.class);
+
+    private LocalHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Log.setConsoleLogging(true);
+        mServer = new LocalHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testSegmentedDownloadWithPerConnectionCap() throws IOException {
+        final byte[] body = LocalHttpServer.randomBody(4 * 1024 * 1024);
+        final String url = mServer.put("big.bin", body);
+        mServer.setBytesPerSecondPerConnection(1024 * 1024);
+
+        final long single = timeDownload(new FileDownloader.Download(url, newFile("single.bin")), body);
+        final long segmented = timeDownload(new FileDownloader.Download(url, newFile("segmented.bin")).setSegments(4),
+                                            body);
+
+        Log.i(TAG, "4 MB @ 1 MB/s per connection: single %d ms, 4 segments %d ms (%.1fx)",
+              single, segmented, single / (double) segmented);
+        Assert.assertTrue(segmented * 3 < single * 2);
+    }
+
+    @LargeTest
+    public void testSegmentedDownloadFallsBackForSmallFiles() throws IOException {
+        final byte[] body = LocalHttpServer.randomBody(100 * 1024);
+        final String url = mServer.put("small.bin", body);
+        timeDownload(new FileDownloader.Download(url, newFile("small.bin")).setSegments(4), body);
+    }
+
+    /**
+     * A sync of many small files is dominated by connection setup. Each file should take one request, on a connection
+     * reused from the previous one, instead of the two connections the old code opened.
+     */
+    @LargeTest
+    public void testConnectionReuse() throws IOException {
+        final int count = 200;
+        final String[] urls = new String[count];
+        for (int i = 0; i < count; i++) urls[i] = mServer.put(i + ".bin", LocalHttpServer.randomBody(1000 + i));
+
+        // the old request path: connect() on one connection, then the download on another
+        final long legacyStart = System.currentTimeMillis();
+        for (String url : urls) {
+            new URL(url).openConnection().connect();
+            InputStream input = new URL(url).openConnection().getInputStream();
+            try {
+                //noinspection StatementWithEmptyBody
+                while (input.read(new byte[4096]) != -1) {}
+            } finally {
+                input.close();
+            }
+        }
+        final long legacy = System.currentTimeMillis() - legacyStart;
+        final int legacySockets = mServer.getAcceptedSockets();
+        Assert.assertEquals(count, mServer.getRequests());
+
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            for (int i = 0; i < count; i++) urls[i] = server.put(i + ".bin", LocalHttpServer.randomBody(1000 + i));
+            final long start = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(urls[i],
+                                                                                          newFile(i + ".bin"))));
+            }
+            final long time = System.currentTimeMillis() - start;
+
+            Log.i(TAG, "%d files: old %d sockets %d ms, now %d sockets %d requests %d ms",
+                  count, legacySockets, legacy, server.getAcceptedSockets(), server.getRequests(), time);
+            Assert.assertEquals(count, server.getRequests());
+            Assert.assertTrue(server.getAcceptedSockets() * 10 <= count);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private File newFile(String name) {
+        final File file = new File(getContext().getCacheDir(), name);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        return file;
+    }
+
+    private static long timeDownload(FileDownloader.Download download, byte[] expected) throws IOException {
+        final long start = System.currentTimeMillis();
+        Assert.assertNull(FileDownloader.syncDownload(download));
+        final long time = System.currentTimeMillis() - start;
+        assertContent(download.file, expected);
+        return time;
+    }
+
+    static void assertContent(File file, byte[] expected) throws IOException {
+        Assert.assertEquals(expected.length, file.length());
+        final byte[] actual = new byte[expected.length];
+        FileInputStream input = new FileInputStream(file);
+        try {
+            int read = 0;
+            while (read < actual.length) read += input.read(actual, read, actual.length - read);
+        } finally {
+            input.close();
+        }
+        Assert.assertTrue(Arrays.equals(expected, actual));
+    }
+}
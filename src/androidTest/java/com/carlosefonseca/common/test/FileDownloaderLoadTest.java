@@ -0,0 +1,170 @@
+package com.carlosefonseca.common.test;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.DownloadSession;
+import com.carlosefonseca.common.utils.FileDownloader;
+import com.carlosefonseca.common.utils.FileUtils;
+import com.carlosefonseca.common.utils.Log;
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link FileDownloader} with thousands of files from {@link LocalHttpServer}, on a clean and on a bad
+ * network, and logs the throughput, the p50/p99 completion times (since the batch started) and the retries. The
+ * assertions only check that every file arrives intact.
+ */
+public class FileDownloaderLoadTest extends AndroidTestCase {
+
+    private static final String TAG = CodeUtils.getTag(FileDownloaderLoadTest.class);
+    private static final int FILES = 2000;
+    private static final int CONCURRENT = 8;
+
+    private LocalHttpServer mServer;
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        Log.setConsoleLogging(true);
+        FileDownloader.setRetryDelay(50, 500);
+        mServer = new LocalHttpServer();
+        mDir = new File(getContext().getCacheDir(), "load");
+        FileUtils.deleteDir(mDir);
+        //noinspection ResultOfMethodCallIgnored
+        mDir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        FileDownloader.setRetryDelay(1000, 60 * 1000);
+        FileUtils.deleteDir(mDir);
+        super.tearDown();
+    }
+
+    @LargeTest
+    public void testClean() throws Exception {
+        final Result result = run("clean");
+        Assert.assertEquals(0, result.retries);
+    }
+
+    @LargeTest
+    public void testLatency() throws Exception {
+        mServer.setLatencyMillis(50);
+        run("50 ms latency");
+    }
+
+    @LargeTest
+    public void testFaults() throws Exception {
+        mServer.setFaultRate(LocalHttpServer.Fault.RESET, 0.03);
+        mServer.setFaultRate(LocalHttpServer.Fault.SERVER_ERROR, 0.03);
+        mServer.setFaultRate(LocalHttpServer.Fault.TRUNCATED, 0.03);
+        final Result result = run("9% faults");
+        Assert.assertTrue(result.retries >= mServer.getFaults());
+    }
+
+    @LargeTest
+    public void testTruncatedWithoutRanges() throws Exception {
+        mServer.setRangeSupport(false);
+        mServer.setFaultRate(LocalHttpServer.Fault.TRUNCATED, 0.05);
+        run("5% truncated, no ranges");
+    }
+
+    @LargeTest
+    public void testBandwidthCap() throws Exception {
+        mServer.setBytesPerSecondPerConnection(256 * 1024);
+        run("256 KB/s per connection");
+    }
+
+    /**
+     * Downloads {@link #FILES} files of 1 to 32 KB in a session, checks them and logs the numbers.
+     */
+    private Result run(String name) throws InterruptedException, IOException {
+        final Random random = new Random(FILES);
+        final byte[][] bodies = new byte[FILES][];
+        final List<FileDownloader.Download> downloads = new ArrayList<>(FILES);
+        long totalBytes = 0;
+        for (int i = 0; i < FILES; i++) {
+            bodies[i] = LocalHttpServer.randomBody(1024 + random.nextInt(31 * 1024));
+            totalBytes += bodies[i].length;
+            downloads.add(new FileDownloader.Download(mServer.put(i + ".bin", bodies[i]), new File(mDir, i + ".bin")));
+        }
+
+        final LoadSession session = new LoadSession();
+        session.download(downloads);
+        Assert.assertTrue(session.mDone.await(5, TimeUnit.MINUTES));
+        final long elapsed = Math.max(1, System.currentTimeMillis() - session.mStart);
+
+        final Result result = session.getResult();
+        Log.i(TAG, "%s: %d files, %d KB in %d ms (%.0f KB/s, %.0f files/s), p50 %d ms, p99 %d ms, %d retries, " +
+                   "%d failed, %d faults injected, %d requests on %d sockets",
+              name, FILES, totalBytes / 1024, elapsed, totalBytes / 1024.0 * 1000 / elapsed, FILES * 1000.0 / elapsed,
+              result.p50, result.p99, result.retries, result.failed, mServer.getFaults(), mServer.getRequests(),
+              mServer.getAcceptedSockets());
+
+        Assert.assertEquals(0, result.failed);
+        for (int i = 0; i < FILES; i++) FileDownloaderBenchmarkTest.assertContent(downloads.get(i).file, bodies[i]);
+        return result;
+    }
+
+    private static final class Result {
+        final long p50;
+        final long p99;
+        final int retries;
+        final int failed;
+
+        Result(long p50, long p99, int retries, int failed) {
+            this.p50 = p50;
+            this.p99 = p99;
+            this.retries = retries;
+            this.failed = failed;
+        }
+    }
+
+    /**
+     * Records when each download finishes and how many tries it took.
+     */
+    private static final class LoadSession extends DownloadSession {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        final long mStart = System.currentTimeMillis();
+        private final List<Long> mTimes = new ArrayList<>(FILES);
+        private int mRetries;
+
+        LoadSession() {
+            super(CONCURRENT, null);
+            setNotifier(new FileDownloader.Notification() {
+                @Override
+                public void finished() {
+                    mDone.countDown();
+                }
+            });
+        }
+
+        @Override
+        protected synchronized void onDownloadFinished(FileDownloader.Download download, boolean success) {
+            mTimes.add(System.currentTimeMillis() - mStart);
+            mRetries += download.getTries() - 1;
+        }
+
+        synchronized Result getResult() {
+            final Long[] times = mTimes.toArray(new Long[mTimes.size()]);
+            Arrays.sort(times);
+            return new Result(percentile(times, 50), percentile(times, 99), mRetries, getFailedCount());
+        }
+
+        private static long percentile(Long[] sorted, int percentile) {
+            if (sorted.length == 0) return 0;
+            return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+        }
+    }
+}
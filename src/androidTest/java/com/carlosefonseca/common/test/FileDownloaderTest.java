@@ -1,15 +1,32 @@
 package com.carlosefonseca.common.test;
 
 import android.test.AndroidTestCase;
-import android.test.suitebuilder.annotation.LargeTest;
 import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.ContentHash;
+import com.carlosefonseca.common.utils.ContentSync;
+import com.carlosefonseca.common.utils.DownloadJournal;
+import com.carlosefonseca.common.utils.DownloadMetadata;
+import com.carlosefonseca.common.utils.DownloadSession;
 import com.carlosefonseca.common.utils.FileDownloader;
+import com.carlosefonseca.common.utils.FileUtils;
+import com.carlosefonseca.common.utils.InsufficientSpaceException;
+import com.carlosefonseca.common.utils.ListUtils;
 import com.carlosefonseca.common.utils.Log;
 import junit.framework.Assert;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static com.carlosefonseca.common.utils.ListUtils.list;
 
@@ -17,56 +34,364 @@ public class FileDownloaderTest extends AndroidTestCase {
 
     private static final java.lang.String TAG = CodeUtils.getTag(FileDownloaderTest.class);
 
-    @LargeTest
-    public void testDownload() {
+    public void testDownload() throws Exception {
         Log.setConsoleLogging(true);
-        final ReentrantLock lock = new ReentrantLock();
-        final Condition notDone = lock.newCondition();
-        FileDownloader.setNotifier(new FileDownloader.Notification() {
-            @Override
-            public void start(int downloads) {
-
-            }
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final byte[] body = LocalHttpServer.randomBody(100 * 1024);
+            final FileDownloader.Download download =
+                    new FileDownloader.Download(server.put("test_file", body),
+                                                new File(getContext().getCacheDir(), "test_file"));
+            //noinspection ResultOfMethodCallIgnored
+            download.file.delete();
 
-            @Override
-            public void finished() {
-                super.finished();
-                lock.lock();
-                try {
-                    Log.i(TAG, "SIGNALING!");
-                    notDone.signal();
-                } finally {
-                    lock.unlock();
+            final CountDownLatch done = new CountDownLatch(1);
+            FileDownloader.setNotifier(new FileDownloader.Notification() {
+                @Override
+                public void finished() {
+                    super.finished();
+                    done.countDown();
                 }
+            });
+            FileDownloader.downloadFiles(list(download));
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            FileDownloaderBenchmarkTest.assertContent(download.file, body);
+        } finally {
+            FileDownloader.setNotifier(new FileDownloader.Notification());
+            server.shutdown();
+        }
+    }
+
+    public void testRevalidation() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final String url = server.put("revalidated.bin", LocalHttpServer.randomBody(10 * 1024));
+            final File file = new File(getContext().getCacheDir(), "revalidated.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file).setRevalidate(true)));
+            Assert.assertNotNull(DownloadMetadata.read(file));
+
+            // unchanged: the file is kept
+            final long lastModified = file.lastModified();
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file).setRevalidate(true)));
+            Assert.assertEquals(lastModified, file.lastModified());
+
+            // changed: downloaded again
+            final byte[] newBody = LocalHttpServer.randomBody(20 * 1024);
+            server.put("revalidated.bin", newBody);
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file).setRevalidate(true)));
+            FileDownloaderBenchmarkTest.assertContent(file, newBody);
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testExpectedHash() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final byte[] body = LocalHttpServer.randomBody(10 * 1024);
+            final String url = server.put("hashed.bin", body);
+            final File file = new File(getContext().getCacheDir(), "hashed.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+            final String hex = ContentHash.of(body, ContentHash.Algorithm.SHA256).hex;
+            Assert.assertNull(FileDownloader.syncDownload(
+                    new FileDownloader.Download(url, file).setExpectedHash(ContentHash.Algorithm.SHA256, hex)));
+            FileDownloaderBenchmarkTest.assertContent(file, body);
+
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            Assert.assertNotNull(FileDownloader.syncDownload(
+                    new FileDownloader.Download(url, file).setExpectedHash(ContentHash.Algorithm.SHA256, "00")));
+            Assert.assertFalse(file.exists());
+            FileDownloader.cancelAll();
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testResumeCompleteTmpRestarts() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final byte[] body = LocalHttpServer.randomBody(10 * 1024);
+            final String url = server.put("complete_tmp.bin", body);
+            final File file = new File(getContext().getCacheDir(), "complete_tmp.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+            // killed between the copy and the rename: the range asked for is past the end
+            final File tempPath = new File(file.getAbsolutePath() + ".tmp");
+            final File validatorPath = new File(tempPath.getAbsolutePath() + ".etag");
+            final FileOutputStream output = new FileOutputStream(tempPath);
+            try {
+                output.write(body);
+            } finally {
+                output.close();
             }
+            FileUtils.StrToFile("\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"", validatorPath);
 
-            @Override
-            public void queueUpdate(int i) {
+            // the 416 discards the partial file and retries, instead of failing for good
+            Assert.assertNotNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)));
+            Assert.assertFalse(tempPath.exists());
+            Assert.assertFalse(validatorPath.exists());
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)));
+            FileDownloaderBenchmarkTest.assertContent(file, body);
+            FileDownloader.cancelAll();
+        } finally {
+            server.shutdown();
+        }
+    }
 
+    public void testResumePreallocatedAfterKill() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final byte[] body = LocalHttpServer.randomBody(2 * 1024 * 1024);
+            final String url = server.put("preallocated.bin", body);
+            final File file = new File(getContext().getCacheDir(), "preallocated.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+            // what a killed download leaves: a .tmp at its full length, with only the first half written
+            final int written = body.length / 2;
+            final File tempPath = new File(file.getAbsolutePath() + ".tmp");
+            final RandomAccessFile partial = new RandomAccessFile(tempPath, "rw");
+            try {
+                partial.setLength(body.length);
+            } finally {
+                partial.close();
             }
+            FileUtils.StrToFile("\"" + Integer.toHexString(Arrays.hashCode(body)) + "\"",
+                                new File(tempPath.getAbsolutePath() + ".etag"));
+            FileUtils.StrToFile(String.valueOf(written), new File(tempPath.getAbsolutePath() + ".written"));
 
-            @Override
-            public void fileFailed(String failedFile) {
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)));
+            // the zeros of the partial file were kept, so only the rest was downloaded
+            final byte[] expected = body.clone();
+            Arrays.fill(expected, 0, written, (byte) 0);
+            FileDownloaderBenchmarkTest.assertContent(file, expected);
+            Assert.assertFalse(new File(tempPath.getAbsolutePath() + ".written").exists());
+        } finally {
+            server.shutdown();
+        }
+    }
 
+    public void testUnzip() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final File dir = new File(getContext().getCacheDir(), "unzipped");
+            FileUtils.deleteDir(dir);
+            String url = server.put("first.zip", zip("a.txt", "one", "sub/b.txt", "two"));
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, dir).setUnzip(true)));
+            Assert.assertEquals("one", FileUtils.StrFromFile(new File(dir, "a.txt")));
+            Assert.assertEquals("two", FileUtils.StrFromFile(new File(dir, "sub/b.txt")));
+            Assert.assertFalse(new File(dir.getAbsolutePath() + ".staging").exists());
+
+            // replaces the whole directory
+            url = server.put("second.zip", zip("c.txt", "three"));
+            Assert.assertNull(FileDownloader.syncDownload(new FileDownloader.Download(url, dir).setUnzip(true)
+                                                                                              .setRevalidate(true)));
+            Assert.assertEquals(1, dir.list().length);
+            Assert.assertEquals("three", FileUtils.StrFromFile(new File(dir, "c.txt")));
+
+            // entries can't escape the directory
+            final File evil = new File(getContext().getCacheDir(), "evil.txt");
+            url = server.put("evil.zip", zip("../evil.txt", "x"));
+            final File other = new File(getContext().getCacheDir(), "unzipped2");
+            Assert.assertNotNull(FileDownloader.syncDownload(new FileDownloader.Download(url, other).setUnzip(true)));
+            Assert.assertFalse(evil.exists());
+            Assert.assertFalse(other.exists());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static byte[] zip(String... namesAndContents) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zip = new ZipOutputStream(bytes);
+        for (int i = 0; i < namesAndContents.length; i += 2) {
+            zip.putNextEntry(new ZipEntry(namesAndContents[i]));
+            zip.write(namesAndContents[i + 1].getBytes("UTF-8"));
+            zip.closeEntry();
+        }
+        zip.close();
+        return bytes.toByteArray();
+    }
+
+    public void testInsufficientSpace() throws IOException {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final String url = server.put("huge.bin", LocalHttpServer.randomBody(1024));
+            final File file = new File(getContext().getCacheDir(), "huge.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            final long tooMuch = FileDownloader.getAvailableBytes(file) + 1;
+
+            Assert.assertNotNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)
+                                                                     .setExpectedSize(tooMuch)));
+            Assert.assertNotNull(FileDownloader.syncDownload(new FileDownloader.Download(url, file)
+                                                                     .setUnzip(true)
+                                                                     .setExpectedSize(tooMuch)));
+            Assert.assertEquals(0, server.getRequests());
+
+            try {
+                new DownloadSession(1, null).download(list(new FileDownloader.Download(url, file)
+                                                                   .setExpectedSize(tooMuch)));
+                fail();
+            } catch (InsufficientSpaceException e) {
+                Assert.assertEquals(tooMuch, e.required);
             }
-        });
-        final String url = "http://search.maven.org/remotecontent?filepath=com/cathive/fonts/fonts-roboto/2012023.1/fonts-roboto-2012023.1-sources.jar";
-        final FileDownloader.Download download = new FileDownloader.Download(url,
-                                                                             new File(getContext().getExternalCacheDir(),
-                                                                                      "test_file")
-        );
-        Assert.assertFalse(download.file.exists());
-        FileDownloader.downloadFiles(list(download));
-        lock.lock();
+            Assert.assertEquals(0, server.getRequests());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    public void testCanceledSessionHandsOverSharedFile() throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
         try {
-            Log.i(TAG, "waiting!");
-            notDone.await();
-            Log.i(TAG, "RUNNING!");
-            Assert.assertTrue(download.file.exists());
-        } catch (InterruptedException e) {
-            Log.e(TAG, "" + e.getMessage(), e);
+            // slow enough to still be running when the first session is canceled
+            server.setBytesPerSecondPerConnection(64 * 1024);
+            final byte[] body = LocalHttpServer.randomBody(96 * 1024);
+            final String url = server.put("shared.bin", body);
+            final File file = new File(getContext().getCacheDir(), "shared.bin");
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+
+            final DownloadSession first = new DownloadSession(1, null);
+            final CountDownLatch done = new CountDownLatch(1);
+            final DownloadSession second = new DownloadSession(1, new FileDownloader.Notification() {
+                @Override
+                public void finished() {
+                    done.countDown();
+                }
+            });
+            first.download(list(new FileDownloader.Download(url, file)));
+            Thread.sleep(300);
+            second.download(list(new FileDownloader.Download(url, file)));
+            first.cancel();
+
+            Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+            Assert.assertEquals(1, second.getSucceededCount());
+            FileDownloaderBenchmarkTest.assertContent(file, body);
         } finally {
-            lock.unlock();
+            server.shutdown();
         }
     }
+
+    public void testJournalReplay() throws IOException {
+        final File journalFile = new File(getContext().getCacheDir(), "downloads.journal");
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+        final File file = new File(getContext().getCacheDir(), "journaled.bin");
+
+        Assert.assertEquals(0, FileDownloader.openJournal(journalFile));
+        FileDownloader.downloadFiles(list(new FileDownloader.Download("http://127.0.0.1:1/journaled.bin", file)
+                                                  .setPriority(FileDownloader.Priority.HIGH)));
+        FileDownloader.cancelAll();
+        FileDownloader.closeJournal();
+        // cancelAll forgets everything
+        DownloadJournal journal = new DownloadJournal(journalFile);
+        Assert.assertTrue(journal.getPending().isEmpty());
+        journal.close();
+
+        // a journal left behind by a killed process, with a torn last line
+        FileUtils.StrToFile("Q " + URLEncoder.encode(file.getAbsolutePath(), "UTF-8") +
+                            " http%3A%2F%2F127.0.0.1%3A1%2Fjournaled.bin HIGH 1 false \nS " +
+                            URLEncoder.encode(file.getAbsolutePath(), "UTF-8") + "\nQ /y ht", journalFile);
+        journal = new DownloadJournal(journalFile);
+        final List<FileDownloader.Download> pending = journal.getPending();
+        journal.close();
+        Assert.assertEquals(1, pending.size());
+        Assert.assertEquals(file, pending.get(0).file);
+        Assert.assertEquals(FileDownloader.Priority.HIGH, pending.get(0).getPriority());
+    }
+
+    public void testJournalKeepsSizeAndSession() throws IOException, InsufficientSpaceException {
+        final File journalFile = new File(getContext().getCacheDir(), "sessions.journal");
+        //noinspection ResultOfMethodCallIgnored
+        journalFile.delete();
+        final File file = new File(getContext().getCacheDir(), "in_session.bin");
+
+        DownloadJournal journal = new DownloadJournal(journalFile);
+        journal.close();
+        FileUtils.StrToFile("Q " + URLEncoder.encode(file.getAbsolutePath(), "UTF-8") +
+                            " http%3A%2F%2F127.0.0.1%3A1%2Fin_session.bin NORMAL 1 false  ANY false 1234 guides\n",
+                            journalFile);
+        journal = new DownloadJournal(journalFile);
+        final List<FileDownloader.Download> pending = journal.getPending();
+        journal.close();
+        Assert.assertEquals(1, pending.size());
+        Assert.assertEquals(1234, pending.get(0).getExpectedSize());
+
+        // waits for its session instead of coming back as a static download
+        Assert.assertEquals(1, FileDownloader.openJournal(journalFile));
+        try {
+            Assert.assertEquals(0, new DownloadSession("other", 1, null).resume());
+            final DownloadSession session = new DownloadSession("guides", 1, null);
+            Assert.assertEquals(1, session.resume());
+            Assert.assertEquals(1, session.getPendingCount());
+            Assert.assertEquals(0, session.resume());
+            session.cancel();
+        } finally {
+            FileDownloader.closeJournal();
+        }
+    }
+
+    public void testContentSync() throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        try {
+            final File root = new File(getContext().getCacheDir(), "synced");
+            FileUtils.deleteDir(root);
+            final File index = new File(getContext().getCacheDir(), "synced.index");
+            //noinspection ResultOfMethodCallIgnored
+            index.delete();
+            List<ContentSync.Entry> manifest = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                final byte[] body = LocalHttpServer.randomBody(100 + i);
+                manifest.add(new ContentSync.Entry("dir" + i % 3 + "/" + i + ".bin", body.length,
+                                                   ContentHash.of(body, ContentHash.Algorithm.MD5), 1,
+                                                   server.put(i + ".bin", body)));
+            }
+            syncAndWait(root, index, manifest);
+            Assert.assertEquals(20, server.getRequests());
+
+            // nothing changed
+            Assert.assertFalse(syncAndWait(root, index, manifest).hasChanges());
+            Assert.assertEquals(20, server.getRequests());
+
+            // one updated, one gone
+            final byte[] body = LocalHttpServer.randomBody(50);
+            manifest.set(0, new ContentSync.Entry(manifest.get(0).path, body.length,
+                                                  ContentHash.of(body, ContentHash.Algorithm.MD5), 2,
+                                                  server.put("0b.bin", body)));
+            final ContentSync.Entry removed = manifest.remove(19);
+            final ListUtils.ListComparator<ContentSync.Entry> diff = syncAndWait(root, index, manifest);
+            //noinspection ConstantConditions
+            Assert.assertEquals(1, diff.updatedObjects.size());
+            Assert.assertEquals(1, diff.oldObjects.size());
+            Assert.assertEquals(21, server.getRequests());
+            FileDownloaderBenchmarkTest.assertContent(new File(root, manifest.get(0).path), body);
+            Assert.assertFalse(new File(root, removed.path).exists());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    private static ListUtils.ListComparator<ContentSync.Entry> syncAndWait(File root, File index,
+                                                                        List<ContentSync.Entry> manifest)
+            throws InterruptedException, IOException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final ContentSync sync = new ContentSync(root, index, 4, new FileDownloader.Notification() {
+            @Override
+            public void finished() {
+                latch.countDown();
+            }
+        });
+        final ListUtils.ListComparator<ContentSync.Entry> diff = sync.sync(manifest);
+        if (sync.getPendingCount() > 0) Assert.assertTrue(latch.await(30, TimeUnit.SECONDS));
+        return diff;
+    }
 }
@@ -0,0 +1,76 @@
+package com.carlosefonseca.common.test;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+import com.carlosefonseca.common.utils.FileUtils;
+import com.carlosefonseca.common.utils.ImageDiskCache;
+import junit.framework.Assert;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ImageDiskCacheTest extends AndroidTestCase {
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "image-disk-cache-test");
+        FileUtils.deleteDir(mDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteDir(mDir);
+        super.tearDown();
+    }
+
+    public void testKeyChangesWithSourceVersionAndTransform() {
+        final String key = ImageDiskCache.key("/sdcard/a.jpg", 1000, "square:100");
+        Assert.assertEquals(key, ImageDiskCache.key("/sdcard/a.jpg", 1000, "square:100"));
+        Assert.assertFalse(key.equals(ImageDiskCache.key("/sdcard/a.jpg", 2000, "square:100")));
+        Assert.assertFalse(key.equals(ImageDiskCache.key("/sdcard/a.jpg", 1000, "square:200")));
+        Assert.assertFalse(key.equals(ImageDiskCache.key("/sdcard/b/a.jpg", 1000, "square:100")));
+    }
+
+    public void testEvictsLeastRecentlyUsedAndSurvivesReopen() throws IOException {
+        final Bitmap bitmap = Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(Color.RED);
+        ImageDiskCache cache = new ImageDiskCache(mDir, Long.MAX_VALUE);
+        cache.setFormat(Bitmap.CompressFormat.PNG, 100);
+        Assert.assertTrue(cache.put("a", bitmap));
+        final long size = cache.getSize();
+        cache.close();
+
+        cache = new ImageDiskCache(mDir, 3 * size);
+        cache.setFormat(Bitmap.CompressFormat.PNG, 100);
+        cache.put("b", bitmap);
+        cache.put("c", bitmap);
+        Assert.assertNotNull(cache.get("a"));
+        cache.put("d", bitmap);
+        Assert.assertTrue(cache.contains("a"));
+        Assert.assertFalse(cache.contains("b"));
+        Assert.assertEquals(3 * size, cache.getSize());
+        cache.close();
+
+        cache = new ImageDiskCache(mDir, 3 * size);
+        Assert.assertEquals(3, cache.getCount());
+        final Bitmap read = cache.get("a");
+        Assert.assertNotNull(read);
+        Assert.assertEquals(64, read.getWidth());
+        Assert.assertEquals(Color.RED, read.getPixel(10, 10));
+        cache.close();
+    }
+
+    public void testDeletesUnknownFiles() throws IOException {
+        ImageDiskCache cache = new ImageDiskCache(mDir, Long.MAX_VALUE);
+        cache.close();
+        final File stray = new File(mDir, "x.0.tmp");
+        Assert.assertTrue(stray.createNewFile());
+        cache = new ImageDiskCache(mDir, Long.MAX_VALUE);
+        Assert.assertFalse(stray.exists());
+        cache.close();
+    }
+}
@@ -0,0 +1,146 @@
+package com.carlosefonseca.common.test;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.test.AndroidTestCase;
+import com.carlosefonseca.common.utils.InFlightLoads;
+import junit.framework.Assert;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class InFlightLoadsTest extends AndroidTestCase {
+
+    private static final InFlightLoads.Key KEY = new InFlightLoads.Key("file:///a.jpg", 100, 100, null);
+
+    public void testConcurrentLoadsDecodeOnce() throws Exception {
+        final InFlightLoads loads = new InFlightLoads();
+        final AtomicInteger decodes = new AtomicInteger();
+        final CountDownLatch gate = new CountDownLatch(1);
+        final Callable<Bitmap> decode = new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() throws Exception {
+                decodes.incrementAndGet();
+                gate.await();
+                return Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+            }
+        };
+
+        final ExecutorService executor = Executors.newFixedThreadPool(20);
+        final List<Future<Bitmap>> results = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            results.add(executor.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return loads.load(KEY, decode);
+                }
+            }));
+        }
+        Thread.sleep(200);
+        Assert.assertEquals(1, loads.size());
+        gate.countDown();
+
+        final Bitmap first = results.get(0).get();
+        for (Future<Bitmap> result : results) Assert.assertSame(first, result.get());
+        Assert.assertEquals(1, decodes.get());
+        Assert.assertEquals(0, loads.size());
+        executor.shutdown();
+    }
+
+    public void testKeyIncludesSizeAndTransform() {
+        Assert.assertEquals(KEY, new InFlightLoads.Key("file:///a.jpg", 100, 100, null));
+        Assert.assertFalse(KEY.equals(new InFlightLoads.Key("file:///a.jpg", 200, 100, null)));
+        Assert.assertFalse(KEY.equals(new InFlightLoads.Key("file:///a.jpg", 100, 100, "circle")));
+    }
+
+    public void testRequestsCancelIndependently() {
+        final InFlightLoads loads = new InFlightLoads();
+        final Starter starter = new Starter();
+        final Counter kept = new Counter();
+        final Counter canceled = new Counter();
+
+        loads.request(KEY, kept, starter);
+        loads.request(KEY, canceled, starter).cancel();
+        Assert.assertEquals(1, starter.started);
+        Assert.assertEquals(0, starter.canceled);
+
+        starter.flight.complete(Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888));
+        Assert.assertEquals(1, kept.loaded);
+        Assert.assertEquals(0, canceled.loaded);
+    }
+
+    public void testLoadIsCanceledWithItsLastRequest() {
+        final InFlightLoads loads = new InFlightLoads();
+        final Starter starter = new Starter();
+        final Counter counter = new Counter();
+
+        final InFlightLoads.Request first = loads.request(KEY, counter, starter);
+        final InFlightLoads.Request second = loads.request(KEY, counter, starter);
+        final InFlightLoads.Flight flight = starter.flight;
+        first.cancel();
+        second.cancel();
+        Assert.assertEquals(1, starter.canceled);
+        Assert.assertTrue(flight.isCanceled());
+        Assert.assertEquals(0, loads.size());
+
+        // the next request starts again and the late result of the canceled load goes nowhere
+        loads.request(KEY, counter, starter);
+        Assert.assertEquals(2, starter.started);
+        flight.complete(null);
+        Assert.assertEquals(0, counter.loaded);
+        Assert.assertEquals(1, loads.size());
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testCancelStopsTheDecode() {
+        final InFlightLoads loads = new InFlightLoads();
+        final Starter starter = new Starter();
+
+        final InFlightLoads.Request request = loads.request(KEY, new Counter(), starter);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        starter.flight.setDecodeOptions(options);
+        request.cancel();
+        Assert.assertTrue(options.mCancel);
+
+        // a decode that starts after the cancel is stopped right away
+        final BitmapFactory.Options late = new BitmapFactory.Options();
+        starter.flight.setDecodeOptions(late);
+        Assert.assertTrue(late.mCancel);
+    }
+
+    private static final class Starter implements InFlightLoads.Starter {
+        InFlightLoads.Flight flight;
+        int started;
+        int canceled;
+
+        @Override
+        public void start(InFlightLoads.Flight flight) {
+            this.flight = flight;
+            started++;
+            flight.setOnCancel(new Runnable() {
+                @Override
+                public void run() {
+                    canceled++;
+                }
+            });
+        }
+    }
+
+    private static final class Counter implements InFlightLoads.Listener {
+        int loaded;
+        int failed;
+
+        @Override
+        public void onLoaded(@Nullable Bitmap bitmap) {
+            loaded++;
+        }
+
+        @Override
+        public void onFailed(@Nullable Exception error) {
+            failed++;
+        }
+    }
+}
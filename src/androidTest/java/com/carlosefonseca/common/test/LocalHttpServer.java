@@ -0,0 +1,322 @@
+package com.carlosefonseca.common.test;
+
+import android.support.annotation.Nullable;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.Log;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A tiny HTTP/1.1 server on the loopback interface to test downloads without depending on the network.
+ * Serves in-memory files with ETag, Range and keep-alive support, optionally capping the bandwidth of each connection.
+ * <p/>
+ * To test how clients cope with a bad network or server, it can also add latency, turn off range support and inject
+ * {@link Fault}s into a share of the responses.
+ */
+public class LocalHttpServer {
+
+    private static final String TAG = CodeUtils.getTag(LocalHttpServer.class);
+
+    public enum Fault {
+        /** The connection is reset halfway through the body. */
+        RESET,
+        /** 503 Service Unavailable. */
+        SERVER_ERROR,
+        /** The connection is closed halfway through the body, which was announced with its full length. */
+        TRUNCATED
+    }
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+
+    private volatile int mBytesPerSecondPerConnection;
+    private volatile int mLatencyMillis;
+    private volatile boolean mRangeSupport = true;
+    private final Map<Fault, Double> mFaultRates = new ConcurrentHashMap<>();
+    /** Seeded, so a run can be repeated. Guarded by itself. */
+    private final Random mRandom = new Random(42);
+    final AtomicInteger mAcceptedSockets = new AtomicInteger();
+    final AtomicInteger mRequests = new AtomicInteger();
+    final AtomicInteger mFaults = new AtomicInteger();
+
+    public LocalHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/" + path;
+    }
+
+    public String put(String path, byte[] body) {
+        mFiles.put("/" + path, body);
+        return url(path);
+    }
+
+    public static byte[] randomBody(int length) {
+        byte[] body = new byte[length];
+        new java.util.Random(length).nextBytes(body);
+        return body;
+    }
+
+    /**
+     * Limits the speed each connection is served at. 0 means unlimited.
+     */
+    public void setBytesPerSecondPerConnection(int bytesPerSecond) {
+        mBytesPerSecondPerConnection = bytesPerSecond;
+    }
+
+    /**
+     * Delays every response by {@code millis}, like a distant server.
+     */
+    public void setLatencyMillis(int millis) {
+        mLatencyMillis = millis;
+    }
+
+    /**
+     * When off, Range headers are ignored and the full body is always sent, without "Accept-Ranges".
+     */
+    public void setRangeSupport(boolean rangeSupport) {
+        mRangeSupport = rangeSupport;
+    }
+
+    /**
+     * Injects {@code fault} into a share of the responses to GET requests of existing files.
+     *
+     * @param rate From 0 (never) to 1 (always).
+     */
+    public void setFaultRate(Fault fault, double rate) {
+        mFaultRates.put(fault, rate);
+    }
+
+    /**
+     * @return How many faults were injected.
+     */
+    public int getFaults() {
+        return mFaults.get();
+    }
+
+    public int getAcceptedSockets() {
+        return mAcceptedSockets.get();
+    }
+
+    public int getRequests() {
+        return mRequests.get();
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException ignored) {}
+        mExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (!mServerSocket.isClosed()) {
+            try {
+                final Socket socket = mServerSocket.accept();
+                mAcceptedSockets.incrementAndGet();
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException ignored) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            // no Nagle: the end of a body would wait for the delayed ACK of the client
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            //noinspection StatementWithEmptyBody
+            while (handle(socket, in, out)) {}
+        } catch (SocketException ignored) {
+            // client went away
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to serve a connection", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * @return true if the connection should be kept open for another request.
+     */
+    private boolean handle(Socket socket, InputStream in, OutputStream out) throws IOException {
+        final String requestLine = readLine(in);
+        if (requestLine == null || requestLine.isEmpty()) return false;
+        mRequests.incrementAndGet();
+
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+            }
+        }
+
+        final String[] parts = requestLine.split(" ");
+        final boolean head = "HEAD".equals(parts[0]);
+        final byte[] body = mFiles.get(parts[1]);
+        final boolean keepAlive = !"close".equalsIgnoreCase(headers.get("connection"));
+
+        final int latency = mLatencyMillis;
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        final Fault fault = body != null && !head ? nextFault() : null;
+        if (fault == Fault.SERVER_ERROR) {
+            writeHead(out, "503 Service Unavailable", 0, null, keepAlive);
+            out.flush();
+            return keepAlive;
+        }
+
+        if (body == null) {
+            writeHead(out, "404 Not Found", 0, null, keepAlive);
+            out.flush();
+            return keepAlive;
+        }
+
+        final String etag = "\"" + Integer.toHexString(java.util.Arrays.hashCode(body)) + "\"";
+        final String ifMatch = headers.get("if-match");
+        if (ifMatch != null && !ifMatch.equals(etag)) {
+            writeHead(out, "412 Precondition Failed", 0, null, keepAlive);
+            out.flush();
+            return keepAlive;
+        }
+
+        if (etag.equals(headers.get("if-none-match"))) {
+            writeHead(out, "304 Not Modified", 0, "ETag: " + etag + "\r\n", keepAlive);
+            out.flush();
+            return keepAlive;
+        }
+
+        long start = 0;
+        long end = body.length - 1;
+        String status = "200 OK";
+        StringBuilder extra = new StringBuilder("ETag: ").append(etag).append("\r\n");
+        if (mRangeSupport) extra.append("Accept-Ranges: bytes\r\n");
+
+        final String range = mRangeSupport ? headers.get("range") : null;
+        final String ifRange = headers.get("if-range");
+        if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(etag))) {
+            final String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty()) end = Math.min(end, Long.parseLong(bounds[1]));
+            if (start > end) {
+                writeHead(out, "416 Range Not Satisfiable", 0, "Content-Range: bytes */" + body.length + "\r\n", keepAlive);
+                out.flush();
+                return keepAlive;
+            }
+            status = "206 Partial Content";
+            extra.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(body.length)
+                 .append("\r\n");
+        }
+
+        final int length = (int) (end - start + 1);
+        writeHead(out, status, length, extra.toString(), keepAlive);
+        if (fault != null) {
+            writeBody(out, body, (int) start, length / 2);
+            out.flush();
+            // RST instead of FIN
+            if (fault == Fault.RESET) socket.setSoLinger(true, 0);
+            return false;
+        }
+        if (!head) writeBody(out, body, (int) start, length);
+        out.flush();
+        return keepAlive;
+    }
+
+    @Nullable
+    private Fault nextFault() {
+        synchronized (mRandom) {
+            double value = mRandom.nextDouble();
+            for (Map.Entry<Fault, Double> entry : mFaultRates.entrySet()) {
+                value -= entry.getValue();
+                if (value < 0) {
+                    mFaults.incrementAndGet();
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+    }
+
+    private static void writeHead(OutputStream out, String status, long length, String extraHeaders, boolean keepAlive)
+            throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n" +
+                      "Content-Length: " + length + "\r\n" +
+                      (extraHeaders != null ? extraHeaders : "") +
+                      (keepAlive ? "" : "Connection: close\r\n") +
+                      "\r\n";
+        out.write(head.getBytes("US-ASCII"));
+    }
+
+    private void writeBody(OutputStream out, byte[] body, int offset, int length) throws IOException {
+        final int bytesPerSecond = mBytesPerSecondPerConnection;
+        if (bytesPerSecond <= 0) {
+            out.write(body, offset, length);
+            return;
+        }
+        // send in 10 chunks per second
+        final int chunk = Math.max(1, bytesPerSecond / 10);
+        final long startTime = System.nanoTime();
+        int sent = 0;
+        while (sent < length) {
+            final int n = Math.min(chunk, length - sent);
+            out.write(body, offset + sent, n);
+            out.flush();
+            sent += n;
+            final long due = startTime + sent * 1000000000L / bytesPerSecond;
+            final long wait = (due - System.nanoTime()) / 1000000L;
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') return sb.toString();
+            if (c != '\r') sb.append((char) c);
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+}
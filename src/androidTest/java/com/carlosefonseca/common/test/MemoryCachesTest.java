@@ -0,0 +1,75 @@
+package com.carlosefonseca.common.test;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.test.AndroidTestCase;
+import android.view.View;
+import com.carlosefonseca.common.utils.BitmapPool;
+import com.carlosefonseca.common.utils.MemoryCaches;
+import com.carlosefonseca.common.utils.PooledMemoryCache;
+import junit.framework.Assert;
+
+public class MemoryCachesTest extends AndroidTestCase {
+
+    public void testTrimsProgressively() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(100);
+        for (int i = 0; i < 100; i++) cache.put(i, i);
+        MemoryCaches.register("test", cache);
+
+        MemoryCaches.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+        Assert.assertEquals(75, cache.size());
+        MemoryCaches.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        Assert.assertEquals(50, cache.size());
+        MemoryCaches.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        Assert.assertEquals(25, cache.size());
+        MemoryCaches.onLowMemory();
+        Assert.assertEquals(0, cache.size());
+        // only the contents go, it can fill up again
+        Assert.assertEquals(100, cache.maxSize());
+    }
+
+    public void testTrimClearsThePoolAndDoesNotRefillIt() {
+        if (!BitmapPool.isSupported()) return;
+        final PooledMemoryCache cache = new PooledMemoryCache(1024 * 1024);
+        MemoryCaches.register("pooled", cache);
+        final Bitmap bitmap = Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888);
+        cache.put("a", bitmap);
+        // shown and let go, so it would go to the pool when evicted
+        final View view = new View(getContext());
+        BitmapPool.show(view, bitmap);
+        BitmapPool.show(view, null);
+        BitmapPool.put(Bitmap.createBitmap(16, 16, Bitmap.Config.ARGB_8888));
+
+        MemoryCaches.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        Assert.assertEquals(0, BitmapPool.getSize());
+        MemoryCaches.onLowMemory();
+        Assert.assertEquals(0, cache.getSize());
+        Assert.assertEquals(0, BitmapPool.getSize());
+    }
+
+    public void testOccupancy() {
+        final LruCache<Integer, Integer> cache = new LruCache<>(10);
+        cache.put(1, 1);
+        MemoryCaches.register("occupancy", cache);
+
+        MemoryCaches.Occupancy found = null;
+        for (MemoryCaches.Occupancy occupancy : MemoryCaches.getOccupancy()) {
+            if (occupancy.name.equals("occupancy")) found = occupancy;
+        }
+        Assert.assertNotNull(found);
+        Assert.assertEquals(1, found.size);
+        Assert.assertEquals(10, found.maxSize);
+    }
+
+    public void testCollectedCachesAreDropped() throws Exception {
+        final int before = MemoryCaches.getOccupancy().size();
+        MemoryCaches.register("collected", new LruCache<Integer, Integer>(10));
+
+        for (int i = 0; i < 20 && MemoryCaches.getOccupancy().size() > before; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(before, MemoryCaches.getOccupancy().size());
+    }
+}
@@ -0,0 +1,74 @@
+package com.carlosefonseca.common.test;
+
+import android.test.AndroidTestCase;
+import android.view.View;
+import com.carlosefonseca.common.utils.ViewBindings;
+import junit.framework.Assert;
+
+public class ViewBindingsTest extends AndroidTestCase {
+
+    public void testRebindCancelsPrevious() {
+        final ViewBindings bindings = new ViewBindings();
+        final View view = new View(getContext());
+        final int[] canceled = {0};
+
+        final ViewBindings.Binding first = bindings.bind(view, "a");
+        first.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                canceled[0]++;
+            }
+        });
+        // same key, new generation
+        final ViewBindings.Binding second = bindings.bind(view, "a");
+        Assert.assertEquals(1, canceled[0]);
+        Assert.assertTrue(first.isCanceled());
+        Assert.assertFalse(bindings.isCurrent(view, first));
+        Assert.assertTrue(bindings.isCurrent(view, second));
+    }
+
+    public void testFinishOnlyOnce() {
+        final ViewBindings bindings = new ViewBindings();
+        final View view = new View(getContext());
+
+        final ViewBindings.Binding binding = bindings.bind(view, "a");
+        Assert.assertTrue(bindings.finish(view, binding));
+        Assert.assertFalse(binding.isCanceled());
+        Assert.assertFalse(bindings.finish(view, binding));
+        Assert.assertEquals(0, bindings.size());
+    }
+
+    public void testUnbindCancels() {
+        final ViewBindings bindings = new ViewBindings();
+        final View view = new View(getContext());
+
+        final ViewBindings.Binding binding = bindings.bind(view, "a");
+        bindings.unbind(view);
+        Assert.assertTrue(binding.isCanceled());
+        Assert.assertNull(bindings.get(view));
+
+        // set after the cancel, runs right away
+        final boolean[] ran = {false};
+        binding.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                ran[0] = true;
+            }
+        });
+        Assert.assertTrue(ran[0]);
+    }
+
+    public void testViewsAreWeak() throws Exception {
+        final ViewBindings bindings = new ViewBindings();
+        View view = new View(getContext());
+        bindings.bind(view, "a");
+        //noinspection UnusedAssignment
+        view = null;
+
+        for (int i = 0; i < 20 && bindings.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, bindings.size());
+    }
+}
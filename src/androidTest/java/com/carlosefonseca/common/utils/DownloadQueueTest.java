@@ -0,0 +1,109 @@
+package com.carlosefonseca.common.utils;
+
+import android.test.AndroidTestCase;
+import com.carlosefonseca.common.utils.FileDownloader.Download;
+import com.carlosefonseca.common.utils.FileDownloader.Priority;
+import junit.framework.Assert;
+
+import java.io.File;
+
+/**
+ * In the package of {@link DownloadQueue}, which is internal to {@link FileDownloader}.
+ */
+public class DownloadQueueTest extends AndroidTestCase {
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    public void testMostImportantFirstAndVisibleNewestFirst() {
+        final DownloadQueue queue = new DownloadQueue(64);
+        final DownloadQueue.Entry normal1 = entry("n1", Priority.NORMAL);
+        final DownloadQueue.Entry background = entry("b", Priority.BACKGROUND);
+        final DownloadQueue.Entry normal2 = entry("n2", Priority.NORMAL);
+        final DownloadQueue.Entry high = entry("h", Priority.HIGH);
+        final DownloadQueue.Entry visible1 = entry("v1", Priority.VISIBLE);
+        final DownloadQueue.Entry visible2 = entry("v2", Priority.VISIBLE);
+        for (Runnable runnable : new Runnable[]{normal1, background, normal2, NOTHING, high, visible1, visible2}) {
+            Assert.assertTrue(queue.offer(runnable));
+        }
+
+        Assert.assertSame(visible2, queue.poll());
+        Assert.assertSame(visible1, queue.poll());
+        Assert.assertSame(high, queue.poll());
+        Assert.assertSame(normal1, queue.poll());
+        Assert.assertSame(normal2, queue.poll());
+        // plain tasks are NORMAL
+        Assert.assertSame(NOTHING, queue.poll());
+        Assert.assertSame(background, queue.poll());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.size());
+    }
+
+    public void testFullVisibleDemotesItsOldest() {
+        // VISIBLE and HIGH hold 1 each
+        final DownloadQueue queue = new DownloadQueue(8);
+        final DownloadQueue.Entry first = entry("v1", Priority.VISIBLE);
+        final DownloadQueue.Entry second = entry("v2", Priority.VISIBLE);
+        Assert.assertTrue(queue.offer(first));
+        Assert.assertTrue(queue.offer(second));
+        Assert.assertEquals(Priority.HIGH, first.priority);
+        Assert.assertEquals(1, queue.sizes()[Priority.VISIBLE.ordinal()]);
+        Assert.assertEquals(1, queue.sizes()[Priority.HIGH.ordinal()]);
+
+        // nowhere to demote to
+        Assert.assertFalse(queue.offer(entry("v3", Priority.VISIBLE)));
+        Assert.assertSame(second, queue.poll());
+        Assert.assertSame(first, queue.poll());
+    }
+
+    public void testReprioritizeMovesEverySegment() {
+        final DownloadQueue queue = new DownloadQueue(64);
+        final Download download = download("segmented", Priority.NORMAL);
+        final DownloadQueue.Entry other = entry("other", Priority.NORMAL);
+        Assert.assertTrue(queue.offer(other));
+        for (int i = 0; i < 3; i++) Assert.assertTrue(queue.offer(new DownloadQueue.Entry(download, NOTHING)));
+
+        Assert.assertTrue(queue.reprioritize(download, Priority.HIGH));
+        Assert.assertEquals(Priority.HIGH, download.priority);
+        Assert.assertEquals(3, queue.sizes()[Priority.HIGH.ordinal()]);
+        Assert.assertEquals(1, queue.sizes()[Priority.NORMAL.ordinal()]);
+        Assert.assertEquals(4, queue.size());
+        for (int i = 0; i < 3; i++) Assert.assertSame(download, ((DownloadQueue.Entry) queue.poll()).download);
+        Assert.assertSame(other, queue.poll());
+    }
+
+    public void testReprioritizeWithoutQueuedTasks() {
+        final DownloadQueue queue = new DownloadQueue(64);
+        final Download download = download("running", Priority.NORMAL);
+        Assert.assertFalse(queue.reprioritize(download, Priority.VISIBLE));
+        // still applies to its next tasks
+        Assert.assertEquals(Priority.VISIBLE, download.priority);
+
+        final DownloadQueue.Entry entry = new DownloadQueue.Entry(download, NOTHING);
+        Assert.assertTrue(queue.offer(entry));
+        Assert.assertFalse(queue.reprioritize(download, Priority.VISIBLE));
+    }
+
+    public void testReprioritizeOnlyWhatFits() {
+        // HIGH holds 1
+        final DownloadQueue queue = new DownloadQueue(8);
+        final Download download = download("segmented", Priority.NORMAL);
+        for (int i = 0; i < 3; i++) Assert.assertTrue(queue.offer(new DownloadQueue.Entry(download, NOTHING)));
+
+        Assert.assertTrue(queue.reprioritize(download, Priority.HIGH));
+        Assert.assertEquals(1, queue.sizes()[Priority.HIGH.ordinal()]);
+        Assert.assertEquals(2, queue.sizes()[Priority.NORMAL.ordinal()]);
+        Assert.assertEquals(3, queue.size());
+    }
+
+    private DownloadQueue.Entry entry(String name, Priority priority) {
+        return new DownloadQueue.Entry(download(name, priority), NOTHING);
+    }
+
+    private Download download(String name, Priority priority) {
+        return new Download("http://127.0.0.1:1/" + name, new File(getContext().getCacheDir(), name))
+                .setPriority(priority);
+    }
+}
@@ -9,6 +9,7 @@ import android.os.Build;
 import android.os.Environment;
 import com.carlosefonseca.common.utils.CodeUtils;
 import com.carlosefonseca.common.utils.Log;
+import com.carlosefonseca.common.utils.MemoryCaches;
 import com.carlosefonseca.common.utils.ResourceUtils;
 
 import java.io.File;
@@ -52,6 +53,25 @@ public class CFApp extends Application {
 
     protected void init(int currentVersion, int previousVersion) {}
 
+    /**
+     * Trims the image caches (see {@link MemoryCaches}). Subclasses overriding this should call through.
+     */
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryCaches.onTrimMemory(level);
+    }
+
+    /**
+     * Drops the image caches (see {@link MemoryCaches}). Subclasses overriding this should call through.
+     */
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryCaches.onLowMemory();
+    }
+
     public static boolean isLandscapeTablet() {
         return isLandscape() && isTablet();
     }
@@ -0,0 +1,79 @@
+package com.carlosefonseca.common.utils;
+
+/**
+ * Token bucket rate limiter for byte transfers. Callers take the bytes they just moved and, if the budget is
+ * overdrawn, sleep for as long as it takes to refill it. The rate can be changed at any time.
+ * <p/>
+ * Allows bursts of up to a quarter of a second of traffic after being idle.
+ */
+public final class BandwidthThrottle {
+
+    private static final long MIN_BURST = 16 * 1024;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    private long mBytesPerSecond;
+    private double mTokens;
+    private long mLastRefill;
+
+    /**
+     * @param bytesPerSecond The rate. 0 or less means unlimited.
+     */
+    public BandwidthThrottle(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+        mLastRefill = System.nanoTime();
+        mTokens = burst();
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond The new rate. 0 or less means unlimited.
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        refill();
+        mBytesPerSecond = bytesPerSecond;
+        mTokens = Math.min(mTokens, burst());
+    }
+
+    public synchronized boolean isLimited() {
+        return mBytesPerSecond > 0;
+    }
+
+    /**
+     * Takes {@code bytes} from the budget, waiting if there aren't enough.
+     *
+     * @return false if the thread was interrupted while waiting.
+     */
+    public boolean acquire(int bytes) {
+        final long sleepNanos;
+        synchronized (this) {
+            if (mBytesPerSecond <= 0) return true;
+            refill();
+            mTokens -= bytes;
+            sleepNanos = mTokens < 0 ? (long) (-mTokens * NANOS_PER_SECOND / mBytesPerSecond) : 0;
+        }
+        if (sleepNanos > 0) {
+            try {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long burst() {
+        return Math.max(mBytesPerSecond / 4, MIN_BURST);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        if (mBytesPerSecond > 0) {
+            mTokens = Math.min(burst(), mTokens + (now - mLastRefill) * (double) mBytesPerSecond / NANOS_PER_SECOND);
+        }
+        mLastRefill = now;
+    }
+}
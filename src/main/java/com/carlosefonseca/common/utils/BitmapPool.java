@@ -0,0 +1,333 @@
+package com.carlosefonseca.common.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+import static com.carlosefonseca.common.utils.CodeUtils.getTag;
+
+/**
+ * Bitmaps that nobody uses anymore, kept to be decoded into ({@link BitmapFactory.Options#inBitmap}) instead of
+ * allocating a new one per decode. Scrolling a grid of thumbnails then reuses the pixels of the ones that left the
+ * caches and the GC has almost nothing to do.
+ * <p/>
+ * A bitmap is only reused once it's known to be off screen. The memory cache of {@link UIL} {@link #retain(Bitmap)}s
+ * what it holds and {@link #release(Bitmap)}s what it drops, and UIL tells {@link #show(View, Bitmap)} what each view
+ * shows, so a bitmap goes to the pool when it left every cache and every view that showed it got another one. Bitmaps
+ * that were never shown that way, or that were {@link #pin(Bitmap)}ned because they were handed to code that doesn't
+ * say when it's done with them ({@link UIL#loadSync(String)}...), are left to the GC.
+ * <p/>
+ * Until KitKat, a bitmap can only be reused for a decode of the exact same size and config, without subsampling, so
+ * the pool is bucketed by size and config. From KitKat on, any bitmap with enough bytes will do, so the buckets are by
+ * allocated bytes and a decode takes the smallest one that fits. Before Honeycomb there's no reuse and nothing is kept.
+ */
+public final class BitmapPool {
+    private static final String TAG = getTag(BitmapPool.class);
+
+    /** A decode doesn't take a bitmap more than this many times bigger than it needs. */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    /** By {@link #key(int, int, Bitmap.Config)} before KitKat, by allocated bytes after. */
+    private static final TreeMap<Long, ArrayDeque<Bitmap>> sBuckets = new TreeMap<>();
+    /** The same bitmaps, by their key, the least recently added first. */
+    private static final LinkedHashMap<Bitmap, Long> sLru = new LinkedHashMap<>();
+
+    /** What has the bitmaps that may come to the pool. Weak, a bitmap nobody releases is just collected. */
+    private static final WeakHashMap<Bitmap, Holders> sHolders = new WeakHashMap<>();
+    /** What each view shows, as told to {@link #show(View, Bitmap)}. */
+    private static final WeakHashMap<View, WeakReference<Bitmap>> sShown = new WeakHashMap<>();
+
+    private static long sMaxSize = Runtime.getRuntime().maxMemory() / 16;
+    private static long sSize;
+    private static int sHits;
+    private static int sMisses;
+    private static int sPuts;
+    private static int sEvictions;
+
+    private BitmapPool() {}
+
+    private static final class Holders {
+        /** Cache entries and views that have the bitmap. */
+        int count;
+        /** Whether a view showed it, so that it's known when it's off screen. */
+        boolean shown;
+        /** Handed to code that doesn't say when it's done with it, never pooled. */
+        boolean pinned;
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Sets how many bytes of bitmaps may be kept, 1/16 of the heap by default. Evicts the oldest if over it.
+     */
+    public static synchronized void setMaxSize(long bytes) {
+        sMaxSize = bytes;
+        trimToSize(sMaxSize);
+    }
+
+    public static synchronized long getMaxSize() {
+        return sMaxSize;
+    }
+
+    /** Bytes of the bitmaps in the pool. */
+    public static synchronized long getSize() {
+        return sSize;
+    }
+
+    /** Decodes that got a bitmap from the pool. */
+    public static synchronized int getHitCount() {
+        return sHits;
+    }
+
+    /** Decodes that found nothing that fit and allocated a new bitmap. */
+    public static synchronized int getMissCount() {
+        return sMisses;
+    }
+
+    /** Bitmaps taken in by {@link #put(Bitmap)}. */
+    public static synchronized int getPutCount() {
+        return sPuts;
+    }
+
+    /** Bitmaps dropped to stay within {@link #getMaxSize()} or by {@link #clear()}. */
+    public static synchronized int getEvictionCount() {
+        return sEvictions;
+    }
+
+    /**
+     * Drops every bitmap, e.g. when memory is low.
+     */
+    public static synchronized void clear() {
+        trimToSize(0);
+    }
+
+    /**
+     * Counts something that has {@code bitmap}, e.g. the entry of a cache, so that it isn't pooled before that
+     * {@link #release(Bitmap)}s it too.
+     */
+    public static synchronized void retain(@Nullable Bitmap bitmap) {
+        if (bitmap != null) getHolders(bitmap).count++;
+    }
+
+    /**
+     * Undoes a {@link #retain(Bitmap)}. When nothing has the bitmap anymore and it's known to be off screen (see the
+     * class), it goes to the pool.
+     *
+     * @return Whether it went to the pool.
+     */
+    public static boolean release(@Nullable Bitmap bitmap) {
+        return release(bitmap, true);
+    }
+
+    /**
+     * @param pool False to leave the bitmap to the GC even if it could go to the pool, e.g. when freeing memory.
+     * @see #release(Bitmap)
+     */
+    public static boolean release(@Nullable Bitmap bitmap, boolean pool) {
+        if (bitmap == null) return false;
+        synchronized (BitmapPool.class) {
+            final Holders holders = sHolders.get(bitmap);
+            if (holders == null || holders.count == 0 || --holders.count > 0) return false;
+            if (!holders.shown || holders.pinned) return false;
+            sHolders.remove(bitmap);
+        }
+        return pool && put(bitmap);
+    }
+
+    /**
+     * Records that {@code view} shows {@code bitmap} now, or no bitmap from here if null, and lets go of the one it
+     * showed before.
+     */
+    public static void show(View view, @Nullable Bitmap bitmap) {
+        final Bitmap previous;
+        synchronized (BitmapPool.class) {
+            final WeakReference<Bitmap> reference = bitmap != null
+                                                    ? sShown.put(view, new WeakReference<>(bitmap))
+                                                    : sShown.remove(view);
+            previous = reference != null ? reference.get() : null;
+            if (previous == bitmap) return;
+            if (bitmap != null) {
+                final Holders holders = getHolders(bitmap);
+                holders.count++;
+                holders.shown = true;
+            }
+        }
+        release(previous);
+    }
+
+    /**
+     * Keeps {@code bitmap} out of the pool for good, for bitmaps given to code that won't say when it's done with them.
+     *
+     * @return The bitmap.
+     */
+    @Nullable
+    public static synchronized Bitmap pin(@Nullable Bitmap bitmap) {
+        if (bitmap != null) getHolders(bitmap).pinned = true;
+        return bitmap;
+    }
+
+    /**
+     * Keeps a bitmap that isn't used anymore for another decode. Immutable and recycled bitmaps, the ones bigger than
+     * half the pool and the ones that something still has (see {@link #retain(Bitmap)} and {@link #pin(Bitmap)}) are
+     * ignored.
+     *
+     * @return Whether the bitmap was kept.
+     */
+    public static boolean put(@Nullable Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()) return false;
+        final int size = ImageUtils.sizeBitmap(bitmap);
+        synchronized (BitmapPool.class) {
+            if (size > sMaxSize / 2 || sLru.containsKey(bitmap)) return false;
+            final Holders holders = sHolders.get(bitmap);
+            if (holders != null && (holders.count > 0 || holders.pinned)) return false;
+            sHolders.remove(bitmap);
+            final long key = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                             ? size
+                             : key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            ArrayDeque<Bitmap> bucket = sBuckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayDeque<>();
+                sBuckets.put(key, bucket);
+            }
+            bucket.add(bitmap);
+            sLru.put(bitmap, key);
+            sSize += size;
+            sPuts++;
+            trimToSize(sMaxSize);
+        }
+        return true;
+    }
+
+    /**
+     * Takes a bitmap that a decode of {@code width}x{@code height} pixels in {@code config} can use as
+     * {@link BitmapFactory.Options#inBitmap}.
+     *
+     * @return The bitmap, no longer in the pool, or null if there's none that fits.
+     */
+    @Nullable
+    public static synchronized Bitmap get(int width, int height, @Nullable Bitmap.Config config) {
+        if (!isSupported()) return null;
+        Bitmap bitmap = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            final long needed = (long) width * height * bytesPerPixel(config);
+            final Map.Entry<Long, ArrayDeque<Bitmap>> entry = sBuckets.ceilingEntry(needed);
+            if (entry != null && entry.getKey() <= needed * MAX_SIZE_MULTIPLE) bitmap = take(entry.getKey());
+        } else if (config != null) {
+            bitmap = take(key(width, height, config));
+        }
+        if (bitmap == null) {
+            sMisses++;
+        } else {
+            sHits++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Prepares a decode to go into a bitmap from the pool, if there's one that fits, and to give a mutable bitmap that
+     * can go to the pool afterwards. {@code options.inSampleSize} and {@code options.inPreferredConfig} must already
+     * be set. If the decode throws an {@link IllegalArgumentException}, the bitmap couldn't be used after all: call
+     * {@link #decodeFailed(BitmapFactory.Options)} and decode again.
+     *
+     * @param width  Width of the source image, before subsampling, or 0 if unknown (only sets inMutable).
+     * @param height Height of the source image, before subsampling, or 0 if unknown.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static void prepare(BitmapFactory.Options options, int width, int height) {
+        if (!isSupported()) return;
+        options.inMutable = true;
+        if (width <= 0 || height <= 0) return;
+        final int sample = Math.max(1, options.inSampleSize);
+        // jpeg rounds up and png down, the bigger one always fits
+        final int decodedWidth = (width + sample - 1) / sample;
+        final int decodedHeight = (height + sample - 1) / sample;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && sample > 1) return;
+        options.inBitmap = get(decodedWidth, decodedHeight, options.inPreferredConfig);
+    }
+
+    /**
+     * Clears the bitmap set by {@link #prepare(BitmapFactory.Options, int, int)} after the decode refused it, so the
+     * options can be used again.
+     *
+     * @return Whether there was a bitmap, i.e. whether decoding again may work.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static boolean decodeFailed(BitmapFactory.Options options) {
+        if (!isSupported() || options.inBitmap == null) return false;
+        Log.v(TAG, "Couldn't decode into a %dx%d %s bitmap", options.inBitmap.getWidth(),
+              options.inBitmap.getHeight(), options.inBitmap.getConfig());
+        options.inBitmap = null;
+        return true;
+    }
+
+    public static synchronized String getStats() {
+        return "BitmapPool{" + CodeUtils.getKB(sSize) + "/" + CodeUtils.getKB(sMaxSize) + " kB, " + sLru.size() +
+               " bitmaps, " + sHits + " hits, " + sMisses + " misses, " + sPuts + " puts, " + sEvictions +
+               " evictions}";
+    }
+
+    private static Holders getHolders(Bitmap bitmap) {
+        Holders holders = sHolders.get(bitmap);
+        if (holders == null) {
+            holders = new Holders();
+            sHolders.put(bitmap, holders);
+        }
+        return holders;
+    }
+
+    @Nullable
+    private static Bitmap take(long key) {
+        final ArrayDeque<Bitmap> bucket = sBuckets.get(key);
+        if (bucket == null) return null;
+        final Bitmap bitmap = bucket.pollLast();
+        if (bucket.isEmpty()) sBuckets.remove(key);
+        if (bitmap != null) {
+            sLru.remove(bitmap);
+            sSize -= ImageUtils.sizeBitmap(bitmap);
+        }
+        return bitmap;
+    }
+
+    private static void trimToSize(long maxSize) {
+        final Iterator<Map.Entry<Bitmap, Long>> iterator = sLru.entrySet().iterator();
+        while (sSize > maxSize && iterator.hasNext()) {
+            final Map.Entry<Bitmap, Long> entry = iterator.next();
+            iterator.remove();
+            final ArrayDeque<Bitmap> bucket = sBuckets.get(entry.getValue());
+            bucket.remove(entry.getKey());
+            if (bucket.isEmpty()) sBuckets.remove(entry.getValue());
+            sSize -= ImageUtils.sizeBitmap(entry.getKey());
+            sEvictions++;
+        }
+    }
+
+    private static long key(int width, int height, Bitmap.Config config) {
+        return (long) width << 32 | (long) height << 8 | (config != null ? config.ordinal() + 1 : 0);
+    }
+
+    static int bytesPerPixel(@Nullable Bitmap.Config config) {
+        if (config == null) return 4;
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case RGB_565:
+            case ARGB_4444:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+}
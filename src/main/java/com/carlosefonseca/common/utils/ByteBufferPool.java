@@ -0,0 +1,63 @@
+package com.carlosefonseca.common.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Reuses the direct buffers used to copy data between channels. A direct buffer is read from and written to the
+ * channels without the extra copy into native memory that a heap array needs, but it's expensive to allocate, so they
+ * are kept for the next copy instead of being left to the GC.
+ */
+final class ByteBufferPool {
+    static final int BUFFER_SIZE = 64 * 1024;
+    /** About one per download thread. */
+    private static final int MAX_POOLED = 16;
+
+    private static final ArrayDeque<ByteBuffer> sPool = new ArrayDeque<>();
+
+    private ByteBufferPool() {}
+
+    /**
+     * @return An empty buffer of {@link #BUFFER_SIZE} bytes. Give it back with {@link #release(ByteBuffer)}.
+     */
+    static ByteBuffer acquire() {
+        final ByteBuffer buffer;
+        synchronized (sPool) {
+            buffer = sPool.poll();
+        }
+        if (buffer == null) return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffer.clear();
+        return buffer;
+    }
+
+    static void release(ByteBuffer buffer) {
+        synchronized (sPool) {
+            if (sPool.size() < MAX_POOLED) sPool.add(buffer);
+        }
+    }
+
+    /**
+     * Copies everything from {@code input} to {@code output} through a pooled buffer.
+     *
+     * @return The number of bytes copied.
+     */
+    static long copy(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        final ByteBuffer buffer = acquire();
+        try {
+            long count = 0;
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) output.write(buffer);
+                buffer.clear();
+                count += n;
+            }
+            return count;
+        } finally {
+            release(buffer);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * A hash of some content and the algorithm that produced it. The string form is {@code "<algorithm>:<hex>"}, e.g.
+ * {@code "SHA-256:9f86d0..."}.
+ */
+public final class ContentHash {
+
+    public enum Algorithm {
+        CRC32("CRC32"), MD5("MD5"), SHA256("SHA-256");
+
+        public final String name;
+
+        Algorithm(String name) {
+            this.name = name;
+        }
+
+        public Hasher newHasher() {
+            if (this == CRC32) return new CRC32Hasher();
+            try {
+                return new DigestHasher(this, MessageDigest.getInstance(name));
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(name + " not available", e);
+            }
+        }
+
+        @Nullable
+        public static Algorithm forName(String name) {
+            for (Algorithm algorithm : values()) if (algorithm.name.equalsIgnoreCase(name)) return algorithm;
+            return null;
+        }
+    }
+
+    public final Algorithm algorithm;
+    public final String hex;
+
+    public ContentHash(Algorithm algorithm, String hex) {
+        this.algorithm = algorithm;
+        this.hex = hex.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param hash A hash in the {@link #toString()} form.
+     * @return The hash or null if it can't be parsed.
+     */
+    @Nullable
+    public static ContentHash parse(@Nullable String hash) {
+        if (hash == null) return null;
+        final int colon = hash.indexOf(':');
+        if (colon < 0) return null;
+        final Algorithm algorithm = Algorithm.forName(hash.substring(0, colon));
+        return algorithm != null ? new ContentHash(algorithm, hash.substring(colon + 1)) : null;
+    }
+
+    /**
+     * Reads the whole file to hash it.
+     */
+    public static ContentHash of(File file, Algorithm algorithm) throws IOException {
+        final Hasher hasher = algorithm.newHasher();
+        hasher.update(file);
+        return hasher.getHash();
+    }
+
+    public static ContentHash of(byte[] data, Algorithm algorithm) {
+        final Hasher hasher = algorithm.newHasher();
+        hasher.update(data, 0, data.length);
+        return hasher.getHash();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ContentHash && algorithm == ((ContentHash) o).algorithm && hex.equals(((ContentHash) o).hex);
+    }
+
+    @Override
+    public int hashCode() {
+        return CodeUtils.hashCode(71, algorithm, hex);
+    }
+
+    @Override
+    public String toString() {
+        return algorithm.name + ":" + hex;
+    }
+
+    /**
+     * Computes a hash incrementally, as the data goes by.
+     */
+    public abstract static class Hasher {
+        private final Algorithm mAlgorithm;
+        /** Where direct buffers are copied to, made on the first one. */
+        private byte[] mChunk;
+
+        Hasher(Algorithm algorithm) {
+            mAlgorithm = algorithm;
+        }
+
+        public abstract void update(byte[] buffer, int offset, int count);
+
+        /**
+         * Adds the remaining bytes of {@code buffer}, consuming them.
+         */
+        public void update(ByteBuffer buffer) {
+            if (buffer.hasArray()) {
+                update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                buffer.position(buffer.limit());
+                return;
+            }
+            // CRC32 can't read a direct buffer before Java 8
+            if (mChunk == null) mChunk = new byte[8 * 1024];
+            final byte[] chunk = mChunk;
+            while (buffer.hasRemaining()) {
+                final int n = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, n);
+                update(chunk, 0, n);
+            }
+        }
+
+        abstract String hex();
+
+        public ContentHash getHash() {
+            return new ContentHash(mAlgorithm, hex());
+        }
+
+        /**
+         * Adds the contents of a file.
+         */
+        public void update(File file) throws IOException {
+            byte[] buffer = new byte[8 * 1024];
+            InputStream input = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = input.read(buffer)) != -1) update(buffer, 0, n);
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    private static final class CRC32Hasher extends Hasher {
+        private final CRC32 mCrc = new CRC32();
+
+        CRC32Hasher() {
+            super(Algorithm.CRC32);
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int count) {
+            mCrc.update(buffer, offset, count);
+        }
+
+        @Override
+        String hex() {
+            return String.format("%08x", mCrc.getValue());
+        }
+    }
+
+    private static final class DigestHasher extends Hasher {
+        private final MessageDigest mDigest;
+
+        DigestHasher(Algorithm algorithm, MessageDigest digest) {
+            super(algorithm);
+            mDigest = digest;
+        }
+
+        @Override
+        public void update(byte[] buffer, int offset, int count) {
+            mDigest.update(buffer, offset, count);
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            mDigest.update(buffer);
+        }
+
+        @Override
+        String hex() {
+            final byte[] digest = mDigest.digest();
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.carlosefonseca.common.utils.CodeUtils.getTag;
+
+/**
+ * Keeps a directory in sync with a manifest of files from a server. An index of what was downloaded is kept on disk,
+ * so a sync only compares the manifest with the index (see
+ * {@link ListUtils.ListComparator#computeWithUpdatesHashed(Collection, Collection)}) and downloads the files that are
+ * new or changed, deletes the ones no longer in the manifest, and leaves everything else alone.
+ * <p/>
+ * The downloads run as a {@link DownloadSession}, so the whole sync reports to the one notifier and can be canceled on
+ * its own. A file that changed is downloaded next to the one we have, which is only replaced once the new one is
+ * complete.
+ */
+public class ContentSync extends DownloadSession {
+    private static final String TAG = getTag(ContentSync.class);
+
+    /** How many finished downloads may be kept only in memory before the index is saved. */
+    static final int SAVE_EVERY = 100;
+    /** Suffix of the new version of a file while it downloads. */
+    static final String UPDATE_SUFFIX = ".update";
+
+    /** Writes the indexes and swaps in the updated files, in order and off the main thread, where downloads finish. */
+    private static final ExecutorService sIndexWriter = Executors.newSingleThreadExecutor();
+
+    /**
+     * A file of the manifest or of the index, identified by its path.
+     */
+    public static final class Entry implements Comparable<Entry> {
+        /** Relative to the directory being synced, with '/' as separator. */
+        public final String path;
+        public final long size;
+        @Nullable public final ContentHash hash;
+        public final long version;
+        /** Where to download it from. Not kept in the index. */
+        @Nullable public final String url;
+
+        public Entry(String path, long size, @Nullable ContentHash hash, long version, @Nullable String url) {
+            this.path = path;
+            this.size = size;
+            this.hash = hash;
+            this.version = version;
+            this.url = url;
+        }
+
+        boolean sameContent(Entry other) {
+            return size == other.size && version == other.version &&
+                   (hash == null ? other.hash == null : hash.equals(other.hash));
+        }
+
+        /**
+         * For {@link ListUtils.ListComparator#computeWithUpdates(Collection, Collection)}, on the entry of the index:
+         * 0 if the manifest entry is the same file, positive if it's a newer version or a different file with the same
+         * version. An older version than the one we have is negative and ignored.
+         */
+        @Override
+        public int compareTo(Entry another) {
+            if (sameContent(another)) return 0;
+            return version == another.version ? 1 : (another.version > version ? 1 : -1);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && path.equals(((Entry) o).path);
+        }
+
+        @Override
+        public int hashCode() {
+            return path.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return path + " v" + version;
+        }
+    }
+
+    private final File mRoot;
+    private final File mIndexFile;
+    /** What is in {@link #mRoot}, by path. Guarded by this. Null until loaded. */
+    private HashMap<String, Entry> mIndex;
+    /** The manifest entries of the downloads, to go to the index when they finish. Guarded by this. */
+    private final HashMap<File, Entry> mScheduled = new HashMap<>();
+    private int mUnsaved;
+
+    /**
+     * @param root      The directory to keep in sync.
+     * @param indexFile Where to keep the index, e.g. in the app's files directory. Also names the session in the
+     *                  download journal.
+     */
+    public ContentSync(File root, File indexFile, int maxConcurrent,
+                       @Nullable FileDownloader.FileDownloaderNotifier notifier) {
+        super(indexFile.getAbsolutePath(), maxConcurrent, notifier);
+        mRoot = root;
+        mIndexFile = indexFile;
+    }
+
+    /**
+     * Deletes the files that aren't in the manifest anymore and starts downloading the ones that are new or changed.
+     * Files that the index says we have are only checked for their size on disk. New files that are already on disk
+     * (e.g. the index wasn't saved before the app was killed) are kept if their size and hash match and deleted
+     * otherwise. Reads the index and hashes files, so it shouldn't be called on the main thread.
+     * <p/>
+     * Downloads that the journal recovered are continued if they are still wanted, instead of {@link #resume()}.
+     *
+     * @param manifest Every file that should be in the directory, with its url.
+     * @return The files to download ({@link ListUtils.ListComparator#newObjects} and
+     * {@link ListUtils.ListComparator#updatedObjects}), the ones that were fine and the ones deleted.
+     * @throws InsufficientSpaceException If the files to download don't fit. The obsolete ones are deleted anyway.
+     */
+    public ListUtils.ListComparator<Entry> sync(Collection<Entry> manifest) throws InsufficientSpaceException {
+        final long start = System.currentTimeMillis();
+        final List<FileDownloader.Download> recovered = takeRecovered();
+        final ListUtils.ListComparator<Entry> diff;
+        synchronized (this) {
+            diff = diff(manifest);
+        }
+        // outside of the lock, the main thread takes it when downloads finish
+        final List<Entry> onDisk = checkExisting(diff.newObjects);
+        diff.newObjects.removeAll(onDisk);
+        diff.sameObjects.addAll(onDisk);
+        final List<FileDownloader.Download> downloads;
+        synchronized (this) {
+            downloads = withRecovered(schedule(diff, onDisk), recovered);
+        }
+        Log.i(TAG, "Sync of %d files: %d to download, %d deleted, %d ms", manifest.size(), downloads.size(),
+              diff.oldObjects.size(), System.currentTimeMillis() - start);
+        try {
+            download(downloads);
+        } catch (InsufficientSpaceException e) {
+            synchronized (this) {
+                mScheduled.clear();
+            }
+            throw e;
+        }
+        return diff;
+    }
+
+    /**
+     * Compares the manifest with the index and deletes the files that are gone from it.
+     */
+    private ListUtils.ListComparator<Entry> diff(Collection<Entry> manifest) {
+        final HashMap<String, Entry> index = getIndex();
+        final ListUtils.ListComparator<Entry> diff =
+                ListUtils.ListComparator.computeWithUpdatesHashed(index.values(), manifest);
+
+        for (Entry entry : diff.oldObjects) {
+            delete(entry);
+            index.remove(entry.path);
+        }
+        if (!diff.oldObjects.isEmpty()) saveIndex();
+        return diff;
+    }
+
+    /**
+     * @return The new entries whose file is on disk and complete. The files of the others are deleted, they are stale
+     * or partial.
+     */
+    private List<Entry> checkExisting(Collection<Entry> entries) {
+        final ArrayList<Entry> complete = new ArrayList<>();
+        for (Entry entry : entries) {
+            final File file = new File(mRoot, entry.path);
+            if (!file.exists()) continue;
+            if (isComplete(file, entry)) {
+                complete.add(entry);
+            } else {
+                delete(entry);
+            }
+        }
+        if (!complete.isEmpty()) Log.i(TAG, "%d new files were already on disk", complete.size());
+        return complete;
+    }
+
+    private static boolean isComplete(File file, Entry entry) {
+        if (entry.hash == null || file.length() != entry.size) return false;
+        try {
+            return entry.hash.equals(ContentHash.of(file, entry.hash.algorithm));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to hash " + file, e);
+            return false;
+        }
+    }
+
+    /**
+     * @param onDisk New entries whose files are already complete, to add to the index.
+     * @return The downloads of the files that are new, updated or not as expected on disk.
+     */
+    private List<FileDownloader.Download> schedule(ListUtils.ListComparator<Entry> diff, List<Entry> onDisk) {
+        final HashMap<String, Entry> index = getIndex();
+        boolean changed = !onDisk.isEmpty();
+        for (Entry entry : onDisk) index.put(entry.path, entry);
+
+        List<Entry> toDownload = new ArrayList<>(diff.newObjects);
+        //noinspection ConstantConditions
+        toDownload.addAll(diff.updatedObjects);
+        // the file changed since we got it or was deleted behind our back, there's nothing to keep
+        for (Entry entry : diff.sameObjects) {
+            if (new File(mRoot, entry.path).length() != entry.size) {
+                index.remove(entry.path);
+                delete(entry);
+                toDownload.add(entry);
+                changed = true;
+            }
+        }
+
+        List<FileDownloader.Download> downloads = new ArrayList<>(toDownload.size());
+        for (Entry entry : toDownload) {
+            if (entry.url == null) {
+                Log.w(TAG, "No url for " + entry.path);
+                continue;
+            }
+            final File file = new File(mRoot, entry.path);
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            // a complete update that wasn't swapped in may be of another version
+            final File update = new File(file.getAbsolutePath() + UPDATE_SUFFIX);
+            if (update.exists() && !update.delete()) Log.w(TAG, "Failed to delete " + update);
+            // the file we have stays in the index until the new one replaces it
+            final File target = file.exists() ? update : file;
+            final FileDownloader.Download download = new FileDownloader.Download(entry.url, target)
+                    .setExpectedSize(entry.size);
+            if (entry.hash != null) download.setExpectedHash(entry.hash.algorithm, entry.hash.hex);
+            downloads.add(download);
+            mScheduled.put(target, entry);
+        }
+        if (changed) saveIndex();
+        return downloads;
+    }
+
+    /**
+     * @return {@code downloads}, with the ones the journal recovered in place of the same downloads, to keep their
+     * progress. The recovered ones that aren't wanted anymore are dropped.
+     */
+    private static List<FileDownloader.Download> withRecovered(List<FileDownloader.Download> downloads,
+                                                               List<FileDownloader.Download> recovered) {
+        if (recovered.isEmpty()) return downloads;
+        final HashMap<File, FileDownloader.Download> byFile = new HashMap<>();
+        for (FileDownloader.Download download : recovered) byFile.put(download.file, download);
+        final ArrayList<FileDownloader.Download> result = new ArrayList<>(downloads.size());
+        for (FileDownloader.Download download : downloads) {
+            final FileDownloader.Download previous = byFile.get(download.file);
+            result.add(previous != null && previous.url.equals(download.url) &&
+                       previous.expectedSize == download.expectedSize &&
+                       (previous.expectedHash != null
+                        ? previous.expectedHash.equals(download.expectedHash)
+                        : download.expectedHash == null) ? previous : download);
+        }
+        return result;
+    }
+
+    /**
+     * Keeps the downloads that were finished in the index, as well.
+     */
+    @Override
+    public void cancel() {
+        super.cancel();
+        synchronized (this) {
+            if (mUnsaved > 0) saveIndex();
+        }
+    }
+
+    @Override
+    protected synchronized void onDownloadFinished(final FileDownloader.Download download, final boolean success) {
+        final Entry entry = mScheduled.remove(download.file);
+        // the last one is the one still counted as pending
+        final boolean last = getPendingCount() <= 1;
+        if (entry == null) {
+            if (last && mUnsaved > 0) saveIndex();
+            return;
+        }
+        sIndexWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                finished(download.file, entry, success, last);
+            }
+        });
+    }
+
+    /**
+     * Swaps in the file of an update and adds the entry to the index. On {@link #sIndexWriter}.
+     */
+    private void finished(File downloaded, Entry entry, boolean success, boolean last) {
+        final File file = new File(mRoot, entry.path);
+        final boolean done = success && (downloaded.equals(file) || swap(downloaded, file));
+        synchronized (this) {
+            if (done) {
+                mIndex.put(entry.path, entry);
+                mUnsaved++;
+            }
+            if (mUnsaved > 0 && (mUnsaved >= SAVE_EVERY || last)) saveIndex();
+        }
+    }
+
+    private static boolean swap(File update, File file) {
+        if (!update.renameTo(file)) {
+            Log.w(TAG, "Failed to rename " + update + " to " + file);
+            return false;
+        }
+        // the validator of the old version would revalidate the new one
+        final File metadata = DownloadMetadata.fileFor(file);
+        if (!DownloadMetadata.fileFor(update).renameTo(metadata) && metadata.exists() && !metadata.delete()) {
+            Log.w(TAG, "Failed to delete " + metadata);
+        }
+        return true;
+    }
+
+    private void delete(Entry entry) {
+        final File file = new File(mRoot, entry.path);
+        if (file.exists() && !file.delete()) Log.w(TAG, "Failed to delete " + file);
+    }
+
+    //region INDEX
+    private HashMap<String, Entry> getIndex() {
+        if (mIndex == null) mIndex = readIndex(mIndexFile);
+        return mIndex;
+    }
+
+    /**
+     * One line per file, with its URL-encoded path, size, hash (or nothing) and version, separated by spaces.
+     */
+    static HashMap<String, Entry> readIndex(File file) {
+        final HashMap<String, Entry> index = new HashMap<>();
+        if (!file.exists()) return index;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ", -1);
+                try {
+                    final String path = URLDecoder.decode(fields[0], "UTF-8");
+                    index.put(path, new Entry(path, Long.parseLong(fields[1]), ContentHash.parse(fields[2]),
+                                              Long.parseLong(fields[3]), null));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Ignoring bad line in " + file + ": " + line);
+                }
+            }
+        } catch (IOException e) {
+            // everything will be checked again
+            Log.w(TAG, "Failed to read " + file, e);
+            index.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {}
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Writes a copy of the index on {@link #sIndexWriter}. Call it with the monitor held.
+     */
+    private void saveIndex() {
+        final ArrayList<Entry> entries = new ArrayList<>(mIndex.values());
+        mUnsaved = 0;
+        sIndexWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    writeIndex(mIndexFile, entries);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save " + mIndexFile, e);
+                }
+            }
+        });
+    }
+
+    static void writeIndex(File file, Collection<Entry> entries) throws IOException {
+        final File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        final FileOutputStream output = new FileOutputStream(tempFile);
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+            for (Entry entry : entries) {
+                writer.write(URLEncoder.encode(entry.path, "UTF-8"));
+                writer.write(' ');
+                writer.write(String.valueOf(entry.size));
+                writer.write(' ');
+                if (entry.hash != null) writer.write(entry.hash.toString());
+                writer.write(' ');
+                writer.write(String.valueOf(entry.version));
+                writer.write('\n');
+            }
+            writer.flush();
+            output.getFD().sync();
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(file)) throw new IOException("Failed to rename " + tempFile + " to " + file);
+    }
+    //endregion
+}
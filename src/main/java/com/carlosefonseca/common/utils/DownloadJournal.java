@@ -0,0 +1,381 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.carlosefonseca.common.utils.CodeUtils.getTag;
+
+/**
+ * Append-only log of the downloads of {@link FileDownloader}, so that a sync interrupted by the process being killed
+ * can continue on the next launch instead of starting over.
+ * <p/>
+ * Each line is a record about a file: queued (with everything needed to recreate the {@link FileDownloader.Download},
+ * including the name of its {@link DownloadSession}), started, segment finished or done. Writes are buffered and
+ * synced to disk in batches on a thread of the journal, at most {@link #SYNC_INTERVAL_MILLIS} after being made, as
+ * they are made while downloads are queued, maybe on the UI thread. Losing the last records in a crash is harmless: a
+ * download that was done is found on disk and skipped, and one that wasn't journaled yet is queued again by the app.
+ * <p/>
+ * The file is compacted when opened and truncated when nothing is pending.
+ */
+public final class DownloadJournal {
+    private static final String TAG = getTag(DownloadJournal.class);
+
+    static final int SYNC_BATCH = 64;
+    static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private static final String QUEUED = "Q";
+    private static final String STARTED = "S";
+    private static final String SEGMENT = "G";
+    private static final String DONE = "D";
+
+    private final File mFile;
+    /** What the log says is still to do, by file path, in the order it was queued. */
+    private final LinkedHashMap<String, Record> mPending = new LinkedHashMap<>();
+    private final ScheduledThreadPoolExecutor mSyncExecutor = new ScheduledThreadPoolExecutor(1);
+    private FileOutputStream mOutput;
+    private Writer mWriter;
+    private int mUnsynced;
+    private boolean mSyncScheduled;
+    private boolean mSyncNow;
+
+    /**
+     * Opens the journal, creating it if needed.
+     *
+     * @throws IOException If it can't be written.
+     */
+    public DownloadJournal(File file) throws IOException {
+        mFile = file;
+        // close() syncs anyway
+        mSyncExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        if (file.exists()) replay();
+        compact();
+    }
+
+    //region RECORDING
+    synchronized void queued(FileDownloader.Download download) {
+        // e.g. resumed from this journal: keep what we know about its progress
+        final Record previous = mPending.get(download.file.getAbsolutePath());
+        if (previous != null && previous.url.equals(download.url)) return;
+
+        final Record record = new Record(download);
+        mPending.put(record.path, record);
+        appendQueued(record);
+    }
+
+    synchronized void started(FileDownloader.Download download) {
+        final Record record = mPending.get(download.file.getAbsolutePath());
+        if (record == null || record.started) return;
+        record.started = true;
+        append(STARTED, record.path);
+    }
+
+    synchronized void segmentFinished(FileDownloader.Download download, int index, int count, String etag) {
+        final Record record = mPending.get(download.file.getAbsolutePath());
+        if (record == null) return;
+        record.segmentFinished(index, count, etag);
+        append(SEGMENT, record.path, String.valueOf(index), String.valueOf(count), etag);
+    }
+
+    synchronized void done(FileDownloader.Download download) {
+        final String path = download.file.getAbsolutePath();
+        if (mPending.remove(path) == null) return;
+        if (mPending.isEmpty()) {
+            // nothing to remember: start a fresh file instead of growing this one forever
+            compactLater();
+        } else {
+            append(DONE, path);
+        }
+    }
+
+    /**
+     * Forgets everything, e.g. because the downloads were canceled.
+     */
+    public synchronized void clear() {
+        mPending.clear();
+        compactLater();
+    }
+    //endregion
+
+    /**
+     * @return The downloads that were queued but not done, the ones that had started first.
+     */
+    public synchronized List<FileDownloader.Download> getPending() {
+        List<FileDownloader.Download> started = new ArrayList<>();
+        List<FileDownloader.Download> queued = new ArrayList<>();
+        for (Record record : mPending.values()) (record.started ? started : queued).add(record.toDownload());
+        started.addAll(queued);
+        return started;
+    }
+
+    /**
+     * Writes what is buffered and waits for it to reach the disk. Only the write holds the journal, so recording isn't
+     * blocked by the disk.
+     */
+    public void sync() {
+        final FileOutputStream output;
+        synchronized (this) {
+            if (mWriter == null || mUnsynced == 0) return;
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write " + mFile, e);
+                return;
+            }
+            output = mOutput;
+            mUnsynced = 0;
+        }
+        try {
+            output.getFD().sync();
+        } catch (IOException e) {
+            // e.g. closed by a compaction, which synced the new file itself
+            Log.w(TAG, "Failed to sync " + mFile, e);
+        }
+    }
+
+    /**
+     * Waits for any pending compaction and writes everything to disk.
+     */
+    public void close() {
+        mSyncExecutor.shutdown();
+        try {
+            mSyncExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            sync();
+            try {
+                if (mWriter != null) mWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            mWriter = null;
+        }
+    }
+
+    /**
+     * Compacts on the sync thread, as this may be called from the UI thread.
+     */
+    private void compactLater() {
+        if (mWriter == null) return;
+        mSyncExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (DownloadJournal.this) {
+                    if (mWriter == null) return; // closed
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to compact " + mFile, e);
+                    }
+                }
+            }
+        });
+    }
+
+    private void append(String... fields) {
+        if (mWriter == null) return;
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) mWriter.write(' ');
+                mWriter.write(URLEncoder.encode(fields[i], "UTF-8"));
+            }
+            mWriter.write('\n');
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to " + mFile, e);
+            return;
+        }
+        // never synced here: records are made while FileDownloader holds its registration lock
+        if (++mUnsynced >= SYNC_BATCH) {
+            if (mSyncNow) return;
+            mSyncNow = true;
+            mSyncExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DownloadJournal.this) {
+                        mSyncNow = false;
+                    }
+                    sync();
+                }
+            });
+        } else if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            mSyncExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (DownloadJournal.this) {
+                        mSyncScheduled = false;
+                    }
+                    sync();
+                }
+            }, SYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void appendQueued(Record record) {
+        append(QUEUED, record.path, record.url, record.priority.name(), String.valueOf(record.segments),
+               String.valueOf(record.revalidate), record.expectedHash != null ? record.expectedHash.toString() : "",
+               record.networkPolicy.name(), String.valueOf(record.unzip), String.valueOf(record.expectedSize),
+               record.sessionName != null ? record.sessionName : "");
+    }
+
+    /**
+     * Rebuilds the pending downloads from the log. A torn last line (the process died while writing it) is ignored.
+     */
+    private void replay() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                try {
+                    for (int i = 0; i < fields.length; i++) fields[i] = URLDecoder.decode(fields[i], "UTF-8");
+                    replay(fields);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Ignoring bad record in " + mFile + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        Log.i(TAG, "%d pending downloads in %s", mPending.size(), mFile.getName());
+    }
+
+    private void replay(String[] fields) {
+        final String path = fields[1];
+        switch (fields[0]) {
+            case QUEUED:
+                mPending.put(path, new Record(path, fields[2], FileDownloader.Priority.valueOf(fields[3]),
+                                              Integer.parseInt(fields[4]), Boolean.parseBoolean(fields[5]),
+                                              fields.length > 6 ? ContentHash.parse(fields[6]) : null,
+                                              fields.length > 7
+                                              ? FileDownloader.NetworkPolicy.valueOf(fields[7])
+                                              : FileDownloader.NetworkPolicy.ANY,
+                                              fields.length > 8 && Boolean.parseBoolean(fields[8]),
+                                              fields.length > 9 ? Long.parseLong(fields[9]) : -1,
+                                              fields.length > 10 && !fields[10].isEmpty() ? fields[10] : null));
+                break;
+            case STARTED:
+                if (mPending.containsKey(path)) mPending.get(path).started = true;
+                break;
+            case SEGMENT:
+                if (mPending.containsKey(path)) {
+                    mPending.get(path).segmentFinished(Integer.parseInt(fields[2]), Integer.parseInt(fields[3]),
+                                                       fields[4]);
+                }
+                break;
+            case DONE:
+                mPending.remove(path);
+                break;
+            default:
+                throw new IllegalArgumentException(fields[0]);
+        }
+    }
+
+    /**
+     * Replaces the log with just the records of the pending downloads.
+     */
+    private void compact() throws IOException {
+        if (mWriter != null) mWriter.close();
+        mWriter = null;
+
+        final File tempFile = new File(mFile.getAbsolutePath() + ".tmp");
+        mOutput = new FileOutputStream(tempFile);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOutput, "UTF-8"));
+        for (Record record : mPending.values()) {
+            appendQueued(record);
+            if (record.started) append(STARTED, record.path);
+            final BitSet segments = record.finishedSegments;
+            if (segments != null) {
+                for (int i = segments.nextSetBit(0); i >= 0; i = segments.nextSetBit(i + 1)) {
+                    append(SEGMENT, record.path, String.valueOf(i), String.valueOf(record.segmentCount),
+                           record.segmentsEtag);
+                }
+            }
+        }
+        mWriter.flush();
+        mOutput.getFD().sync();
+        mUnsynced = 0;
+        mWriter.close();
+        if (!tempFile.renameTo(mFile)) throw new IOException("Failed to rename " + tempFile + " to " + mFile);
+
+        mOutput = new FileOutputStream(mFile, true);
+        mWriter = new BufferedWriter(new OutputStreamWriter(mOutput, "UTF-8"));
+    }
+
+    private static final class Record {
+        final String path;
+        final String url;
+        final FileDownloader.Priority priority;
+        final int segments;
+        final boolean revalidate;
+        @Nullable final ContentHash expectedHash;
+        final FileDownloader.NetworkPolicy networkPolicy;
+        final boolean unzip;
+        final long expectedSize;
+        /** The name of the session it belonged to, if it had a name. */
+        @Nullable final String sessionName;
+        boolean started;
+        @Nullable BitSet finishedSegments;
+        int segmentCount;
+        String segmentsEtag;
+
+        Record(String path, String url, FileDownloader.Priority priority, int segments, boolean revalidate,
+               @Nullable ContentHash expectedHash, FileDownloader.NetworkPolicy networkPolicy, boolean unzip,
+               long expectedSize, @Nullable String sessionName) {
+            this.path = path;
+            this.url = url;
+            this.priority = priority;
+            this.segments = segments;
+            this.revalidate = revalidate;
+            this.expectedHash = expectedHash;
+            this.networkPolicy = networkPolicy;
+            this.unzip = unzip;
+            this.expectedSize = expectedSize;
+            this.sessionName = sessionName;
+        }
+
+        Record(FileDownloader.Download download) {
+            this(download.file.getAbsolutePath(), download.url, download.priority, download.segments,
+                 download.revalidate, download.expectedHash, download.networkPolicy, download.unzip,
+                 download.expectedSize, download.session != null ? download.session.getName() : null);
+        }
+
+        void segmentFinished(int index, int count, String etag) {
+            // segments of another version of the file are useless
+            if (finishedSegments == null || count != segmentCount || !etag.equals(segmentsEtag)) {
+                finishedSegments = new BitSet(count);
+                segmentCount = count;
+                segmentsEtag = etag;
+            }
+            finishedSegments.set(index);
+        }
+
+        FileDownloader.Download toDownload() {
+            FileDownloader.Download download = new FileDownloader.Download(url, new File(path))
+                    .setPriority(priority)
+                    .setSegments(segments)
+                    .setRevalidate(revalidate)
+                    .setNetworkPolicy(networkPolicy)
+                    .setUnzip(unzip)
+                    .setExpectedSize(expectedSize);
+            download.expectedHash = expectedHash;
+            download.sessionName = sessionName;
+            if (finishedSegments != null) {
+                download.finishedSegments = (BitSet) finishedSegments.clone();
+                download.segmentCount = segmentCount;
+                download.segmentsEtag = segmentsEtag;
+            }
+            return download;
+        }
+    }
+}
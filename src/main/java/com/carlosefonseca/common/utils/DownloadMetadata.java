@@ -0,0 +1,117 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+
+import java.io.*;
+import java.net.URLConnection;
+import java.util.Properties;
+
+import static com.carlosefonseca.common.utils.CodeUtils.getTag;
+
+/**
+ * What we know about the server version of a downloaded file, stored next to it in {@code <file>.meta}. Used by
+ * {@link FileDownloader} to revalidate the file with a conditional request instead of downloading it again.
+ */
+public final class DownloadMetadata {
+    private static final String TAG = getTag(DownloadMetadata.class);
+    private static final String SUFFIX = ".meta";
+
+    @Nullable public final String etag;
+    @Nullable public final String lastModified;
+    public final long length;
+    /** {@link ContentHash} of the content, e.g. "CRC32:1a2b3c4d", or null if unknown. */
+    @Nullable public final String checksum;
+
+    public DownloadMetadata(@Nullable String etag, @Nullable String lastModified, long length, @Nullable String checksum) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.checksum = checksum;
+    }
+
+    static DownloadMetadata from(URLConnection connection, long length, @Nullable String checksum) {
+        return new DownloadMetadata(connection.getHeaderField("ETag"),
+                                    connection.getHeaderField("Last-Modified"),
+                                    length,
+                                    checksum);
+    }
+
+    public static File fileFor(File file) {
+        return new File(file.getAbsolutePath() + SUFFIX);
+    }
+
+    /**
+     * @return The metadata stored for {@code file} or null if there's none or it can't be read.
+     */
+    @Nullable
+    public static DownloadMetadata read(File file) {
+        final File metaFile = fileFor(file);
+        if (!metaFile.exists()) return null;
+
+        Properties properties = new Properties();
+        InputStream input = null;
+        try {
+            input = new FileInputStream(metaFile);
+            properties.load(input);
+            return new DownloadMetadata(properties.getProperty("etag"),
+                                        properties.getProperty("lastModified"),
+                                        Long.parseLong(properties.getProperty("length", "-1")),
+                                        properties.getProperty("checksum"));
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Failed to read " + metaFile + ": " + e.getMessage());
+            return null;
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores this metadata for {@code file}, replacing any previous one.
+     */
+    public void write(File file) throws IOException {
+        Properties properties = new Properties();
+        if (etag != null) properties.setProperty("etag", etag);
+        if (lastModified != null) properties.setProperty("lastModified", lastModified);
+        properties.setProperty("length", String.valueOf(length));
+        if (checksum != null) properties.setProperty("checksum", checksum);
+
+        final File metaFile = fileFor(file);
+        final File tempFile = new File(metaFile.getAbsolutePath() + ".tmp");
+        OutputStream output = new FileOutputStream(tempFile);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+        if (!tempFile.renameTo(metaFile)) throw new IOException("Failed to rename " + tempFile + " to " + metaFile);
+    }
+
+    /**
+     * @return Whether this metadata can be used to revalidate {@code file}: it must have a validator and the file must
+     * still have the length it was downloaded with. For the directory of an extracted archive only the validator is
+     * needed.
+     */
+    boolean canRevalidate(File file) {
+        return (etag != null || lastModified != null) && (file.isDirectory() || length == file.length());
+    }
+
+    /**
+     * Adds the If-None-Match/If-Modified-Since headers to a request.
+     */
+    void addConditionalHeaders(URLConnection connection) {
+        if (etag != null) connection.setRequestProperty("If-None-Match", etag);
+        if (lastModified != null) connection.setRequestProperty("If-Modified-Since", lastModified);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadMetadata{etag=" + etag + ", lastModified=" + lastModified + ", length=" + length +
+               ", checksum=" + checksum + "}";
+    }
+}
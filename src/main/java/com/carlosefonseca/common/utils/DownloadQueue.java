@@ -0,0 +1,346 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.NonNull;
+import com.carlosefonseca.common.utils.FileDownloader.Download;
+import com.carlosefonseca.common.utils.FileDownloader.Priority;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Work queue for the {@link FileDownloader} thread pool. Keeps one bounded queue per {@link Priority} and always hands
+ * out the most important task first. {@link Priority#VISIBLE} tasks are served newest first, since the latest request is
+ * the one the user is looking at; when that queue is full its oldest task is demoted to {@link Priority#HIGH}.
+ * <p/>
+ * Tasks that aren't wrapped in an {@link Entry} are treated as {@link Priority#NORMAL}.
+ */
+final class DownloadQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+    private final Condition mNotFull = mLock.newCondition();
+    private final List<ArrayDeque<Runnable>> mQueues = new ArrayList<>(PRIORITIES.length);
+    private final int[] mCapacities = new int[PRIORITIES.length];
+    private int mCount;
+
+    /**
+     * @param capacity The capacity of the {@link Priority#NORMAL} and {@link Priority#BACKGROUND} queues. The other ones
+     *                 are smaller, as they are meant for few, user facing, downloads.
+     */
+    DownloadQueue(int capacity) {
+        for (Priority priority : PRIORITIES) {
+            mQueues.add(new ArrayDeque<Runnable>());
+            mCapacities[priority.ordinal()] = priority.ordinal() < Priority.NORMAL.ordinal()
+                                              ? Math.max(1, capacity / 8)
+                                              : capacity;
+        }
+    }
+
+    /**
+     * A task tagged with the download it works on, so it can be ranked and found again.
+     */
+    static final class Entry implements Runnable {
+        final Download download;
+        final Runnable task;
+        Priority priority;
+
+        Entry(Download download, Runnable task) {
+            this.download = download;
+            this.task = task;
+            this.priority = download.priority;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static Priority priorityOf(Runnable runnable) {
+        return runnable instanceof Entry ? ((Entry) runnable).priority : Priority.NORMAL;
+    }
+
+    /**
+     * Moves the queued tasks of {@code download} to another priority, e.g. every segment of a segmented download. Tasks
+     * already running are not affected, nor those that don't fit in the queue of the new priority.
+     *
+     * @return true if a queued task was found and moved.
+     */
+    boolean reprioritize(Download download, Priority priority) {
+        mLock.lock();
+        try {
+            download.priority = priority;
+            // collected first: moving to VISIBLE can demote into HIGH, which may be the queue being iterated
+            final List<Entry> entries = new ArrayList<>();
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                for (Runnable runnable : queue) {
+                    if (runnable instanceof Entry && ((Entry) runnable).download.equals(download) &&
+                        ((Entry) runnable).priority != priority) {
+                        entries.add((Entry) runnable);
+                    }
+                }
+            }
+            boolean moved = false;
+            for (Entry entry : entries) {
+                if (!hasRoom(priority)) break;
+                mQueues.get(entry.priority.ordinal()).remove(entry);
+                mCount--;
+                entry.priority = priority;
+                moved |= insert(entry);
+            }
+            return moved;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Per priority queue sizes, most important first.
+     */
+    int[] sizes() {
+        mLock.lock();
+        try {
+            int[] sizes = new int[PRIORITIES.length];
+            for (int i = 0; i < sizes.length; i++) sizes[i] = mQueues.get(i).size();
+            return sizes;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    //region Insertion and removal, with the lock held
+
+    private boolean insert(Runnable runnable) {
+        final Priority priority = priorityOf(runnable);
+        final ArrayDeque<Runnable> queue = mQueues.get(priority.ordinal());
+        if (!hasRoom(priority)) return false;
+        if (!isBelowCapacity(priority)) demoteOldestVisible();
+        if (priority == Priority.VISIBLE) {
+            queue.addFirst(runnable);
+        } else {
+            queue.addLast(runnable);
+        }
+        mCount++;
+        mNotEmpty.signal();
+        return true;
+    }
+
+    private boolean hasRoom(Priority priority) {
+        return isBelowCapacity(priority) || priority == Priority.VISIBLE && isBelowCapacity(Priority.HIGH);
+    }
+
+    private boolean isBelowCapacity(Priority priority) {
+        return mQueues.get(priority.ordinal()).size() < mCapacities[priority.ordinal()];
+    }
+
+    private void demoteOldestVisible() {
+        final ArrayDeque<Runnable> high = mQueues.get(Priority.HIGH.ordinal());
+        final Runnable oldest = mQueues.get(Priority.VISIBLE.ordinal()).pollLast();
+        if (oldest instanceof Entry) ((Entry) oldest).priority = Priority.HIGH;
+        // it was waiting for longer than anything else in there
+        high.addFirst(oldest);
+    }
+
+    private Runnable extract() {
+        for (ArrayDeque<Runnable> queue : mQueues) {
+            final Runnable runnable = queue.pollFirst();
+            if (runnable != null) {
+                mCount--;
+                mNotFull.signalAll();
+                return runnable;
+            }
+        }
+        return null;
+    }
+    //endregion
+
+    //region BlockingQueue
+
+    @Override
+    public boolean offer(@NonNull Runnable runnable) {
+        mLock.lock();
+        try {
+            return insert(runnable);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(@NonNull Runnable runnable) throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (!insert(runnable)) mNotFull.await();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (!insert(runnable)) {
+                if (nanos <= 0) return false;
+                nanos = mNotFull.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        mLock.lock();
+        try {
+            return extract();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @NonNull
+    @Override
+    public Runnable take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) mNotEmpty.await();
+            return extract();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, @NonNull TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            while (mCount == 0) {
+                if (nanos <= 0) return null;
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return extract();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        mLock.lock();
+        try {
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                if (!queue.isEmpty()) return queue.peekFirst();
+            }
+            return null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        mLock.lock();
+        try {
+            int capacity = 0;
+            for (int capacityOfQueue : mCapacities) capacity += capacityOfQueue;
+            return capacity - mCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            for (ArrayDeque<Runnable> queue : mQueues) {
+                if (queue.remove(o)) {
+                    mCount--;
+                    mNotFull.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(@NonNull Collection<? super Runnable> c, int maxElements) {
+        mLock.lock();
+        try {
+            int n = 0;
+            Runnable runnable;
+            while (n < maxElements && (runnable = extract()) != null) {
+                c.add(runnable);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Iterates over a snapshot, in the order the tasks would be taken.
+     */
+    @NonNull
+    @Override
+    public Iterator<Runnable> iterator() {
+        final List<Runnable> snapshot;
+        mLock.lock();
+        try {
+            snapshot = new ArrayList<>(mCount);
+            for (ArrayDeque<Runnable> queue : mQueues) snapshot.addAll(queue);
+        } finally {
+            mLock.unlock();
+        }
+        final Iterator<Runnable> iterator = snapshot.iterator();
+        return new Iterator<Runnable>() {
+            Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                return mLast = iterator.next();
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) throw new IllegalStateException();
+                DownloadQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+    //endregion
+}
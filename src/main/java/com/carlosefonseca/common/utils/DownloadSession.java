@@ -0,0 +1,238 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+import org.apache.commons.collections4.CollectionUtils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A batch of downloads with its own notifier, counters, concurrency limit and cancellation, so that independent syncs
+ * (e.g. map tiles and audio guides) can be followed and canceled separately. The downloads still run on the shared
+ * {@link FileDownloader} pool, which is left alone when a session is canceled.
+ * <p/>
+ * The static {@link FileDownloader} methods work as before, outside of any session.
+ * <p/>
+ * A session with a name gets back its downloads that the journal recovered after the app was killed (see
+ * {@link FileDownloader#openJournal(java.io.File)} and {@link #resume()}). Those of a session without a name come back
+ * as static downloads.
+ */
+public class DownloadSession {
+    private static final String TAG = CodeUtils.getTag(DownloadSession.class);
+
+    /**
+     * Identifies the downloads started before a {@link #cancel()}: each one keeps the token that was current when it
+     * was added, and stops as soon as it sees it canceled.
+     */
+    static final class Token {
+        volatile boolean canceled;
+    }
+
+    @Nullable private final String mName;
+    private final int mMaxConcurrent;
+    private volatile FileDownloader.FileDownloaderNotifier mNotifier;
+    private volatile Token mToken = new Token();
+
+    /** Downloads added and not finished, including retries and those waiting for the network. */
+    final AtomicInteger mCount = new AtomicInteger();
+    private final AtomicLong mBytes = new AtomicLong();
+    private final AtomicInteger mSucceeded = new AtomicInteger();
+    private final AtomicInteger mFailed = new AtomicInteger();
+    volatile long mLastProgressBytes;
+
+    /** Runs queued on the pool or running. Guarded by this. */
+    private int mRunning;
+    /** Downloads waiting for a free slot. Guarded by this. */
+    private final ArrayDeque<FileDownloader.Download> mWaiting = new ArrayDeque<>();
+    /** Disk space reserved for the downloads with an expected size that aren't finished. Guarded by this. */
+    private long mReservedBytes;
+
+    /**
+     * @param maxConcurrent How many of the session's downloads may be queued on the pool or running at once.
+     * @param notifier      Gets the notifications of this session only. May be a
+     *                      {@link FileDownloader.FileDownloaderProgressNotifier}.
+     */
+    public DownloadSession(int maxConcurrent, @Nullable FileDownloader.FileDownloaderNotifier notifier) {
+        this(null, maxConcurrent, notifier);
+    }
+
+    /**
+     * @param name Identifies the session in the journal, the same on every launch. Only one live session may have it.
+     * @see #DownloadSession(int, FileDownloader.FileDownloaderNotifier)
+     */
+    public DownloadSession(@Nullable String name, int maxConcurrent,
+                           @Nullable FileDownloader.FileDownloaderNotifier notifier) {
+        mName = name;
+        mMaxConcurrent = Math.max(1, maxConcurrent);
+        mNotifier = notifier != null ? notifier : new FileDownloader.Notification();
+        FileDownloader.addSession(this);
+    }
+
+    @Nullable
+    public String getName() {
+        return mName;
+    }
+
+    public FileDownloader.FileDownloaderNotifier getNotifier() {
+        return mNotifier;
+    }
+
+    public void setNotifier(FileDownloader.FileDownloaderNotifier notifier) {
+        mNotifier = notifier;
+    }
+
+    /**
+     * Adds downloads to this session. A download can only belong to one session.
+     * <p/>
+     * The space for the downloads with an {@link FileDownloader.Download#setExpectedSize(long) expected size} is
+     * reserved up front, for the whole batch.
+     *
+     * @throws InsufficientSpaceException If the batch doesn't fit on the disk. None of the downloads is started.
+     */
+    public void download(Collection<FileDownloader.Download> downloads) throws InsufficientSpaceException {
+        if (CollectionUtils.isEmpty(downloads)) return;
+        long bytes = 0;
+        for (FileDownloader.Download download : downloads) if (download.expectedSize > 0) bytes += download.expectedSize;
+        if (bytes > 0) {
+            synchronized (this) {
+                FileDownloader.reserveSpace(this, downloads.iterator().next().file, mReservedBytes + bytes);
+                mReservedBytes += bytes;
+            }
+        }
+        final Token token = mToken;
+        for (FileDownloader.Download download : downloads) {
+            download.session = this;
+            download.token = token;
+        }
+        if (mCount.getAndAdd(downloads.size()) == 0) {
+            mLastProgressBytes = mBytes.get();
+            mNotifier.start(mCount.get());
+        }
+        FileDownloader.downloadSession(downloads);
+    }
+
+    /**
+     * Continues the downloads of this session that the journal recovered, in this session, with its notifier and space
+     * reservation. Call it once the session is ready to hear about them.
+     *
+     * @return How many there were.
+     * @throws InsufficientSpaceException If they don't fit on the disk. They are dropped.
+     */
+    public int resume() throws InsufficientSpaceException {
+        final List<FileDownloader.Download> recovered = takeRecovered();
+        download(recovered);
+        return recovered.size();
+    }
+
+    /**
+     * @return The downloads of this session that the journal recovered and weren't taken yet, to add them to this
+     * session or drop them.
+     */
+    protected List<FileDownloader.Download> takeRecovered() {
+        return FileDownloader.takeRecovered(mName);
+    }
+
+    /**
+     * Stops the downloads of this session: queued ones don't start, running ones stop at the next chunk (keeping their
+     * partial files, so they can be resumed later) and pending retries are dropped. Other sessions and the static
+     * downloads are not affected. The session can be used again afterwards.
+     */
+    public void cancel() {
+        final Token token = mToken;
+        mToken = new Token();
+        token.canceled = true;
+        final List<FileDownloader.Download> waiting;
+        synchronized (this) {
+            waiting = new ArrayList<>(mWaiting);
+            mWaiting.clear();
+            mRunning = 0;
+            mReservedBytes = 0;
+            FileDownloader.releaseSpace(this);
+        }
+        FileDownloader.cancelSession(this, waiting);
+        mCount.set(0);
+        Log.i(TAG, "Session canceled");
+        mNotifier.canceled();
+    }
+
+    /**
+     * @return The downloads added and not finished yet.
+     */
+    public int getPendingCount() {
+        return mCount.get();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning;
+    }
+
+    /**
+     * @return Bytes received by the downloads of this session.
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    public int getSucceededCount() {
+        return mSucceeded.get();
+    }
+
+    public int getFailedCount() {
+        return mFailed.get();
+    }
+
+    //region FileDownloader
+    /**
+     * Takes a slot to run a download.
+     *
+     * @return false if there's none; the download will be returned by {@link #release(FileDownloader.Download)} when there is.
+     */
+    synchronized boolean acquire(FileDownloader.Download download) {
+        if (mRunning >= mMaxConcurrent) {
+            mWaiting.add(download);
+            return false;
+        }
+        mRunning++;
+        return true;
+    }
+
+    /**
+     * Frees the slot of a run that ended. Runs from before a {@link #cancel()} had their slots freed by it.
+     *
+     * @return A waiting download that now has the slot, or null.
+     */
+    @Nullable
+    synchronized FileDownloader.Download release(FileDownloader.Download download) {
+        if (download.token != mToken) return null;
+        final FileDownloader.Download next = mWaiting.poll();
+        if (next == null) mRunning--;
+        return next;
+    }
+
+    void onBytes(int bytes) {
+        mBytes.addAndGet(bytes);
+    }
+
+    void onFinished(FileDownloader.Download download, boolean success) {
+        (success ? mSucceeded : mFailed).incrementAndGet();
+        if (download.expectedSize > 0) {
+            synchronized (this) {
+                // it's on the disk now, or won't be
+                mReservedBytes = Math.max(0, mReservedBytes - download.expectedSize);
+                FileDownloader.updateReservation(this, mReservedBytes);
+            }
+        }
+        onDownloadFinished(download, success);
+    }
+    //endregion
+
+    /**
+     * Called on the main thread when a download of this session is over, after any retries, before the notifier is
+     * updated.
+     */
+    protected void onDownloadFinished(FileDownloader.Download download, boolean success) {}
+}
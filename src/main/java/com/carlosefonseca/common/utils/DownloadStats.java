@@ -0,0 +1,101 @@
+package com.carlosefonseca.common.utils;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A snapshot of how the {@link FileDownloader} downloads are going, sent to
+ * {@link FileDownloader.FileDownloaderProgressNotifier#stats(DownloadStats)}.
+ */
+public final class DownloadStats {
+    /** Bytes received since the downloads started. */
+    public final long bytes;
+    /** Average speed since the previous snapshot. */
+    public final long bytesPerSecond;
+    /** Downloads currently receiving data. */
+    public final int activeDownloads;
+    /** Time to first byte (until the response headers arrive) per host. */
+    public final Map<String, LatencyHistogram> latencyByHost;
+
+    DownloadStats(long bytes, long bytesPerSecond, int activeDownloads, Map<String, LatencyHistogram> latencyByHost) {
+        this.bytes = bytes;
+        this.bytesPerSecond = bytesPerSecond;
+        this.activeDownloads = activeDownloads;
+        this.latencyByHost = Collections.unmodifiableMap(latencyByHost);
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadStats{" + CodeUtils.getKB(bytes) + " kB, " + CodeUtils.getKB(bytesPerSecond) + " kB/s, " +
+               activeDownloads + " active, latency=" + latencyByHost + "}";
+    }
+
+    /**
+     * Counts of latencies in fixed buckets. Thread-safe.
+     */
+    public static final class LatencyHistogram {
+        /** Upper bounds of the buckets, in milliseconds. The last bucket has everything above the last bound. */
+        public static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000};
+
+        private final long[] mCounts;
+
+        public LatencyHistogram() {
+            mCounts = new long[BOUNDS.length + 1];
+        }
+
+        private LatencyHistogram(long[] counts) {
+            mCounts = counts;
+        }
+
+        public synchronized void record(long millis) {
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i]) i++;
+            mCounts[i]++;
+        }
+
+        public synchronized long[] getCounts() {
+            return mCounts.clone();
+        }
+
+        public synchronized long getCount() {
+            long count = 0;
+            for (long c : mCounts) count += c;
+            return count;
+        }
+
+        /**
+         * @param percentile 0 to 100.
+         * @return The upper bound of the bucket where the percentile falls, or {@link Long#MAX_VALUE} if it's the last.
+         */
+        public synchronized long getPercentile(double percentile) {
+            final long count = getCount();
+            if (count == 0) return 0;
+            final double target = count * percentile / 100d;
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += mCounts[i];
+                if (seen >= target) return BOUNDS[i];
+            }
+            return Long.MAX_VALUE;
+        }
+
+        synchronized LatencyHistogram copy() {
+            return new LatencyHistogram(mCounts.clone());
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "p50<=" + getPercentile(50) + "ms p99<=" + getPercentile(99) + "ms " + Arrays.toString(mCounts);
+        }
+    }
+
+    static Map<String, LatencyHistogram> copy(Map<String, LatencyHistogram> histograms) {
+        Map<String, LatencyHistogram> copy = new HashMap<>(histograms.size());
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().copy());
+        }
+        return copy;
+    }
+}
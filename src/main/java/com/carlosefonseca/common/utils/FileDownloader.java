@@ -3,19 +3,54 @@ package com.carlosefonseca.common.utils;
 import android.annotation.TargetApi;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.StatFs;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import com.carlosefonseca.common.CFApp;
 import org.apache.commons.collections4.CollectionUtils;
+import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
 
 public final class FileDownloader {
     private static final String TAG = CodeUtils.getTag(FileDownloader.class);
@@ -25,19 +60,42 @@ public final class FileDownloader {
     private static final int MAX_POOL_SIZE = CPU_COUNT * 2 + 1;
     private static final long KEEP_ALIVE_TIME = 1L;
     private static final int MAX_QUEUE_SIZE = 2048;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    static final long MIN_SEGMENT_SIZE = 512 * 1024;
+    /** Bigger error or discarded bodies aren't read to the end to keep their connections: they're closed instead. */
+    static final long MAX_DRAIN_BYTES = 64 * 1024;
     private static ThreadPoolExecutor sThreadPoolExecutor;
 
+    static {
+        // keep an idle connection for each download thread (the default is 5), so that a sync doesn't reconnect. Only
+        // works if no HTTP connection was made before.
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(MAX_POOL_SIZE));
+        }
+    }
+
     public static AtomicInteger sDownloadCount = new AtomicInteger();
 
     private static boolean cancelAll;
 
     private FileDownloader() {}
 
+    /**
+     * Stops everything, including the downloads of every {@link DownloadSession}, by shutting down the pool. To stop
+     * just some downloads, use a session and {@link DownloadSession#cancel()}.
+     */
     public static void cancelAll() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             getThreadPoolExecutor().shutdownNow();
         }
         cancelAll = true;
+        for (DownloadSession session : getSessions()) session.cancel();
+        cancelRetries();
+        synchronized (sInFlight) {
+            sInFlight.clear();
+        }
+        final DownloadJournal journal = sJournal;
+        if (journal != null) journal.clear();
         sNotifier.canceled();
         sDownloadCount.set(0);
     }
@@ -50,44 +108,83 @@ public final class FileDownloader {
 //            Log.v(TAG, uri);
         download.tries++;
 
-        if (Thread.currentThread().isInterrupted()) return path.getName();
+        if (Thread.currentThread().isInterrupted() || isCanceled(download)) return path.getName();
+        download.paused = false;
+        if (!isNetworkAllowed(download)) {
+            download.tries--;
+            waitForNetwork(download);
+            return path.getName();
+        }
+        final DownloadJournal journal = sJournal;
+        if (journal != null) journal.started(download);
+
+        if (download.unzip) restoreSwapped(path);
 
+        // a file we already have is only checked with the server if asked to and if we have a validator for it
+        DownloadMetadata stored = null;
         if (path.exists()) {
-            return null;
+            if (!download.revalidate) return null;
+            stored = DownloadMetadata.read(path);
+            if (stored != null && !stored.canRevalidate(path)) stored = null;
         }
 
         try {
+            // don't waste bandwidth on what won't fit. Session downloads are in the reservation of their session.
+            if (download.expectedSize > 0 && download.session == null) {
+                reserveSpace(download, path, download.expectedSize);
+            }
+            if (download.unzip) return unzipDownload(download, uri, stored);
+
             File tempPath = new File(path.getAbsolutePath() + ".tmp");
+            File validatorPath = new File(path.getAbsolutePath() + ".tmp.etag");
             URL url = new URL(uri);
-            URLConnection connection = url.openConnection();
-            connection.connect();
-
-            // this will be useful so that you can show a typical 0-100% progress bar
-//                int fileLength = connection.getContentLength();
-
-            // download the file
-            URLConnection urlConnection = url.openConnection();
-            urlConnection.setConnectTimeout(Downloader.TIMEOUT_MILLIS);
-            urlConnection.setReadTimeout(Downloader.TIMEOUT_MILLIS);
-
-            if (Thread.currentThread().isInterrupted()) return path.getName();
 
-            InputStream input = new BufferedInputStream(urlConnection.getInputStream());
-            OutputStream output = new FileOutputStream(tempPath);
-            try {
-                if (copy(input, output) == -1) {
-                    Log.i(TAG, String.format("(%d remain) Download of %s INTERRUPTED", sDownloadCount.get() - 1, uri));
+            // a segmented .tmp can only be continued with the journal's record of which segments are finished
+            final RemoteFile remoteFile = download.segments > 1 &&
+                                          (!tempPath.exists() || download.finishedSegments != null) &&
+                                          stored == null
+                                          ? RemoteFile.probe(url)
+                                          : null;
+            if (remoteFile != null && remoteFile.acceptsRanges && remoteFile.length >= 2 * MIN_SEGMENT_SIZE) {
+                try {
+                    if (segmentedDownload(download, url, tempPath, remoteFile) == -1) {
+                        if (download.paused) {
+                            // the finished segments are kept
+                            Log.i(TAG, "(%d remain) Download of %s PAUSED", remaining(download), uri);
+                            download.tries--;
+                            waitForNetwork(download);
+                            return path.getName();
+                        }
+                        Log.i(TAG, String.format("(%d remain) Download of %s INTERRUPTED", remaining(download), uri));
+                        // if canceled, a new request for the file may already be using it
+                        if (!isCanceled(download)) tempPath.delete();
+                        return path.getName();
+                    }
+                } catch (InsufficientSpaceException e) {
+                    throw e;
+                } catch (IOException e) {
+                    // Network error. May retry. A segmented file has holes, so it can't be resumed.
+                    Log.i(TAG, String.format("(%d remain) Segmented download of %s failed (will retry): %s", remaining(download), uri, e.getMessage()));
+                    tempPath.delete();
+                    download.finishedSegments = null;
+                    download(download);
                     return path.getName();
                 }
-            } catch (IOException e) {
-                // Network error. May retry
-                Log.i(TAG, String.format("(%d remain) Download of %s failed (will retry): %s", sDownloadCount.get() - 1, uri, e.getMessage()));
-                download(download);
-                return path.getName();
-            } finally {
-                output.flush();
-                output.close();
-                input.close();
+                // segments arrive out of order, so the hash can only be checked at the end
+                final ContentHash hash = download.expectedHash != null
+                                         ? ContentHash.of(tempPath, download.expectedHash.algorithm)
+                                         : null;
+                if (!checkHash(download, hash, tempPath, validatorPath)) return path.getName();
+                download.metadata = new DownloadMetadata(remoteFile.etag, remoteFile.lastModified, remoteFile.length,
+                                                         hash != null ? hash.toString() : null);
+            } else {
+                switch (streamDownload(download, url, tempPath, validatorPath, stored)) {
+                    case FAILED:
+                        return path.getName();
+                    case NOT_MODIFIED:
+                        Log.v(TAG, "(%d remain) Not modified %s", remaining(download), path.getName());
+                        return null;
+                }
             }
 
             if (!tempPath.renameTo(path)) {
@@ -102,17 +199,29 @@ public final class FileDownloader {
                 download(download);
                 return path.getName();
             }
+            validatorPath.delete();
+            if (download.revalidate && download.metadata != null) {
+                try {
+                    download.metadata.write(path);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save metadata of " + path.getName(), e);
+                }
+            }
             Log.v(TAG,
                   String.format("(%d remain) Downloaded %s%s",
-                                sDownloadCount.get() - 1,
+                                remaining(download),
                                 path.getName(),
                                 download.tries > 1 ? " " + download.tries + " tries" : ""));
             return null; // SUCCESS!
+        } catch (InsufficientSpaceException e) {
+            // retrying won't make room
+            Log.w(TAG, "(%d remain) %s", remaining(download), e.getMessage());
+            return path.getName();
         } catch (SocketException e) {
             // Network error. May retry
             Log.i(TAG,
                   String.format("(%d remain) Failed on  %s (will retry) %s: %s ",
-                                sDownloadCount.get() - 1,
+                                remaining(download),
                                 path.getName(),
                                 uri,
                                 e.getMessage()));
@@ -120,38 +229,910 @@ public final class FileDownloader {
             return path.getName();
         } catch (FileNotFoundException e) {
             // URL is wrong - do not retry
-            Log.i(TAG, "(%d remain) Failed on  %s - %s - %s", sDownloadCount.get() - 1, path.getName(), uri, e.getMessage());
+            Log.i(TAG, "(%d remain) Failed on  %s - %s - %s", remaining(download), path.getName(), uri, e.getMessage());
             return path.getName();
         } catch (Exception e) {
-            Log.i(TAG, "(%d remain) Failed on  %s - %s", sDownloadCount.get() - 1, path.getName(), uri, e);
+            Log.i(TAG, "(%d remain) Failed on  %s - %s", remaining(download), path.getName(), uri, e);
+            return path.getName();
+        } finally {
+            releaseSpace(download);
+        }
+    }
+
+    /**
+     * Downloads the whole body on a single connection into {@code tempPath}, resuming it if possible.
+     *
+     * @param stored If not null, the request is made conditional on the file having changed since it was stored.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static Outcome streamDownload(Download download, URL url, File tempPath, File validatorPath,
+                                          @Nullable DownloadMetadata stored) throws IOException {
+        final String uri = url.toString();
+        final File path = download.file;
+
+        // download the file
+        URLConnection urlConnection = url.openConnection();
+        urlConnection.setConnectTimeout(Downloader.TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(Downloader.TIMEOUT_MILLIS);
+
+        // resume a previous attempt, but only if we know which version of the file the partial data belongs to
+        final File writtenPath = new File(tempPath.getAbsolutePath() + WRITTEN_SUFFIX);
+        final long resumeFrom = restoreWrittenLength(tempPath, writtenPath);
+        final String validator = resumeFrom > 0 && validatorPath.exists() ? FileUtils.StrFromFile(validatorPath) : null;
+        if (validator != null) {
+            urlConnection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+            urlConnection.setRequestProperty("If-Range", validator);
+        } else if (stored != null) {
+            stored.addConditionalHeaders(urlConnection);
+        }
+
+        if (Thread.currentThread().isInterrupted()) return Outcome.FAILED;
+
+        boolean append = false;
+        if (urlConnection instanceof HttpURLConnection) {
+            HttpURLConnection httpConnection = (HttpURLConnection) urlConnection;
+            final long requestStart = System.nanoTime();
+            final int responseCode = httpConnection.getResponseCode();
+            recordLatency(url, requestStart);
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                releaseConnection(httpConnection);
+                return Outcome.NOT_MODIFIED;
+            }
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                // the server may be better later
+                Log.i(TAG, "(%d remain) Server error %d on %s (will retry)", remaining(download), responseCode, uri);
+                releaseConnection(httpConnection);
+                download(download);
+                return Outcome.FAILED;
+            }
+            append = responseCode == HttpURLConnection.HTTP_PARTIAL &&
+                     isValidResume(httpConnection, resumeFrom, validator);
+            // checked before the client errors: a complete .tmp that wasn't renamed (killed in between) gets a 416
+            if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && validator != null ||
+                responseCode == HttpURLConnection.HTTP_PARTIAL && !append) {
+                // the partial file doesn't match what the server has. Start over.
+                Log.i(TAG, "(%d remain) Can't resume %s (%d). Restarting.", remaining(download), uri, responseCode);
+                releaseConnection(httpConnection);
+                tempPath.delete();
+                validatorPath.delete();
+                download(download);
+                return Outcome.FAILED;
+            }
+            if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) throw responseError(httpConnection, responseCode);
+            if (append) {
+                Log.v(TAG, "Resuming %s from byte %d", path.getName(), resumeFrom);
+            } else {
+                // server sent the full body (or no range was asked): remember its version for a later resume
+                saveValidator(httpConnection, validatorPath);
+            }
+        }
+
+        final long contentLength = getContentLength(urlConnection);
+        download.contentLength = contentLength >= 0 ? (append ? resumeFrom : 0) + contentLength : -1;
+        download.bytesDownloaded.set(append ? resumeFrom : 0);
+        if (contentLength > 0 && (download.session == null || download.expectedSize <= 0)) {
+            try {
+                reserveSpace(download, path, contentLength);
+            } catch (InsufficientSpaceException e) {
+                if (urlConnection instanceof HttpURLConnection) releaseConnection((HttpURLConnection) urlConnection);
+                throw e;
+            }
+        }
+
+        // hash while downloading: to verify it or to store it in the metadata
+        final ContentHash.Algorithm algorithm = download.expectedHash != null
+                                                ? download.expectedHash.algorithm
+                                                : download.revalidate ? ContentHash.Algorithm.CRC32 : null;
+        final ContentHash.Hasher hasher = algorithm != null ? algorithm.newHasher() : null;
+        if (hasher != null && append) hasher.update(tempPath);
+
+        InputStream input = urlConnection.getInputStream();
+        RandomAccessFile output = new RandomAccessFile(tempPath, "rw");
+        final FileChannel channel = output.getChannel();
+        boolean preallocated = false;
+        sActive.add(download);
+        try {
+            if (!append) output.setLength(0);
+            channel.position(append ? resumeFrom : 0);
+            WritableByteChannel destination = channel;
+            if (contentLength >= PREALLOCATE_MIN_BYTES) {
+                // while preallocated, the length of the file doesn't say how much was written, the sidecar does
+                final long start = channel.position();
+                if (writeLength(start, writtenPath)) {
+                    preallocated = preallocate(output, start, contentLength, path);
+                    if (preallocated) {
+                        destination = new LengthRecordingChannel(channel, start, writtenPath);
+                    } else {
+                        writtenPath.delete();
+                    }
+                }
+            }
+            if (copy(Channels.newChannel(input), destination, download, hasher) == -1) {
+                if (download.paused) {
+                    // the partial file and its validator are kept, to resume
+                    Log.i(TAG, "(%d remain) Download of %s PAUSED", remaining(download), uri);
+                    download.tries--;
+                    waitForNetwork(download);
+                    return Outcome.FAILED;
+                }
+                Log.i(TAG, String.format("(%d remain) Download of %s INTERRUPTED", remaining(download), uri));
+                return Outcome.FAILED;
+            }
+            // the connection was closed early without an error. What arrived is kept, to resume.
+            if (download.contentLength >= 0 && download.bytesDownloaded.get() != download.contentLength) {
+                throw new EOFException("Got " + download.bytesDownloaded.get() + " of " + download.contentLength);
+            }
+        } catch (InsufficientSpaceException e) {
+            throw e;
+        } catch (IOException e) {
+            if (isOutOfSpace(e)) throw new InsufficientSpaceException(path.getName(), -1, getAvailableBytes(path));
+            // Network error. May retry
+            Log.i(TAG, String.format("(%d remain) Download of %s failed (will retry): %s", remaining(download), uri, e.getMessage()));
+            download(download);
+            return Outcome.FAILED;
+        } finally {
+            sActive.remove(download);
+            try {
+                output.close();
+                if (preallocated) {
+                    // cut to what was written, on a new handle as an interrupt closes the channel
+                    final RandomAccessFile file = new RandomAccessFile(tempPath, "rw");
+                    try {
+                        file.setLength(download.bytesDownloaded.get());
+                    } finally {
+                        file.close();
+                    }
+                    writtenPath.delete();
+                }
+            } finally {
+                input.close();
+            }
+        }
+        final ContentHash hash = hasher != null ? hasher.getHash() : null;
+        if (!checkHash(download, hash, tempPath, validatorPath)) return Outcome.FAILED;
+        download.metadata = DownloadMetadata.from(urlConnection, tempPath.length(), hash != null ? hash.toString() : null);
+        return Outcome.COMPLETE;
+    }
+
+    /**
+     * Cuts a partial file to the length in its sidecar, if there is one: it was preallocated and the app was killed
+     * before it could be cut. The sidecar is removed, a new one is written if the rest is preallocated.
+     *
+     * @return The length of the partial file, what a resume starts from.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static long restoreWrittenLength(File tempPath, File writtenPath) throws IOException {
+        if (writtenPath.exists()) {
+            final String text = FileUtils.StrFromFile(writtenPath);
+            long written;
+            try {
+                written = text != null ? Long.parseLong(text.trim()) : 0;
+            } catch (NumberFormatException e) {
+                written = 0;
+            }
+            if (tempPath.exists() && tempPath.length() > written) {
+                final RandomAccessFile file = new RandomAccessFile(tempPath, "rw");
+                try {
+                    file.setLength(Math.max(0, written));
+                } finally {
+                    file.close();
+                }
+            }
+            writtenPath.delete();
+        }
+        return tempPath.exists() ? tempPath.length() : 0;
+    }
+
+    private static boolean writeLength(long length, File writtenPath) {
+        return FileUtils.StrToFile(String.valueOf(length), writtenPath);
+    }
+
+    /**
+     * Records in a sidecar how much of a preallocated file was written, every {@link #RECORD_WRITTEN_EVERY} bytes, so
+     * that it can be resumed if the app is killed. The sidecar is written after the data, so it never says more than
+     * what is in the file.
+     */
+    private static final class LengthRecordingChannel implements WritableByteChannel {
+        private final FileChannel mChannel;
+        private final File mWrittenPath;
+        private long mWritten;
+        private long mRecorded;
+
+        LengthRecordingChannel(FileChannel channel, long written, File writtenPath) {
+            mChannel = channel;
+            mWritten = written;
+            mRecorded = written;
+            mWrittenPath = writtenPath;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            final int n = mChannel.write(src);
+            mWritten += n;
+            if (mWritten - mRecorded >= RECORD_WRITTEN_EVERY && writeLength(mWritten, mWrittenPath)) {
+                mRecorded = mWritten;
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return mChannel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Compares the hash of a downloaded file with the expected one, if any. On a mismatch the file is discarded and the
+     * download retried.
+     *
+     * @return false if the hash didn't match.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static boolean checkHash(Download download, @Nullable ContentHash hash, File tempPath, File validatorPath) {
+        if (download.expectedHash == null || download.expectedHash.equals(hash)) return true;
+        Log.w(TAG, "(%d remain) Hash mismatch on %s: expected %s, got %s (will retry)",
+              remaining(download), download.file.getName(), download.expectedHash, hash);
+        tempPath.delete();
+        validatorPath.delete();
+        download(download);
+        return false;
+    }
+
+    /**
+     * Extracts a zip as it's downloaded into a staging directory next to {@link Download#file}, which replaces the
+     * directory when everything is there. Can't be resumed: a retry starts over.
+     *
+     * @return Same as {@link #syncDownload(Download)}.
+     */
+    @Nullable
+    private static String unzipDownload(Download download, String uri, @Nullable DownloadMetadata stored) {
+        final File path = download.file;
+        final File staging = new File(path.getAbsolutePath() + ".staging");
+        FileUtils.deleteDir(staging);
+        final ContentHash.Hasher hasher = download.expectedHash != null
+                                          ? download.expectedHash.algorithm.newHasher()
+                                          : download.revalidate ? ContentHash.Algorithm.CRC32.newHasher() : null;
+        MeteredInputStream input = null;
+        try {
+            final URL url = new URL(uri);
+            URLConnection connection = url.openConnection();
+            connection.setConnectTimeout(Downloader.TIMEOUT_MILLIS);
+            connection.setReadTimeout(Downloader.TIMEOUT_MILLIS);
+            if (stored != null) stored.addConditionalHeaders(connection);
+            if (connection instanceof HttpURLConnection) {
+                final long requestStart = System.nanoTime();
+                final int responseCode = ((HttpURLConnection) connection).getResponseCode();
+                recordLatency(url, requestStart);
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    releaseConnection((HttpURLConnection) connection);
+                    Log.v(TAG, "(%d remain) Not modified %s", remaining(download), path.getName());
+                    return null;
+                }
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    throw responseError((HttpURLConnection) connection, responseCode);
+                }
+            }
+            download.contentLength = getContentLength(connection);
+            download.bytesDownloaded.set(0);
+
+            input = new MeteredInputStream(connection.getInputStream(), download, hasher);
+            sActive.add(download);
+            try {
+                extract(new ZipInputStream(new BufferedInputStream(input)), staging);
+                // the central directory, for the hash
+                input.drain();
+            } finally {
+                sActive.remove(download);
+            }
+
+            final ContentHash hash = hasher != null ? hasher.getHash() : null;
+            if (download.expectedHash != null && !download.expectedHash.equals(hash)) {
+                Log.w(TAG, "(%d remain) Hash mismatch on %s: expected %s, got %s (will retry)",
+                      remaining(download), path.getName(), download.expectedHash, hash);
+                FileUtils.deleteDir(staging);
+                download(download);
+                return path.getName();
+            }
+
+            swap(staging, path);
+            if (download.revalidate) {
+                try {
+                    DownloadMetadata.from(connection, input.getCount(), hash != null ? hash.toString() : null)
+                                    .write(path);
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save metadata of " + path.getName(), e);
+                }
+            }
+            Log.v(TAG, "(%d remain) Downloaded and extracted %s", remaining(download), path.getName());
+            return null;
+        } catch (SocketTimeoutException e) {
+            // an InterruptedIOException as well, but from the network, not from a stop: retry
+            FileUtils.deleteDir(staging);
+            Log.i(TAG, "(%d remain) Download of %s timed out (will retry)", remaining(download), uri);
+            download(download);
+            return path.getName();
+        } catch (InterruptedIOException e) {
+            FileUtils.deleteDir(staging);
+            if (download.paused) {
+                Log.i(TAG, "(%d remain) Download of %s PAUSED", remaining(download), uri);
+                download.tries--;
+                waitForNetwork(download);
+            } else {
+                Log.i(TAG, "(%d remain) Download of %s INTERRUPTED", remaining(download), uri);
+            }
+            return path.getName();
+        } catch (FileNotFoundException e) {
+            // URL is wrong - do not retry
+            FileUtils.deleteDir(staging);
+            Log.i(TAG, "(%d remain) Failed on  %s - %s - %s", remaining(download), path.getName(), uri, e.getMessage());
             return path.getName();
+        } catch (ZipException e) {
+            // not a zip - retrying won't help
+            FileUtils.deleteDir(staging);
+            Log.w(TAG, "(%d remain) Failed to extract %s - %s", remaining(download), uri, e.getMessage());
+            return path.getName();
+        } catch (IOException e) {
+            FileUtils.deleteDir(staging);
+            if (isOutOfSpace(e)) {
+                Log.w(TAG, "(%d remain) No space to extract %s", remaining(download), path.getName());
+                return path.getName();
+            }
+            // Network error. May retry
+            Log.i(TAG, "(%d remain) Download of %s failed (will retry): %s", remaining(download), uri, e.getMessage());
+            download(download);
+            return path.getName();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Writes the entries of a zip into {@code dir} as they're read.
+     */
+    static void extract(ZipInputStream zip, File dir) throws IOException {
+        final String root = dir.getCanonicalPath() + File.separator;
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            final File file = new File(dir, entry.getName());
+            // no "../" tricks
+            if (!file.getCanonicalPath().startsWith(root)) throw new ZipException("Bad entry " + entry.getName());
+            if (entry.isDirectory()) {
+                //noinspection ResultOfMethodCallIgnored
+                file.mkdirs();
+                continue;
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.getParentFile().mkdirs();
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                ByteBufferPool.copy(Channels.newChannel(zip), output.getChannel());
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    /**
+     * Puts {@code staging} in the place of {@code dir}. The old contents are only deleted once the new ones are there.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static void swap(File staging, File dir) throws IOException {
+        final File old = new File(dir.getAbsolutePath() + ".old");
+        FileUtils.deleteDir(old);
+        if (dir.exists() && !dir.renameTo(old)) throw new IOException("Failed to move " + dir + " away");
+        if (!staging.renameTo(dir)) {
+            old.renameTo(dir);
+            throw new IOException("Failed to rename " + staging + " to " + dir);
+        }
+        FileUtils.deleteDir(old);
+    }
+
+    /**
+     * Puts back the old directory if {@link #swap(File, File)} was interrupted between its renames.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static void restoreSwapped(File dir) {
+        final File old = new File(dir.getAbsolutePath() + ".old");
+        if (!old.exists()) return;
+        if (dir.exists()) {
+            FileUtils.deleteDir(old);
+        } else {
+            old.renameTo(dir);
         }
     }
 
+    /**
+     * Applies to a stream the bookkeeping that {@link #copy(ReadableByteChannel, WritableByteChannel, Download,
+     * ContentHash.Hasher)} does, for when the data goes somewhere else than a channel. Stopping is reported with an
+     * {@link InterruptedIOException}.
+     */
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final Download mDownload;
+        @Nullable private final ContentHash.Hasher mHasher;
+        @Nullable private final BandwidthThrottle mHostThrottle;
+        private long mCount;
+
+        MeteredInputStream(InputStream in, Download download, @Nullable ContentHash.Hasher hasher) {
+            super(in);
+            mDownload = download;
+            mHasher = hasher;
+            final String host = download.getHost();
+            mHostThrottle = host != null ? sHostThrottles.get(host) : null;
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int count) throws IOException {
+            if (Thread.currentThread().isInterrupted() || mDownload.paused || isCanceled(mDownload)) {
+                throw new InterruptedIOException();
+            }
+            final int n = super.read(buffer, offset, count);
+            if (n <= 0) return n;
+            if (mHasher != null) mHasher.update(buffer, offset, n);
+            mCount += n;
+            onBytes(mDownload, n);
+            if (mHostThrottle != null && !mHostThrottle.acquire(n) || !sGlobalThrottle.acquire(n)) {
+                throw new InterruptedIOException();
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // read, so that the skipped bytes are hashed and counted too
+            byte[] buffer = new byte[(int) Math.min(n, 8 * 1024)];
+            final int read = read(buffer, 0, buffer.length);
+            return Math.max(read, 0);
+        }
+
+        void drain() throws IOException {
+            byte[] buffer = new byte[8 * 1024];
+            //noinspection StatementWithEmptyBody
+            while (read(buffer, 0, buffer.length) != -1) {}
+        }
+    }
+
+    private enum Outcome {
+        /** The temp file has the whole content. */
+        COMPLETE,
+        /** The file we have is still current. */
+        NOT_MODIFIED,
+        FAILED
+    }
+
+    /**
+     * Splits the file in {@link Download#segments} byte ranges and fetches them concurrently into a pre-sized
+     * {@code tempPath}. The first segment runs on the calling thread; the others are sent to the thread pool and any
+     * that no worker picked up yet are also run here, so this never waits for a full pool.
+     * <p/>
+     * Segments that a previous run finished (see {@link Download#finishedSegments}) are skipped if the file is still the
+     * same version.
+     *
+     * @return The number of bytes written or -1 if interrupted.
+     * @throws IOException If any of the segments fails. {@code tempPath} is left incomplete.
+     */
+    static long segmentedDownload(final Download download, final URL url, final File tempPath, RemoteFile remoteFile)
+            throws IOException {
+        final int count = (int) Math.min(download.segments, remoteFile.length / MIN_SEGMENT_SIZE);
+        final long segmentSize = remoteFile.length / count;
+        final String etag = remoteFile.etag;
+
+        final BitSet finished = download.finishedSegments != null && etag != null &&
+                                etag.equals(download.segmentsEtag) && count == download.segmentCount &&
+                                tempPath.length() == remoteFile.length
+                                ? download.finishedSegments
+                                : new BitSet(count);
+        download.finishedSegments = finished;
+        download.segmentCount = count;
+        download.segmentsEtag = etag;
+
+        if (download.session == null || download.expectedSize <= 0) {
+            // a partial file already has its full length
+            reserveSpace(download, download.file, finished.isEmpty() ? remoteFile.length : 0);
+        }
+        if (finished.isEmpty()) {
+            RandomAccessFile file = new RandomAccessFile(tempPath, "rw");
+            try {
+                if (!preallocate(file, 0, remoteFile.length, download.file)) file.setLength(remoteFile.length);
+            } finally {
+                file.close();
+            }
+        }
+
+        Log.v(TAG, "Downloading %s in %d segments (%d done)", download.file.getName(), count, finished.cardinality());
+        download.contentLength = remoteFile.length;
+        download.bytesDownloaded.set(0);
+        sActive.add(download);
+        final ThreadPoolExecutor executor = getThreadPoolExecutor();
+        final List<FutureTask<Long>> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final long start = i * segmentSize;
+            final long end = i == count - 1 ? remoteFile.length - 1 : start + segmentSize - 1;
+            if (finished.get(i)) {
+                download.bytesDownloaded.addAndGet(end - start + 1);
+                continue;
+            }
+            final FutureTask<Long> segment = new FutureTask<>(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    final long bytes = downloadSegment(download, url, tempPath, start, end, etag);
+                    if (bytes != -1) onSegmentFinished(download, index, count);
+                    return bytes;
+                }
+            });
+            segments.add(segment);
+            if (segments.size() > 1) {
+                try {
+                    executor.execute(new DownloadQueue.Entry(download, segment));
+                } catch (RejectedExecutionException ignored) {
+                    // it will run on this thread
+                }
+            }
+        }
+
+        long total = 0;
+        try {
+            for (FutureTask<Long> segment : segments) {
+                segment.run(); // no-op if a worker already took it
+                final long bytes = segment.get();
+                if (bytes == -1) return -1;
+                total += bytes;
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } finally {
+            sActive.remove(download);
+            for (FutureTask<Long> segment : segments) segment.cancel(true);
+        }
+    }
+
+    private static void onSegmentFinished(Download download, int index, int count) {
+        synchronized (download.finishedSegments) {
+            download.finishedSegments.set(index);
+        }
+        final DownloadJournal journal = sJournal;
+        if (journal != null && download.segmentsEtag != null) {
+            journal.segmentFinished(download, index, count, download.segmentsEtag);
+        }
+    }
+
+    /**
+     * Fetches bytes {@code start} to {@code end} (inclusive) and writes them at the same offset of {@code tempPath}.
+     *
+     * @return The number of bytes written or -1 if interrupted.
+     */
+    static long downloadSegment(Download download, URL url, File tempPath, long start, long end, @Nullable String etag)
+            throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(Downloader.TIMEOUT_MILLIS);
+        connection.setReadTimeout(Downloader.TIMEOUT_MILLIS);
+        connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        if (etag != null) connection.setRequestProperty("If-Match", etag);
+
+        final long requestStart = System.nanoTime();
+        final int responseCode = connection.getResponseCode();
+        recordLatency(url, requestStart);
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL ||
+            getContentRangeStart(connection) != start) {
+            releaseConnection(connection);
+            throw new IOException("Range " + start + "-" + end + " of " + url + " not served: " + responseCode);
+        }
+
+        InputStream input = connection.getInputStream();
+        RandomAccessFile file = new RandomAccessFile(tempPath, "rw");
+        try {
+            final long count = copy(Channels.newChannel(input), file.getChannel().position(start), download, null);
+            if (count != -1 && count != end - start + 1) {
+                throw new EOFException("Range " + start + "-" + end + " of " + url + " ended after " + count);
+            }
+            return count;
+        } finally {
+            file.close();
+            input.close();
+        }
+    }
+
+    /**
+     * What a HEAD request tells about a file.
+     */
+    static final class RemoteFile {
+        final long length;
+        final boolean acceptsRanges;
+        @Nullable final String etag;
+        @Nullable final String lastModified;
+
+        RemoteFile(long length, boolean acceptsRanges, @Nullable String etag, @Nullable String lastModified) {
+            this.length = length;
+            this.acceptsRanges = acceptsRanges;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return The file info or null if the server didn't answer the HEAD successfully.
+         */
+        @Nullable
+        static RemoteFile probe(URL url) throws IOException {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            try {
+                connection.setConnectTimeout(Downloader.TIMEOUT_MILLIS);
+                connection.setReadTimeout(Downloader.TIMEOUT_MILLIS);
+                connection.setRequestMethod("HEAD");
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) return null;
+
+                final long length = getContentLength(connection);
+                String etag = connection.getHeaderField("ETag");
+                if (etag != null && etag.startsWith("W/")) etag = null; // weak tags can't be used with If-Match
+                return new RemoteFile(length,
+                                      "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")),
+                                      etag,
+                                      connection.getHeaderField("Last-Modified"));
+            } finally {
+                releaseConnection(connection);
+            }
+        }
+    }
+
+    /**
+     * Finishes with a response that won't be read: a short body is read to the end and closed, which puts the connection
+     * back in the keep-alive pool for the next request to the host. A long one isn't worth it and the connection is
+     * closed.
+     */
+    static void releaseConnection(HttpURLConnection connection) {
+        InputStream input = null;
+        try {
+            final long length = getContentLength(connection);
+            if (length > MAX_DRAIN_BYTES) {
+                connection.disconnect();
+                return;
+            }
+            input = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST
+                    ? connection.getErrorStream()
+                    : connection.getInputStream();
+            if (input == null) return;
+            byte[] buffer = new byte[4096];
+            long drained = 0;
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                if ((drained += n) > MAX_DRAIN_BYTES) {
+                    connection.disconnect();
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        } finally {
+            if (input != null) {
+                try {
+                    input.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Releases the connection of an error response.
+     *
+     * @return What {@link URLConnection#getInputStream()} would throw: a FileNotFoundException (not retried) if the
+     * file isn't there.
+     */
+    static IOException responseError(HttpURLConnection connection, int responseCode) {
+        releaseConnection(connection);
+        final String message = "HTTP " + responseCode + " for " + connection.getURL();
+        return responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE
+               ? new FileNotFoundException(message)
+               : new IOException(message);
+    }
+
+    /**
+     * Checks that a 206 response really continues the partial file: same version (when the server tells us) and
+     * starting at the byte we asked for.
+     */
+    static boolean isValidResume(HttpURLConnection connection, long resumeFrom, @Nullable String validator) {
+        if (resumeFrom <= 0 || validator == null) return false;
+
+        final String etag = connection.getHeaderField("ETag");
+        if (etag != null && validator.startsWith("\"") && !etag.equals(validator)) return false;
+
+        return getContentRangeStart(connection) == resumeFrom;
+    }
+
+    /**
+     * @return The Content-Length header as a long (getContentLength() is an int) or -1 if missing.
+     */
+    static long getContentLength(URLConnection connection) {
+        final String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return The first byte position of the Content-Range header (e.g. "bytes 1000-1999/2000") or -1 if missing.
+     */
+    static long getContentRangeStart(URLConnection connection) {
+        final String contentRange = connection.getHeaderField("Content-Range");
+        if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+        final int dash = contentRange.indexOf('-');
+        if (dash < 0) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Stores the strong ETag or, failing that, the Last-Modified of a response, to be used as the If-Range of a future
+     * resume. If the server provides neither, any previous validator is removed and the download can't be resumed.
+     */
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    static void saveValidator(HttpURLConnection connection, File validatorPath) {
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) validator = connection.getHeaderField("Last-Modified");
+        if (validator == null || !FileUtils.StrToFile(validator, validatorPath)) validatorPath.delete();
+    }
+
     /**
      * Copy, modified to return -1 if the thread is interrupted.
      * @see com.carlosefonseca.common.utils.IOUtils#copyLarge(java.io.InputStream, java.io.OutputStream)
      */
     protected static long copy(InputStream input, OutputStream output) throws IOException {
-        final int DEFAULT_BUFFER_SIZE = 1024 * 4;
-        final int EOF = -1;
+        return copy(Channels.newChannel(input),
+                    output instanceof FileOutputStream
+                    ? ((FileOutputStream) output).getChannel()
+                    : Channels.newChannel(output),
+                    null,
+                    null);
+    }
 
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-        long count1 = 0;
+    /**
+     * Copies through a pooled direct buffer (see {@link ByteBufferPool}), so the data isn't copied again into native
+     * memory on its way to the file and no garbage is made per chunk. Returns -1 if the thread is interrupted (which
+     * also closes the channels) or the download is paused or canceled, respects the bandwidth limits and reports
+     * progress.
+     *
+     * @param download The download the data belongs to, to apply the limit of its host and count its progress.
+     * @param hasher   Gets all the data that is copied.
+     * @see #setMaxBytesPerSecond(long)
+     * @see #setMaxBytesPerSecond(String, long)
+     */
+    static long copy(ReadableByteChannel input, WritableByteChannel output, @Nullable Download download,
+                     @Nullable ContentHash.Hasher hasher) throws IOException {
+        final String host = download != null ? download.getHost() : null;
+        final BandwidthThrottle hostThrottle = host != null ? sHostThrottles.get(host) : null;
+        final ByteBuffer buffer = ByteBufferPool.acquire();
+        long count = 0;
         int n;
         Thread thread = Thread.currentThread();
-        while (EOF != (n = input.read(buffer))) {
-            if (thread.isInterrupted()) return -1;
-            output.write(buffer, 0, n);
-            count1 += n;
+        try {
+            while ((n = input.read(buffer)) != -1) {
+                if (thread.isInterrupted() || download != null && (download.paused || isCanceled(download))) return -1;
+                buffer.flip();
+                if (hasher != null) hasher.update(buffer.duplicate());
+                while (buffer.hasRemaining()) output.write(buffer);
+                buffer.clear();
+                count += n;
+                onBytes(download, n);
+                if (hostThrottle != null && !hostThrottle.acquire(n)) return -1;
+                if (!sGlobalThrottle.acquire(n)) return -1;
+            }
+            return count;
+        } catch (ClosedByInterruptException e) {
+            return -1;
+        } finally {
+            ByteBufferPool.release(buffer);
         }
-        return count1;
+    }
+
+    //region BANDWIDTH
+    private static final BandwidthThrottle sGlobalThrottle = new BandwidthThrottle(0);
+    private static final ConcurrentHashMap<String, BandwidthThrottle> sHostThrottles = new ConcurrentHashMap<>();
+
+    /**
+     * Limits the combined speed of all downloads, e.g. to leave room for other traffic while syncing content over
+     * cellular. Takes effect immediately, also on running downloads.
+     *
+     * @param bytesPerSecond The limit. 0 removes it.
+     */
+    public static void setMaxBytesPerSecond(long bytesPerSecond) {
+        sGlobalThrottle.setBytesPerSecond(bytesPerSecond);
+    }
+
+    /**
+     * Limits the combined speed of the downloads from {@code host}, on top of the global limit. Changing or removing
+     * the limit takes effect immediately, also on running downloads; a limit for a host that had none only applies to
+     * the downloads started after it.
+     *
+     * @param bytesPerSecond The limit. 0 removes it.
+     */
+    public static void setMaxBytesPerSecond(String host, long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            final BandwidthThrottle throttle = sHostThrottles.remove(host);
+            if (throttle != null) throttle.setBytesPerSecond(0);
+            return;
+        }
+        final BandwidthThrottle throttle = sHostThrottles.get(host);
+        if (throttle != null) {
+            throttle.setBytesPerSecond(bytesPerSecond);
+        } else {
+            sHostThrottles.put(host, new BandwidthThrottle(bytesPerSecond));
+        }
+    }
+    //endregion
+
+    /**
+     * Order in which queued downloads are started. Within a priority, downloads start in the order they were added,
+     * except for {@link #VISIBLE}, where the newest goes first.
+     */
+    public enum Priority {
+        /** Needed right now by what is on screen. */
+        VISIBLE,
+        /** Needed soon. */
+        HIGH,
+        NORMAL,
+        /** Bulk content that nobody is waiting for. */
+        BACKGROUND
     }
 
     public static class Download {
         public final String url;
         public final File file;
         int tries;
+        int segments = 1;
+        Priority priority = Priority.NORMAL;
+        NetworkPolicy networkPolicy = NetworkPolicy.ANY;
+        /** Set to stop a running download because the network changed. */
+        volatile boolean paused;
+        /** Queued or running tasks, including retries. Guarded by {@link #sInFlight}. */
+        int runs;
+        /** Duplicate requests waiting for this download. Guarded by {@link #sInFlight}. */
+        @Nullable List<Download> attached;
+        @Nullable DownloadSession session;
+        /** The name of the session it belonged to, when it was recovered from the journal. */
+        @Nullable String sessionName;
+        /** The cancellation token of {@link #session}, when this was added to it. */
+        @Nullable DownloadSession.Token token;
+        boolean revalidate;
+        @Nullable ContentHash expectedHash;
+        boolean unzip;
+        long expectedSize = -1;
+        /** What the server told about the last downloaded content. */
+        @Nullable DownloadMetadata metadata;
+        /** Segments already in the .tmp file, of {@link #segmentCount} for the version {@link #segmentsEtag}. */
+        @Nullable BitSet finishedSegments;
+        int segmentCount;
+        @Nullable String segmentsEtag;
+        final AtomicLong bytesDownloaded = new AtomicLong();
+        volatile long contentLength = -1;
+        private String host;
 
         public Download(String url, File file) {
             if (!url.startsWith("http")) Log.w(TAG, new RuntimeException("" + url + " is not a URL."));
@@ -159,8 +1140,124 @@ public final class FileDownloader {
             this.file = file;
         }
 
-        public Download(String url) {
-            this(url, new File(CFApp.getContext().getExternalCacheDir(), UrlUtils.getLastSegmentOfURL(url)));
+        public Download(String url) {
+            this(url, new File(CFApp.getContext().getExternalCacheDir(), UrlUtils.getLastSegmentOfURL(url)));
+        }
+
+        /**
+         * Splits the download of a large file in up to {@code segments} concurrent range requests. Only used if the
+         * server reports the length of the file and accepts ranges, otherwise the file is downloaded as usual.
+         */
+        public Download setSegments(int segments) {
+            this.segments = Math.max(1, segments);
+            return this;
+        }
+
+        /**
+         * If the file already exists, checks with the server whether it changed (using the ETag/Last-Modified it was
+         * downloaded with) and downloads it again if so. Files downloaded in this mode get a {@link DownloadMetadata}
+         * next to them; files without one are downloaded again.
+         */
+        public Download setRevalidate(boolean revalidate) {
+            this.revalidate = revalidate;
+            return this;
+        }
+
+        /**
+         * Verifies the downloaded file against a known hash. The hash is computed as the data arrives (only segmented
+         * downloads need to read the file again at the end) and a mismatch is handled like a network error: the file
+         * is discarded and the download retried.
+         *
+         * @param hex The expected hash, in hexadecimal.
+         */
+        public Download setExpectedHash(ContentHash.Algorithm algorithm, String hex) {
+            this.expectedHash = new ContentHash(algorithm, hex);
+            return this;
+        }
+
+        /**
+         * The size of the file, if known beforehand (e.g. from a manifest). Lets a download that won't fit on the disk
+         * fail without connecting, and a {@link DownloadSession} reserve the space for all its downloads at once.
+         */
+        public Download setExpectedSize(long expectedSize) {
+            this.expectedSize = expectedSize;
+            return this;
+        }
+
+        public long getExpectedSize() {
+            return expectedSize;
+        }
+
+        /**
+         * Treats the file as a zip and extracts it while it's downloaded, into {@link #file}, which is then a
+         * directory. The entries go to a staging directory that only replaces the existing one when the archive is
+         * complete, so the old contents stay usable until then. The archive itself is never stored.
+         * <p/>
+         * Extraction can't be resumed, so {@link #setSegments(int) segments} don't apply and retries start over.
+         * {@link #setExpectedHash(ContentHash.Algorithm, String)} and {@link #setRevalidate(boolean)} apply to the
+         * archive.
+         */
+        public Download setUnzip(boolean unzip) {
+            this.unzip = unzip;
+            return this;
+        }
+
+        /**
+         * Sets the priority of this download in the queue. Use {@link FileDownloader#prioritize(Download, Priority)}
+         * to change it once queued.
+         */
+        public Download setPriority(Priority priority) {
+            this.priority = priority;
+            return this;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * Sets which networks this download may use. Defaults to {@link NetworkPolicy#ANY}.
+         */
+        public Download setNetworkPolicy(NetworkPolicy networkPolicy) {
+            this.networkPolicy = networkPolicy;
+            return this;
+        }
+
+        public NetworkPolicy getNetworkPolicy() {
+            return networkPolicy;
+        }
+
+        /**
+         * @return How many times this download was attempted so far.
+         */
+        public int getTries() {
+            return tries;
+        }
+
+        /**
+         * @return The bytes of the file received so far, including those of a resumed attempt.
+         */
+        public long getBytesDownloaded() {
+            return bytesDownloaded.get();
+        }
+
+        /**
+         * @return The size of the file, or -1 if not known (yet).
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        @Nullable
+        String getHost() {
+            if (host == null) {
+                try {
+                    host = new URL(url).getHost();
+                } catch (MalformedURLException e) {
+                    return null;
+                }
+            }
+            return host;
         }
 
         boolean canRetry() {
@@ -183,6 +1280,8 @@ public final class FileDownloader {
 
         if (sDownloadCount.getAndAdd(toDownload.size()) == 0) {
             cancelAll = false;
+            resetProgress();
+            watchNetwork();
             getNotifier().start(sDownloadCount.get());
         }
 
@@ -194,6 +1293,8 @@ public final class FileDownloader {
 
         if (sDownloadCount.getAndAdd(toDownload.size()) == 0) {
             cancelAll = false;
+            resetProgress();
+            watchNetwork();
             getNotifier().start(sDownloadCount.get());
         }
 
@@ -206,18 +1307,33 @@ public final class FileDownloader {
 
     //region DOWNLOAD CODE
     protected static void downloadStringList(final Collection<String> toDownload) {
+        List<Download> downloads = new ArrayList<>(toDownload.size());
+        for (String url : toDownload) downloads.add(new Download(url));
+        downloadList(downloads);
+    }
+
+    /**
+     * Starts the downloads of a {@link DownloadSession}, already counted by it.
+     */
+    static void downloadSession(Collection<Download> downloads) {
+        watchNetwork();
+        downloadList(downloads);
+    }
+
+    protected static void downloadList(Collection<Download> downloads) {
+        final List<Download> toDownload = new ArrayList<>(downloads.size());
+        for (Download download : downloads) if (register(download) && acquire(download)) toDownload.add(download);
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             getThreadPoolExecutor();
             if (Build.VERSION.SDK_INT > Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-                for (String url : toDownload)
-                    new Downloader().executeOnExecutor(sThreadPoolExecutor, new Download(url));
+                for (Download url : toDownload) executeOnPool(url);
             } else {
                 CodeUtils.runOnUIThread(new Runnable() {
                     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
                     @Override
                     public void run() {
-                        for (String url : toDownload)
-                            new Downloader().executeOnExecutor(sThreadPoolExecutor, new Download(url));
+                        for (Download url : toDownload) executeOnPool(url);
                     }
                 });
             }
@@ -225,25 +1341,43 @@ public final class FileDownloader {
             CodeUtils.runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
-                    for (String url : toDownload) {
-                        if (!cancelAll) new Downloader().execute(new Download(url));
-                    }
+                    for (Download url : toDownload) if (!isCanceled(url)) new Downloader().execute(url);
                 }
             });
         }
     }
 
-    protected static void downloadList(final Collection<Download> toDownload) {
+    protected static void downloadOne(final Download download) {
+        if (register(download)) startOne(download);
+    }
+
+    /**
+     * Queues a download that is already registered, if its session has room for it.
+     */
+    private static void startOne(final Download download) {
+        if (acquire(download)) dispatch(download);
+    }
+
+    /**
+     * Takes a slot for the download in its session, if it has one.
+     *
+     * @return false if the session is full. The download waits there and gets dispatched when a run ends.
+     */
+    private static boolean acquire(Download download) {
+        return download.session == null || download.session.acquire(download);
+    }
+
+    private static void dispatch(final Download download) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
             getThreadPoolExecutor();
             if (Build.VERSION.SDK_INT > Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-                for (Download url : toDownload) new Downloader().executeOnExecutor(sThreadPoolExecutor, url);
+                executeOnPool(download);
             } else {
                 CodeUtils.runOnUIThread(new Runnable() {
                     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
                     @Override
                     public void run() {
-                        for (Download url : toDownload) new Downloader().executeOnExecutor(sThreadPoolExecutor, url);
+                        executeOnPool(download);
                     }
                 });
             }
@@ -251,46 +1385,407 @@ public final class FileDownloader {
             CodeUtils.runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
-                    for (Download url : toDownload) if (!cancelAll) new Downloader().execute(url);
+                    if (!isCanceled(download)) new Downloader().execute(download);
                 }
             });
         }
     }
+    //endregion
 
-    protected static void downloadOne(final Download download) {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            getThreadPoolExecutor();
-            if (Build.VERSION.SDK_INT > Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1) {
-                new Downloader().executeOnExecutor(sThreadPoolExecutor, download);
-            } else {
-                CodeUtils.runOnUIThread(new Runnable() {
-                    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-                    @Override
-                    public void run() {
-                        new Downloader().executeOnExecutor(sThreadPoolExecutor, download);
-                    }
-                });
+    //region IN-FLIGHT REGISTRY
+    /**
+     * The downloads that are queued or running, by target file. Also used as the lock for {@link Download#runs} and
+     * {@link Download#attached}.
+     */
+    private static final HashMap<File, Download> sInFlight = new HashMap<>();
+
+    /**
+     * Registers a download that is about to be queued. If another download for the same file is already in flight,
+     * this one is attached to it instead: it will be counted as finished, with the same result, when that one is.
+     *
+     * @return true if the download should be queued, false if it was attached to one in flight.
+     */
+    static boolean register(Download download) {
+        final Download inFlight;
+        synchronized (sInFlight) {
+            inFlight = sInFlight.get(download.file);
+            if (inFlight == null || inFlight == download) {
+                sInFlight.put(download.file, download);
+                download.runs++;
+                final DownloadJournal journal = sJournal;
+                if (inFlight == null && journal != null) journal.queued(download);
+                return true;
             }
-        } else {
-            CodeUtils.runOnUIThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (!cancelAll) new Downloader().execute(download);
+            if (inFlight.attached == null) inFlight.attached = new ArrayList<>();
+            inFlight.attached.add(download);
+        }
+        Log.v(TAG, "%s is already being downloaded", download.file.getName());
+        if (download.priority.compareTo(inFlight.priority) < 0) prioritize(inFlight, download.priority);
+        return false;
+    }
+
+    /**
+     * Called when a run of {@code download} is over. A download is only done when it has no retries pending.
+     *
+     * @return The requests that were attached to the download, if it is done, or null if it isn't.
+     */
+    @Nullable
+    static List<Download> unregister(Download download) {
+        synchronized (sInFlight) {
+            if (--download.runs > 0) return null;
+            // a canceled download may have been replaced already, and its journal entry is the new one's
+            if (sInFlight.get(download.file) == download) {
+                sInFlight.remove(download.file);
+                final DownloadJournal journal = sJournal;
+                if (journal != null) journal.done(download);
+            }
+            final List<Download> attached = download.attached;
+            download.attached = null;
+            return attached != null ? attached : Collections.<Download>emptyList();
+        }
+    }
+    //endregion
+
+    //region JOURNAL
+    @Nullable private static volatile DownloadJournal sJournal;
+
+    /**
+     * Starts keeping a {@link DownloadJournal} of the downloads in {@code file} and queues again the ones that it says
+     * were not done, e.g. because the app was killed. Those that had started continue from their partial files.
+     * Call it once, at startup, before queueing downloads.
+     * <p/>
+     * The downloads of a named {@link DownloadSession} wait for it to take them back, see
+     * {@link DownloadSession#resume()}.
+     *
+     * @return The number of downloads that were resumed or wait for their session.
+     */
+    public static int openJournal(File file) {
+        closeJournal();
+        final DownloadJournal journal;
+        try {
+            journal = new DownloadJournal(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to open the download journal " + file, e);
+            return 0;
+        }
+        final List<Download> pending = journal.getPending();
+        sJournal = journal;
+        final List<Download> statics = new ArrayList<>(pending.size());
+        synchronized (sRecovered) {
+            sRecovered.clear();
+            for (Download download : pending) {
+                if (download.sessionName == null) {
+                    statics.add(download);
+                    continue;
                 }
-            });
+                List<Download> downloads = sRecovered.get(download.sessionName);
+                if (downloads == null) {
+                    downloads = new ArrayList<>();
+                    sRecovered.put(download.sessionName, downloads);
+                }
+                downloads.add(download);
+            }
+        }
+        if (!pending.isEmpty()) {
+            Log.i(TAG, "Resuming %d downloads, %d in sessions", pending.size(), pending.size() - statics.size());
+            downloadFiles(statics);
+        }
+        return pending.size();
+    }
+
+    /** Downloads recovered from the journal, by the name of their session, until it takes them. */
+    private static final HashMap<String, List<Download>> sRecovered = new HashMap<>();
+
+    /**
+     * @return The downloads of the named session that were recovered from the journal, which are forgotten here.
+     */
+    static List<Download> takeRecovered(@Nullable String sessionName) {
+        if (sessionName == null) return Collections.emptyList();
+        synchronized (sRecovered) {
+            final List<Download> downloads = sRecovered.remove(sessionName);
+            return downloads != null ? downloads : Collections.<Download>emptyList();
+        }
+    }
+
+    public static void closeJournal() {
+        final DownloadJournal journal = sJournal;
+        sJournal = null;
+        if (journal != null) journal.close();
+    }
+    //endregion
+
+    //region DISK SPACE
+    /** Space that is left free for the rest of the app and the system. */
+    static final long MIN_FREE_BYTES = 10 * 1024 * 1024;
+    /** Smaller files aren't worth a system call to preallocate. */
+    static final long PREALLOCATE_MIN_BYTES = 1024 * 1024;
+    /** Suffix of the sidecar with the length written to a preallocated .tmp. */
+    static final String WRITTEN_SUFFIX = ".written";
+    /** How often the sidecar is updated: at most this much is downloaded again when resuming after a kill. */
+    static final long RECORD_WRITTEN_EVERY = 256 * 1024;
+
+    /**
+     * Bytes reserved by the downloads that are writing and by sessions for their downloads, which are still to be
+     * taken from the free space. Assumes they all go to the same disk.
+     */
+    private static final IdentityHashMap<Object, Long> sReservations = new IdentityHashMap<>();
+
+    /**
+     * @return Bytes available to the app on the file system of {@code file}, which may not exist yet.
+     */
+    @SuppressWarnings("deprecation")
+    public static long getAvailableBytes(File file) {
+        File dir = file;
+        while (dir != null && !dir.exists()) dir = dir.getParentFile();
+        if (dir == null) return 0;
+        final StatFs statFs = new StatFs(dir.getAbsolutePath());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) return statFs.getAvailableBytes();
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+
+    /**
+     * Reserves space for {@code owner}, a download or a session, replacing its previous reservation.
+     *
+     * @throws InsufficientSpaceException If the free space, minus what the others reserved and
+     *                                    {@link #MIN_FREE_BYTES}, isn't enough.
+     */
+    static void reserveSpace(Object owner, File file, long bytes) throws InsufficientSpaceException {
+        final long free = getAvailableBytes(file);
+        synchronized (sReservations) {
+            long reserved = 0;
+            for (Map.Entry<Object, Long> entry : sReservations.entrySet()) {
+                if (entry.getKey() != owner) reserved += entry.getValue();
+            }
+            final long available = Math.max(0, free - reserved - MIN_FREE_BYTES);
+            if (bytes > available) throw new InsufficientSpaceException(file.getName(), bytes, available);
+            sReservations.put(owner, bytes);
+        }
+    }
+
+    /**
+     * Changes a reservation without checking the free space, e.g. because part of it was used.
+     */
+    static void updateReservation(Object owner, long bytes) {
+        synchronized (sReservations) {
+            if (bytes > 0) {
+                sReservations.put(owner, bytes);
+            } else {
+                sReservations.remove(owner);
+            }
+        }
+    }
+
+    static void releaseSpace(Object owner) {
+        updateReservation(owner, 0);
+    }
+
+    /**
+     * Allocates the blocks of a file before writing it, so that it isn't fragmented and a full disk is found before
+     * downloading. The file gets its final length. Only on Lollipop and later.
+     *
+     * @return Whether the file was extended.
+     * @throws InsufficientSpaceException If there's no space for it.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    static boolean preallocate(RandomAccessFile file, long offset, long length, File target) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
+        try {
+            Os.posix_fallocate(file.getFD(), offset, length);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC) {
+                throw new InsufficientSpaceException(target.getName(), length, getAvailableBytes(target));
+            }
+            // e.g. not supported by the file system
+            return false;
         }
     }
+
+    private static boolean isOutOfSpace(IOException e) {
+        final String message = e.getMessage();
+        return message != null && (message.contains("ENOSPC") || message.contains("No space left"));
+    }
     //endregion
 
+    /**
+     * Retries a failed download, after a delay. The download stays in flight (and counted) while it waits.
+     */
     static void download(Download toDownload) {
         if (!toDownload.canRetry()) {
             Log.w(TAG, "Download of '" + toDownload.url + "' reached the limit of retries.");
             return;
         }
-        sDownloadCount.addAndGet(1);
-        downloadOne(toDownload);
+        counterOf(toDownload).incrementAndGet();
+        if (register(toDownload)) scheduleRetry(toDownload);
+    }
+
+    //region RETRIES
+    private static volatile long sRetryBaseDelayMillis = 1000;
+    private static volatile long sRetryMaxDelayMillis = 60 * 1000;
+    private static final Random sRandom = new Random();
+    private static ScheduledThreadPoolExecutor sRetryExecutor;
+
+    /**
+     * Exponential backoff with "full jitter": a random delay up to 1s, 2s, 4s... (capped at 60s) for each try, so the
+     * retries of downloads that failed together don't hit the server together.
+     */
+    static long getRetryDelay(int tries) {
+        final int doublings = Math.min(Math.max(tries - 1, 0), 16);
+        final long cap = Math.min(sRetryMaxDelayMillis, sRetryBaseDelayMillis << doublings);
+        return (long) (sRandom.nextDouble() * cap);
+    }
+
+    /**
+     * Changes the backoff of {@link #getRetryDelay(int)}, e.g. to make tests against a local server fast.
+     *
+     * @param baseMillis Cap of the delay of the first retry. Doubles for each try after that.
+     * @param maxMillis  Cap of the delay of any retry.
+     */
+    public static void setRetryDelay(long baseMillis, long maxMillis) {
+        sRetryBaseDelayMillis = baseMillis;
+        sRetryMaxDelayMillis = maxMillis;
+    }
+
+    /**
+     * Retries after the backoff delay or, if the network doesn't allow the download now, when it does. Failures while
+     * offline don't use up the retries.
+     */
+    private static void scheduleRetry(final Download download) {
+        if (!isNetworkAllowed(download)) {
+            park(download);
+            return;
+        }
+        schedule(download, getRetryDelay(download.tries));
+    }
+
+    private static synchronized void schedule(final Download download, long delayMillis) {
+        if (sRetryExecutor == null || sRetryExecutor.isShutdown()) sRetryExecutor = new ScheduledThreadPoolExecutor(1);
+        sRetryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCanceled(download)) startOne(download);
+                else handOver(unregister(download));
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized void cancelRetries() {
+        if (sRetryExecutor != null) sRetryExecutor.shutdownNow();
+        sRetryExecutor = null;
+        synchronized (sParked) {
+            sParked.clear();
+        }
+        unwatchNetwork();
+    }
+    //endregion
+
+    //region NETWORK
+    /**
+     * Which networks a download may use. Downloads that can't use the current network wait, without using up their
+     * retries, until a suitable one is available. Those already running when the network changes are paused and later
+     * resumed from where they stopped.
+     */
+    public enum NetworkPolicy {
+        /** Any network, metered ones included. */
+        ANY,
+        /** Networks that don't cost the user money. See {@link NetworkingUtils#isMetered()}. */
+        UNMETERED,
+        WIFI_ONLY
+    }
+
+    /** Downloads waiting for a network they're allowed to use. */
+    private static final ArrayList<Download> sParked = new ArrayList<>();
+    private static boolean sWatchingNetwork;
+
+    static boolean isNetworkAllowed(Download download) {
+        switch (download.networkPolicy) {
+            case WIFI_ONLY:
+                return NetworkingUtils.isOnWifi();
+            case UNMETERED:
+                return NetworkingUtils.hasInternet() && !NetworkingUtils.isMetered();
+            default:
+                return NetworkingUtils.hasInternet();
+        }
+    }
+
+    /**
+     * Holds a download that was about to start, or that was paused, until the network allows it. It stays in flight
+     * (and counted) while it waits.
+     */
+    private static void waitForNetwork(Download download) {
+        counterOf(download).incrementAndGet();
+        if (register(download)) park(download);
+    }
+
+    private static void park(Download download) {
+        Log.v(TAG, "Waiting for a %s network for %s", download.networkPolicy, download.file.getName());
+        synchronized (sParked) {
+            sParked.add(download);
+        }
+        watchNetwork();
+        // it may have come back before we started listening
+        onNetworkChanged();
+    }
+
+    /**
+     * Pauses the running downloads that can't use the current network and starts the waiting ones that can.
+     */
+    private static void onNetworkChanged() {
+        for (Download download : sActive) {
+            if (!download.paused && !isNetworkAllowed(download)) {
+                Log.i(TAG, "Pausing %s: not allowed on this network", download.file.getName());
+                download.paused = true;
+            }
+        }
+
+        final List<Download> allowed = new ArrayList<>();
+        synchronized (sParked) {
+            for (Iterator<Download> iterator = sParked.iterator(); iterator.hasNext(); ) {
+                final Download download = iterator.next();
+                if (isNetworkAllowed(download)) {
+                    allowed.add(download);
+                    iterator.remove();
+                }
+            }
+        }
+        if (allowed.isEmpty()) return;
+        Log.i(TAG, "Network is available. Starting %d downloads.", allowed.size());
+        // spread them a bit, the server also needs a moment
+        for (Download download : allowed) schedule(download, getRetryDelay(1));
+    }
+
+    /**
+     * Starts following the network state. Done while there are downloads.
+     */
+    private static synchronized void watchNetwork() {
+        if (sWatchingNetwork) return;
+        sWatchingNetwork = true;
+        NetworkingUtils.getInternetSubscription().register(sInternetListener);
+        NetworkingUtils.getWifiSubscription().register(sWifiListener);
+    }
+
+    private static synchronized void unwatchNetwork() {
+        if (!sWatchingNetwork) return;
+        sWatchingNetwork = false;
+        NetworkingUtils.getInternetSubscription().unregister(sInternetListener);
+        NetworkingUtils.getWifiSubscription().unregister(sWifiListener);
     }
 
+    private static final NetworkingUtils.InternetListener sInternetListener = new NetworkingUtils.InternetListener() {
+        @Override
+        public void onStatusChanged(NetworkingUtils.NetStatus status) {
+            onNetworkChanged();
+        }
+    };
+
+    private static final NetworkingUtils.WifiListener sWifiListener = new NetworkingUtils.WifiListener() {
+        @Override
+        public void onStatusChanged(NetworkingUtils.WifiStatus status) {
+            onNetworkChanged();
+        }
+    };
+    //endregion
+
     private static ThreadPoolExecutor getThreadPoolExecutor() {
         if (sThreadPoolExecutor == null || sThreadPoolExecutor.isShutdown()) {
             Log.i("NEW ThreadPoolExecutor");
@@ -298,40 +1793,270 @@ public final class FileDownloader {
                                                          MAX_POOL_SIZE,
                                                          KEEP_ALIVE_TIME,
                                                          TimeUnit.SECONDS,
-                                                         new LinkedBlockingQueue<Runnable>(MAX_QUEUE_SIZE));
+                                                         new DownloadQueue(MAX_QUEUE_SIZE));
         }
         return sThreadPoolExecutor;
     }
 
+    /**
+     * Runs a {@link Downloader} on the pool, queued according to the {@link Download#priority}.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void executeOnPool(final Download download) {
+        new Downloader().executeOnExecutor(new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                sThreadPoolExecutor.execute(new DownloadQueue.Entry(download, command));
+            }
+        }, download);
+    }
+
+    /**
+     * Changes the priority of a download that is already waiting in the queue, e.g. to fetch now the image that the user
+     * just scrolled to. Downloads that are running or not queued yet only have their {@link Download#priority} updated.
+     *
+     * @return true if the download was waiting and got moved.
+     */
+    public static boolean prioritize(Download download, Priority priority) {
+        final ThreadPoolExecutor executor = sThreadPoolExecutor;
+        if (executor == null || executor.isShutdown()) {
+            download.priority = priority;
+            return false;
+        }
+        return ((DownloadQueue) executor.getQueue()).reprioritize(download, priority);
+    }
+
 
     public static class Downloader extends AsyncTask<Download, Integer, String> {
 
         public static final int TIMEOUT_MILLIS = 15 * 1000;
         private static final String TAG = CodeUtils.getTag(Downloader.class);
 
+        private Download mDownload;
+        private boolean mPaused;
+
         @Nullable
         @Override
         protected final String doInBackground(Download... params) {
-            final Download download = params[0];
-            return syncDownload(download);
+            mDownload = params[0];
+            final String result = syncDownload(mDownload);
+            mPaused = mDownload.paused || !isNetworkAllowed(mDownload);
+            return result;
         }
 
         @Override
         protected void onPostExecute(String failedFile) {
-            if (!cancelAll) {
-                if (failedFile != null) {
-                    sNotifier.fileFailed(failedFile);
+            if (mDownload == null) {
+                onRunFinished(null, failedFile, false, true);
+                return;
+            }
+            // the session's slot goes to the next waiting download
+            final DownloadSession session = mDownload.session;
+            final Download next = session != null ? session.release(mDownload) : null;
+            if (next != null) dispatch(next);
+
+            // requests for the same file that were attached to this one get the final result
+            final List<Download> attached = unregister(mDownload);
+            onRunFinished(mDownload, failedFile, mPaused, attached != null);
+            if (attached == null) return;
+            if (failedFile != null && isCanceled(mDownload)) {
+                handOver(attached);
+            } else {
+                for (Download download : attached) onRunFinished(download, failedFile, false, true);
+            }
+        }
+    }
+
+    /**
+     * Updates the counter and the notifier of a download (of its session or the static ones) when a run of it is over.
+     *
+     * @param done If the download won't run again, i.e. this is its final result.
+     */
+    private static void onRunFinished(@Nullable Download download, @Nullable String failedFile, boolean paused,
+                                      boolean done) {
+        if (isCanceled(download)) return;
+        final FileDownloaderNotifier notifier = notifierOf(download);
+        if (failedFile != null && !paused) {
+            notifier.fileFailed(failedFile);
 //                Log.d(TAG, "Download of " + failedFile + " failed");
-                }
-                final int i = sDownloadCount.decrementAndGet();
-                sNotifier.queueUpdate(i);
-                if (i == 0) {
-                    sNotifier.finished();
-                }
+        }
+        if (done && download != null && download.session != null) download.session.onFinished(download, failedFile == null);
+        final int i = counterOf(download).decrementAndGet();
+        notifier.queueUpdate(i);
+        if (i == 0) {
+            if (isIdle()) unwatchNetwork();
+            notifier.finished();
+        }
+    }
+
+    //region SESSIONS
+    /** The live sessions, to cancel them with {@link #cancelAll()}. */
+    private static final Set<DownloadSession> sSessions =
+            Collections.newSetFromMap(new WeakHashMap<DownloadSession, Boolean>());
+
+    static void addSession(DownloadSession session) {
+        synchronized (sSessions) {
+            sSessions.add(session);
+        }
+    }
+
+    private static List<DownloadSession> getSessions() {
+        synchronized (sSessions) {
+            return new ArrayList<>(sSessions);
+        }
+    }
+
+    /**
+     * Forgets the downloads of a session that was just canceled. The running ones stop by themselves. Requests of
+     * other sessions (or static ones) that were attached to them are handed over when they stop.
+     *
+     * @param waiting The downloads that were waiting for a slot in the session, which won't run now.
+     */
+    static void cancelSession(DownloadSession session, Collection<Download> waiting) {
+        synchronized (sInFlight) {
+            for (Iterator<Download> iterator = sInFlight.values().iterator(); iterator.hasNext(); ) {
+                final Download download = iterator.next();
+                if (download.session != session) continue;
+                iterator.remove();
+                final DownloadJournal journal = sJournal;
+                if (journal != null) journal.done(download);
+            }
+        }
+        final List<Download> stopped = new ArrayList<>(waiting);
+        synchronized (sParked) {
+            for (Iterator<Download> iterator = sParked.iterator(); iterator.hasNext(); ) {
+                final Download download = iterator.next();
+                if (download.session != session) continue;
+                iterator.remove();
+                stopped.add(download);
             }
         }
+        for (Download download : stopped) handOver(unregister(download));
+        if (isIdle()) unwatchNetwork();
+    }
+
+    /**
+     * Starts again the requests that were attached to a canceled download, so they don't end with it. The first one
+     * that isn't canceled too becomes the new owner of the file and the others are attached to it.
+     */
+    private static void handOver(@Nullable List<Download> attached) {
+        if (attached == null) return;
+        for (Download download : attached) {
+            if (isCanceled(download)) continue;
+            Log.v(TAG, "Taking over the canceled download of %s", download.file.getName());
+            downloadOne(download);
+        }
+    }
+
+    static boolean isCanceled(@Nullable Download download) {
+        return download != null && download.token != null ? download.token.canceled : cancelAll;
+    }
+
+    private static AtomicInteger counterOf(@Nullable Download download) {
+        return download != null && download.session != null ? download.session.mCount : sDownloadCount;
+    }
+
+    private static FileDownloaderNotifier notifierOf(@Nullable Download download) {
+        return download != null && download.session != null ? download.session.getNotifier() : getNotifier();
+    }
+
+    /**
+     * @return Downloads left in the counter of {@code download}, not counting itself. For the logs.
+     */
+    private static int remaining(Download download) {
+        return counterOf(download).get() - 1;
+    }
+
+    /**
+     * @return true if no downloads are left, in any session.
+     */
+    private static boolean isIdle() {
+        if (sDownloadCount.get() > 0) return false;
+        for (DownloadSession session : getSessions()) if (session.getPendingCount() > 0) return false;
+        return true;
+    }
+    //endregion
+
+    //region PROGRESS
+    public static final long PROGRESS_INTERVAL_MILLIS = 500;
+    /** Downloads that are receiving data. */
+    private static final Set<Download> sActive =
+            Collections.newSetFromMap(new ConcurrentHashMap<Download, Boolean>());
+    private static final AtomicLong sBytes = new AtomicLong();
+    private static final AtomicLong sLastProgressMillis = new AtomicLong();
+    private static volatile long sLastProgressBytes;
+    private static final ConcurrentHashMap<String, DownloadStats.LatencyHistogram> sLatencies =
+            new ConcurrentHashMap<>();
+
+    private static void resetProgress() {
+        sBytes.set(0);
+        sLastProgressBytes = 0;
+        sLastProgressMillis.set(System.nanoTime() / 1000000L);
+        sLatencies.clear();
+    }
+
+    private static void recordLatency(URL url, long requestStartNanos) {
+        final String host = url.getHost();
+        DownloadStats.LatencyHistogram histogram = sLatencies.get(host);
+        if (histogram == null) {
+            sLatencies.putIfAbsent(host, new DownloadStats.LatencyHistogram());
+            histogram = sLatencies.get(host);
+        }
+        histogram.record((System.nanoTime() - requestStartNanos) / 1000000L);
+    }
+
+    /**
+     * Counts bytes received and, if it's time, sends a progress update to the notifier.
+     */
+    private static void onBytes(@Nullable Download download, int bytes) {
+        final long total = sBytes.addAndGet(bytes);
+        if (download != null) download.bytesDownloaded.addAndGet(bytes);
+        if (download != null && download.session != null) download.session.onBytes(bytes);
+
+        final long now = System.nanoTime() / 1000000L;
+        final long last = sLastProgressMillis.get();
+        if (now - last < PROGRESS_INTERVAL_MILLIS || !sLastProgressMillis.compareAndSet(last, now)) return;
+
+        final long bytesPerSecond = (total - sLastProgressBytes) * 1000 / (now - last);
+        sLastProgressBytes = total;
+
+        // the static notifier gets the totals of everything, each session its own
+        final List<Download> active = new ArrayList<>(sActive);
+        List<Download> own = new ArrayList<>(active.size());
+        for (Download d : active) if (d.session == null) own.add(d);
+        sendProgress(getNotifier(), null, own,
+                     new DownloadStats(total, bytesPerSecond, active.size(), DownloadStats.copy(sLatencies)));
+
+        for (DownloadSession session : getSessions()) {
+            if (session.getPendingCount() == 0) continue;
+            own = new ArrayList<>();
+            for (Download d : active) if (d.session == session) own.add(d);
+            final long sessionTotal = session.getBytes();
+            final long sessionBytesPerSecond = (sessionTotal - session.mLastProgressBytes) * 1000 / (now - last);
+            session.mLastProgressBytes = sessionTotal;
+            sendProgress(session.getNotifier(), session, own,
+                         new DownloadStats(sessionTotal, sessionBytesPerSecond, own.size(),
+                                           DownloadStats.copy(sLatencies)));
+        }
     }
 
+    private static void sendProgress(FileDownloaderNotifier notifier, @Nullable final DownloadSession session,
+                                     final List<Download> active, final DownloadStats stats) {
+        if (!(notifier instanceof FileDownloaderProgressNotifier)) return;
+        final FileDownloaderProgressNotifier progressNotifier = (FileDownloaderProgressNotifier) notifier;
+        CodeUtils.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                if (session == null ? cancelAll : session.getPendingCount() == 0) return;
+                for (Download download : active) {
+                    progressNotifier.progress(download, download.getBytesDownloaded(), download.getContentLength());
+                }
+                progressNotifier.stats(stats);
+            }
+        });
+    }
+    //endregion
+
     ///
     ///  NOTIFIER
     ///
@@ -358,7 +2083,20 @@ public final class FileDownloader {
         void fileFailed(String failedFile);
     }
 
-    public static class Notification implements FileDownloaderNotifier {
+    /**
+     * A notifier that also wants to know about bytes. Called on the main thread, at most every
+     * {@link #PROGRESS_INTERVAL_MILLIS} while data is arriving.
+     */
+    public interface FileDownloaderProgressNotifier extends FileDownloaderNotifier {
+        /**
+         * @param total The size of the file or -1 if unknown.
+         */
+        void progress(Download download, long bytes, long total);
+
+        void stats(DownloadStats stats);
+    }
+
+    public static class Notification implements FileDownloaderProgressNotifier {
         @Override
         public void start(int downloads) {
             Log.i(TAG, "Downloads Starting. Count: " + downloads);
@@ -383,5 +2121,13 @@ public final class FileDownloader {
         public void fileFailed(String failedFile) {
             Log.w(TAG, "File Failed: " + failedFile);
         }
+
+        @Override
+        public void progress(Download download, long bytes, long total) {
+        }
+
+        @Override
+        public void stats(DownloadStats stats) {
+        }
     }
 }
@@ -8,6 +8,8 @@ import org.apache.commons.lang3.StringUtils;
 import android.support.annotation.Nullable;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.regex.Pattern;
 
@@ -34,13 +36,21 @@ public final class FileUtils {
         //noinspection ResultOfMethodCallIgnored
         dst.getParentFile().mkdirs();
 
-        InputStream in = new FileInputStream(src);
-        OutputStream out = new FileOutputStream(dst);
-
-        // Transfer bytes from in to out
-        copyStreams(in, out);
-        in.close();
-        out.close();
+        FileChannel in = new FileInputStream(src).getChannel();
+        FileChannel out = new FileOutputStream(dst).getChannel();
+        try {
+            // Transfer bytes from in to out, in the kernel where it can
+            final long size = in.size();
+            long position = 0;
+            while (position < size) {
+                final long n = in.transferTo(position, size - position, out);
+                if (n <= 0) break; // the file got shorter
+                position += n;
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
     }
 
     /**
@@ -109,11 +119,10 @@ public final class FileUtils {
      * @throws IOException
      */
     private static void copyStreams(InputStream in, OutputStream out) throws IOException {
-        byte[] buffer = new byte[1024];
-        int read;
-        while ((read = in.read(buffer)) != -1) {
-            out.write(buffer, 0, read);
-        }
+        ByteBufferPool.copy(Channels.newChannel(in),
+                            out instanceof FileOutputStream
+                            ? ((FileOutputStream) out).getChannel()
+                            : Channels.newChannel(out));
     }
 
 
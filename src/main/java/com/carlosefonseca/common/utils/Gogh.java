@@ -252,7 +252,8 @@ public class Gogh {
             }
 
             if (optionsBuilder != null) options = optionsBuilder.build();
-            UIL.display_(g.mUrl, g.mView, imageLoadingListener, options);
+            // rows showing the same image while it loads share the load
+            UIL.displayShared(UIL.getUri(g.mUrl), g.mView, options, imageLoadingListener);
         }
 
         static LruCache<Integer, CFRoundedBitmapDisplayer> sRoundCornersBitmapDisplayerCache =
@@ -270,6 +271,11 @@ public class Gogh {
                     }
                 };
 
+        static {
+            MemoryCaches.register("Gogh round corners displayers", sRoundCornersBitmapDisplayerCache);
+            MemoryCaches.register("Gogh circle displayers", sCircleBitmapDisplayerCache);
+        }
+
         public static CFRoundedBitmapDisplayer getRoundCornersBitmapDisplayer(int cornerRadius) {
             return sRoundCornersBitmapDisplayerCache.get(cornerRadius);
         }
@@ -321,6 +327,8 @@ public class Gogh {
 
             @Override
             public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+                // handed out, it may be kept or shown elsewhere
+                if (listener != null || mTaskSource != null) BitmapPool.pin(loadedImage);
                 if (listener != null) {
                     listener.bitmap(loadedImage);
                 }
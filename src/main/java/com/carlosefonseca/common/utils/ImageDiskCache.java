@@ -0,0 +1,377 @@
+package com.carlosefonseca.common.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+
+import java.io.*;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.carlosefonseca.common.utils.CodeUtils.getTag;
+
+/**
+ * Disk cache of images made from other images (thumbnails, crops...), limited in bytes, that drops the least recently
+ * used ones when full.
+ * <p/>
+ * What is in the directory is kept in an append-only journal: a line when an image is added (with its size in bytes
+ * and pixels), read or removed. It is replayed when the cache is opened and rewritten when it has many more lines than
+ * images. Images are written to a temporary file and renamed, so a file with the name of a key is always complete; a
+ * file that the journal doesn't know about (e.g. the process died before the line was written) is deleted on open.
+ * <p/>
+ * Keys come from {@link #key(String, long, String)}, so a new version of the source or another transform is another
+ * image.
+ */
+public final class ImageDiskCache {
+    private static final String TAG = getTag(ImageDiskCache.class);
+
+    static final String JOURNAL = "journal";
+    /** The journal is rewritten when it has this many more lines than there are images. */
+    static final int COMPACT_THRESHOLD = 2000;
+
+    private static final String CLEAN = "C";
+    private static final String READ = "R";
+    private static final String REMOVE = "D";
+
+    private final File mDirectory;
+    private final File mJournalFile;
+    private final long mMaxSize;
+    /** Least recently used first. */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private long mSize;
+    private int mRedundant;
+    private Writer mWriter;
+    private Bitmap.CompressFormat mFormat = Bitmap.CompressFormat.JPEG;
+    private int mQuality = 85;
+    private int mTempCounter;
+
+    /**
+     * Opens the cache in {@code directory}, creating it if needed.
+     *
+     * @param maxSize Bytes of images to keep.
+     * @throws IOException If the directory or the journal can't be written.
+     */
+    public ImageDiskCache(File directory, long maxSize) throws IOException {
+        mDirectory = directory;
+        mJournalFile = new File(directory, JOURNAL);
+        mMaxSize = maxSize;
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        if (!directory.isDirectory()) throw new IOException("Failed to create " + directory);
+        if (mJournalFile.exists()) replay();
+        deleteUnknownFiles();
+        compact();
+        trimToSize();
+    }
+
+    /**
+     * @param source    Path or url of the original image.
+     * @param modified  When the original was last modified, e.g. {@link File#lastModified()}, or 0 if unknown.
+     * @param transform What was done to it, with its parameters, e.g. "square:200".
+     * @return A key for the image made by {@code transform} from this version of {@code source}.
+     */
+    public static String key(String source, long modified, String transform) {
+        try {
+            return ContentHash.of((source + "\n" + modified + "\n" + transform).getBytes("UTF-8"),
+                                  ContentHash.Algorithm.MD5).hex;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sets how the images are written from now on, JPEG at 85 by default. Images already in the cache are kept as
+     * they are; they are decoded whatever the format.
+     *
+     * @param quality 0-100, ignored by PNG.
+     */
+    public synchronized void setFormat(Bitmap.CompressFormat format, int quality) {
+        mFormat = format;
+        mQuality = quality;
+    }
+
+    //region CACHE
+    /**
+     * Decodes the image of {@code key}, into a bitmap from the {@link BitmapPool} if there's one of the right size.
+     *
+     * @return The image or null if it isn't in the cache or can't be decoded.
+     */
+    @Nullable
+    public Bitmap get(String key) {
+        final Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) return null;
+            append(READ, key);
+        }
+        final String path = fileFor(key).getAbsolutePath();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        BitmapPool.prepare(options, entry.width, entry.height);
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (!BitmapPool.decodeFailed(options)) throw e;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        }
+        // deleted behind our back or evicted while decoding
+        if (bitmap == null) {
+            Log.w(TAG, "Failed to decode " + path);
+            remove(key);
+        }
+        return bitmap;
+    }
+
+    public synchronized boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    /**
+     * Writes an image to the cache, replacing the previous one with the same key. Can be called from any thread but
+     * not the main one.
+     *
+     * @return Whether it was written.
+     */
+    public boolean put(String key, Bitmap bitmap) {
+        final File tempFile;
+        final Bitmap.CompressFormat format;
+        final int quality;
+        synchronized (this) {
+            tempFile = new File(mDirectory, key + "." + mTempCounter++ + ".tmp");
+            format = mFormat;
+            quality = mQuality;
+        }
+        boolean written = false;
+        try {
+            final OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile), 32 * 1024);
+            try {
+                written = bitmap.compress(format, quality, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + tempFile, e);
+        }
+        if (!written) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return false;
+        }
+
+        synchronized (this) {
+            final File file = fileFor(key);
+            if (!tempFile.renameTo(file)) {
+                Log.w(TAG, "Failed to rename " + tempFile + " to " + file);
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+                return false;
+            }
+            final Entry entry = new Entry(file.length(), bitmap.getWidth(), bitmap.getHeight());
+            final Entry previous = mEntries.put(key, entry);
+            if (previous != null) {
+                mSize -= previous.bytes;
+                mRedundant++;
+            }
+            mSize += entry.bytes;
+            append(CLEAN, key, String.valueOf(entry.bytes), String.valueOf(entry.width), String.valueOf(entry.height));
+            trimToSize();
+        }
+        return true;
+    }
+
+    public synchronized void remove(String key) {
+        final Entry entry = mEntries.remove(key);
+        if (entry == null) return;
+        delete(key, entry);
+        append(REMOVE, key);
+    }
+
+    /**
+     * Deletes every image.
+     */
+    public synchronized void clear() {
+        for (Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<String, Entry> entry = iterator.next();
+            iterator.remove();
+            delete(entry.getKey(), entry.getValue());
+        }
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to compact " + mJournalFile, e);
+        }
+    }
+
+    public synchronized long getSize() {
+        return mSize;
+    }
+
+    public long getMaxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int getCount() {
+        return mEntries.size();
+    }
+
+    /**
+     * Closes the journal. The cache can't be used afterwards.
+     */
+    public synchronized void close() {
+        if (mWriter == null) return;
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        mWriter = null;
+    }
+
+    File fileFor(String key) {
+        return new File(mDirectory, key);
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && iterator.hasNext()) {
+            final Map.Entry<String, Entry> entry = iterator.next();
+            iterator.remove();
+            delete(entry.getKey(), entry.getValue());
+            append(REMOVE, entry.getKey());
+        }
+    }
+
+    private void delete(String key, Entry entry) {
+        mSize -= entry.bytes;
+        final File file = fileFor(key);
+        if (file.exists() && !file.delete()) Log.w(TAG, "Failed to delete " + file);
+    }
+    //endregion
+
+    //region JOURNAL
+    private void append(String... fields) {
+        if (mWriter == null) return;
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) mWriter.write(' ');
+                mWriter.write(fields[i]);
+            }
+            mWriter.write('\n');
+            mWriter.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write to " + mJournalFile, e);
+            return;
+        }
+        if (!CLEAN.equals(fields[0]) && ++mRedundant >= COMPACT_THRESHOLD && mRedundant >= mEntries.size()) {
+            try {
+                compact();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to compact " + mJournalFile, e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the entries, in the order they were used, from the journal. A torn last line (the process died while
+     * writing it) is ignored.
+     */
+    private void replay() throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(mJournalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(" ");
+                try {
+                    replay(fields);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Ignoring bad record in " + mJournalFile + ": " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        for (Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<String, Entry> entry = iterator.next();
+            if (fileFor(entry.getKey()).length() != entry.getValue().bytes) {
+                iterator.remove();
+                delete(entry.getKey(), entry.getValue());
+            }
+        }
+        Log.i(TAG, "%d images, %s kB in %s", mEntries.size(), CodeUtils.getKB(mSize), mDirectory.getName());
+    }
+
+    private void replay(String[] fields) {
+        final String key = fields[1];
+        switch (fields[0]) {
+            case CLEAN:
+                final Entry entry = new Entry(Long.parseLong(fields[2]), Integer.parseInt(fields[3]),
+                                              Integer.parseInt(fields[4]));
+                final Entry previous = mEntries.put(key, entry);
+                if (previous != null) mSize -= previous.bytes;
+                mSize += entry.bytes;
+                break;
+            case READ:
+                mEntries.get(key);
+                break;
+            case REMOVE:
+                final Entry removed = mEntries.remove(key);
+                if (removed != null) mSize -= removed.bytes;
+                break;
+            default:
+                throw new IllegalArgumentException(fields[0]);
+        }
+    }
+
+    /**
+     * Deletes temporary files and images that aren't in the journal.
+     */
+    private void deleteUnknownFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) return;
+        final HashSet<String> known = new HashSet<>(mEntries.keySet());
+        known.add(JOURNAL);
+        for (File file : files) {
+            if (!known.contains(file.getName()) && !file.delete()) Log.w(TAG, "Failed to delete " + file);
+        }
+    }
+
+    /**
+     * Replaces the journal with a line per image, the least recently used first.
+     */
+    private void compact() throws IOException {
+        if (mWriter != null) mWriter.close();
+        mWriter = null;
+
+        final File tempFile = new File(mJournalFile.getAbsolutePath() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Map.Entry<String, Entry> entry : mEntries.entrySet()) {
+                final Entry value = entry.getValue();
+                writer.write(CLEAN + ' ' + entry.getKey() + ' ' + value.bytes + ' ' + value.width + ' ' +
+                             value.height + '\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tempFile.renameTo(mJournalFile)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + mJournalFile);
+        }
+        mRedundant = 0;
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(mJournalFile, true), "UTF-8"));
+    }
+    //endregion
+
+    private static final class Entry {
+        final long bytes;
+        final int width;
+        final int height;
+
+        Entry(long bytes, int width, int height) {
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+        }
+    }
+}
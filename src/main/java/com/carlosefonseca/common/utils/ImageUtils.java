@@ -46,6 +46,12 @@ public final class ImageUtils {
     private static DisplayMetrics displayMetrics;
     private static int screenLayout;
     private static File cacheDir;
+    private static final long THUMBNAIL_CACHE_SIZE = 20 * 1024 * 1024;
+    @Nullable private static ImageDiskCache sThumbnailCache;
+    /** Names of the thumbnails from before {@link ImageDiskCache}: the image name without extension, then the side. */
+    private static final Pattern OLD_THUMBNAIL = Pattern.compile(".+\\d+\\.png");
+    /** Loads of {@link SizedImageCache}. */
+    private static final InFlightLoads sLoads = new InFlightLoads();
 
     static {
         Context c = CFApp.getContext();
@@ -222,30 +228,6 @@ public final class ImageUtils {
         return imagesOnAssets;
     }
 
-    /**
-     * Saves an image to the cache, asynchronously.
-     */
-    static class ImageWriter extends AsyncTask<Void, Void, Void> {
-        private final File file;
-        private final Bitmap bitmap;
-
-        public ImageWriter(File file, Bitmap bitmap) {
-            this.file = file;
-            this.bitmap = bitmap;
-        }
-
-        @Override
-        protected Void doInBackground(Void... voids) {
-            try {
-                FileOutputStream out = new FileOutputStream(file);
-                bitmap.compress(Bitmap.CompressFormat.PNG, 0, out);
-            } catch (Exception e) {
-                Log.e(TAG, "Bitmap file:" + file, e);
-            }
-            return null;
-        }
-    }
-
     public static void writeImageInBackground(final File file, final Bitmap bitmap) {
         Task.callInBackground(new Callable<Object>() {
             @Nullable
@@ -272,6 +254,17 @@ public final class ImageUtils {
      * @throws IOException
      */
     public static boolean writeImage(Bitmap bitmap, File imageFile) throws IOException {
+        return writeImage(bitmap, imageFile, Bitmap.CompressFormat.PNG, 100);
+    }
+
+    /**
+     * Writes the image to a temporary file and renames it, so {@code imageFile} is either the previous one or the
+     * complete new one.
+     *
+     * @param quality 0-100, ignored by PNG.
+     */
+    public static boolean writeImage(Bitmap bitmap, File imageFile, Bitmap.CompressFormat format, int quality)
+            throws IOException {
         final String TEMP_IMAGE_POSTFIX = ".tmp";
         final int DEFAULT_BUFFER_SIZE = 32 * 1024; // 32 Kb
 
@@ -279,7 +272,7 @@ public final class ImageUtils {
         OutputStream os = new BufferedOutputStream(new FileOutputStream(tmpFile), DEFAULT_BUFFER_SIZE);
         boolean savedSuccessfully = false;
         try {
-            savedSuccessfully = bitmap.compress(Bitmap.CompressFormat.PNG, 100, os);
+            savedSuccessfully = bitmap.compress(format, quality, os);
         } finally {
             IoUtils.closeSilently(os);
             if (savedSuccessfully && !tmpFile.renameTo(imageFile)) {
@@ -293,9 +286,55 @@ public final class ImageUtils {
     }
 
 
+    /**
+     * The disk cache of {@link #getCachedSquareThumbnail(Context, String, int)}, in the cache dir, opened on first use.
+     * Its format can be changed with {@link ImageDiskCache#setFormat(Bitmap.CompressFormat, int)}.
+     *
+     * @return The cache or null if it can't be opened.
+     */
+    @Nullable
+    public static synchronized ImageDiskCache getThumbnailCache() {
+        if (sThumbnailCache == null) {
+            try {
+                final File directory = new File(cacheDir, "thumbnails");
+                final boolean firstOpen = !directory.exists();
+                sThumbnailCache = new ImageDiskCache(directory, THUMBNAIL_CACHE_SIZE);
+                if (firstOpen && cacheDir != null) deleteOldThumbnailsInBackground(cacheDir);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to open the thumbnail cache", e);
+            }
+        }
+        return sThumbnailCache;
+    }
+
+    /**
+     * Deletes the thumbnails that {@link #getCachedSquareThumbnail(Context, String, int)} used to save straight into
+     * the cache dir, as {@code <name><side>.png}, and that nothing ever removed.
+     */
+    private static void deleteOldThumbnailsInBackground(final File dir) {
+        Task.callInBackground(new Callable<Object>() {
+            @Nullable
+            @Override
+            public Object call() throws Exception {
+                final File[] files = dir.listFiles(new FileFilter() {
+                    @Override
+                    public boolean accept(File file) {
+                        return file.isFile() && OLD_THUMBNAIL.matcher(file.getName()).matches();
+                    }
+                });
+                if (files == null) return null;
+                int deleted = 0;
+                for (File file : files) if (file.delete()) deleted++;
+                if (deleted > 0) Log.i(TAG, "Deleted %d thumbnails of the old cache", deleted);
+                return null;
+            }
+        });
+    }
+
     /**
      * Creates a squared thumbnail image from a source image and saves it to disk.
-     * Subsequent requests to the same image with the same size will return the cached image.
+     * Subsequent requests to the same image with the same size will return the cached image, until the source image
+     * changes or the thumbnail is evicted (see {@link #getThumbnailCache()}).
      * The thumbnail will be a center-cropped version of the original, scaled to the specified size and rotated according to the
      * EXIF.
      *
@@ -309,27 +348,19 @@ public final class ImageUtils {
     @Deprecated
     public static Bitmap getCachedSquareThumbnail(Context c, String path, int side) {
         try {
-            Bitmap bitmap;
-            String name = new File(path).getName();
-            File cacheFile = new File(cacheDir, name.substring(0, name.length() - 4) + side + ".png");
-            if (!cacheFile.exists()) {
+            final ImageDiskCache cache = getThumbnailCache();
+            final String key = ImageDiskCache.key(path, new File(path).lastModified(), "square:" + side);
+            Bitmap bitmap = cache != null ? cache.get(key) : null;
+            if (bitmap == null) {
                 try {
                     bitmap = getSquareThumbnail(c, path, side);
-                    new ImageWriter(cacheFile, bitmap).execute();
                 } catch (Exception e) {
                     Log.e(TAG, "Error generating thumbnail", e);
                     return null;
                 }
+                if (cache != null) writeThumbnailInBackground(cache, key, bitmap);
             } else {
                 Log.v(TAG, "Loading from cache " + path);
-                final BitmapFactory.Options options = new BitmapFactory.Options();
-                if (Build.VERSION.SDK_INT <= Build.VERSION_CODES.KITKAT) {
-                    //noinspection deprecation
-                    options.inPurgeable = true;
-                    //noinspection deprecation
-                    options.inInputShareable = true;
-                }
-                bitmap = BitmapFactory.decodeFile(cacheFile.getAbsolutePath(), options);
             }
             return bitmap;
         } catch (OutOfMemoryError e) {
@@ -338,6 +369,17 @@ public final class ImageUtils {
         }
     }
 
+    private static void writeThumbnailInBackground(final ImageDiskCache cache, final String key, final Bitmap bitmap) {
+        Task.callInBackground(new Callable<Object>() {
+            @Nullable
+            @Override
+            public Object call() throws Exception {
+                cache.put(key, bitmap);
+                return null;
+            }
+        });
+    }
+
     /**
      * Creates a thumbnail image from a source image.
      * The thumbnail will be a center-cropped version of the original, scaled to the specified size and rotated according to the
@@ -807,6 +849,10 @@ public final class ImageUtils {
     /**
      * Image cache that loads resized photos from disk. Specify the desired size of the images in the constructor and perform
      * {@link #get(Object)} with a filename or a
+     * <p/>
+     * Threads that miss the same image at the same size at the same time share one decode, even across caches, so
+     * several caches may hold the same bitmap. Its bitmaps are handed out by {@link #get(Object)} to be shown anywhere,
+     * so they never go to the {@link BitmapPool}.
      */
     public static class SizedImageCache extends LruCache<String, Bitmap> {
         protected final int width;
@@ -816,6 +862,7 @@ public final class ImageUtils {
             super(maxSize);
             this.width = widthDP;
             this.height = heightDP;
+            MemoryCaches.register("SizedImageCache " + widthDP + "x" + heightDP, this);
         }
 
         public SizedImageCache(int maxSize, int imageSizeDP) {
@@ -824,8 +871,26 @@ public final class ImageUtils {
 
         @Nullable
         @Override
-        protected Bitmap create(String key) {
-            return UIL.loadSync(key, dp2px(width), dp2px(height));
+        protected Bitmap create(final String key) {
+            final int widthPx = dp2px(width);
+            final int heightPx = dp2px(height);
+            try {
+                return sLoads.load(new InFlightLoads.Key(key, widthPx, heightPx, null), new Callable<Bitmap>() {
+                    @Nullable
+                    @Override
+                    public Bitmap call() throws Exception {
+                        return UIL.loadSync(key, widthPx, heightPx);
+                    }
+                });
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (Exception e) {
+                Log.w(TAG, "Failed to load " + key, e);
+                return null;
+            }
         }
     }
 
@@ -844,6 +909,7 @@ public final class ImageUtils {
             // Use 1/4th of the available memory for this memory cache.
             super(Math.max(0, (int) ((Runtime.getRuntime().maxMemory() - Runtime.getRuntime().totalMemory()) / 4)));
             Log.i(TAG, "Cache Size: " + maxSize() / 1024f / 1024f + " MB");
+            MemoryCaches.register("BitmapCache", this);
         }
 
         @Override
@@ -0,0 +1,280 @@
+package com.carlosefonseca.common.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Loads of images that are in progress, by {@link Key}, so that asking for an image that is already being loaded
+ * waits for that load instead of starting another one: twenty rows with the same avatar decode it once.
+ * <p/>
+ * Each caller gets its own {@link Request} and can cancel it without affecting the others. The load itself is only
+ * canceled when every request on it was, and then it leaves the table, so the next request starts a new one.
+ */
+public class InFlightLoads {
+    private static final String TAG = CodeUtils.getTag(InFlightLoads.class);
+
+    /**
+     * Identifies an image: where it comes from, the size it's decoded for and anything else that makes the bitmap
+     * different (decoding options, a transformation...), compared with {@link Object#equals(Object)}.
+     */
+    public static final class Key {
+        public final String uri;
+        public final int width;
+        public final int height;
+        @Nullable public final Object transform;
+
+        public Key(String uri, int width, int height, @Nullable Object transform) {
+            this.uri = uri;
+            this.width = width;
+            this.height = height;
+            this.transform = transform;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            final Key key = (Key) o;
+            return width == key.width && height == key.height && uri.equals(key.uri) &&
+                   (transform == null ? key.transform == null : transform.equals(key.transform));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uri.hashCode();
+            result = 31 * result + width;
+            result = 31 * result + height;
+            return 31 * result + (transform != null ? transform.hashCode() : 0);
+        }
+
+        @Override
+        public String toString() {
+            return uri + " " + width + "x" + height + (transform != null ? " " + transform : "");
+        }
+    }
+
+    /**
+     * Gets the result of a load, on the thread that finished it.
+     */
+    public interface Listener {
+        /** @param bitmap The image, or null if there is none. */
+        void onLoaded(@Nullable Bitmap bitmap);
+
+        /** @param error Why it failed, or null if the load was canceled by its loader. */
+        void onFailed(@Nullable Exception error);
+    }
+
+    /**
+     * Starts the load of a flight, calling {@link Flight#complete(Bitmap)} or {@link Flight#fail(Exception)} when it
+     * ends, on any thread.
+     */
+    public interface Starter {
+        void start(Flight flight);
+    }
+
+    /**
+     * A load in progress and the requests waiting for it.
+     */
+    public final class Flight {
+        public final Key key;
+        /** Guarded by the table. */
+        private final ArrayList<Request> mRequests = new ArrayList<>(1);
+        private boolean mDone;
+        private boolean mCanceled;
+        @Nullable private Runnable mOnCancel;
+        @Nullable private BitmapFactory.Options mOptions;
+
+        Flight(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * @return Whether every request was canceled, so the load may stop.
+         */
+        public boolean isCanceled() {
+            synchronized (InFlightLoads.this) {
+                return mCanceled;
+            }
+        }
+
+        /**
+         * Sets what to run when every request is canceled, e.g. canceling the load. Runs right away if they already
+         * were.
+         */
+        public void setOnCancel(Runnable onCancel) {
+            synchronized (InFlightLoads.this) {
+                if (!mCanceled) {
+                    mOnCancel = onCancel;
+                    return;
+                }
+            }
+            onCancel.run();
+        }
+
+        /**
+         * Sets the options of the decode in progress, null once it's over, so that the decode stops (see
+         * {@link BitmapFactory.Options#requestCancelDecode()}) when every request is canceled and not just its result
+         * is dropped.
+         */
+        public void setDecodeOptions(@Nullable BitmapFactory.Options options) {
+            synchronized (InFlightLoads.this) {
+                if (!mCanceled) {
+                    mOptions = options;
+                    return;
+                }
+            }
+            if (options != null) options.requestCancelDecode();
+        }
+
+        public void complete(@Nullable Bitmap bitmap) {
+            for (Request request : finish()) request.mListener.onLoaded(bitmap);
+        }
+
+        public void fail(@Nullable Exception error) {
+            for (Request request : finish()) request.mListener.onFailed(error);
+        }
+
+        /**
+         * @return The requests still waiting.
+         */
+        private ArrayList<Request> finish() {
+            synchronized (InFlightLoads.this) {
+                if (mDone) return new ArrayList<>(0);
+                mDone = true;
+                if (mFlights.get(key) == this) mFlights.remove(key);
+                final ArrayList<Request> requests = new ArrayList<>(mRequests);
+                mRequests.clear();
+                return requests;
+            }
+        }
+    }
+
+    /**
+     * What a caller waits on. Canceling it only stops this caller from getting the result.
+     */
+    public final class Request {
+        private final Flight mFlight;
+        private final Listener mListener;
+
+        Request(Flight flight, Listener listener) {
+            mFlight = flight;
+            mListener = listener;
+        }
+
+        public Key getKey() {
+            return mFlight.key;
+        }
+
+        /**
+         * Stops this request from getting the result. The load is canceled if it was the last one waiting for it.
+         */
+        public void cancel() {
+            final Runnable onCancel;
+            final BitmapFactory.Options options;
+            synchronized (InFlightLoads.this) {
+                if (!mFlight.mRequests.remove(this) || !mFlight.mRequests.isEmpty()) return;
+                mFlight.mCanceled = true;
+                if (mFlights.get(mFlight.key) == mFlight) mFlights.remove(mFlight.key);
+                onCancel = mFlight.mOnCancel;
+                mFlight.mOnCancel = null;
+                options = mFlight.mOptions;
+                mFlight.mOptions = null;
+            }
+            Log.v(TAG, "Canceled %s", mFlight.key);
+            if (options != null) options.requestCancelDecode();
+            if (onCancel != null) onCancel.run();
+        }
+    }
+
+    /** Guarded by this. */
+    private final HashMap<Key, Flight> mFlights = new HashMap<>();
+    private int mStarted;
+    private int mJoined;
+
+    /**
+     * Waits for the load of {@code key} if there's one in progress, or starts it with {@code starter}, on this thread.
+     *
+     * @param listener Gets the result, unless the request is canceled.
+     */
+    public Request request(Key key, Listener listener, Starter starter) {
+        final Flight flight;
+        final Request request;
+        final boolean start;
+        synchronized (this) {
+            Flight existing = mFlights.get(key);
+            start = existing == null;
+            if (start) {
+                existing = new Flight(key);
+                mFlights.put(key, existing);
+                mStarted++;
+            } else {
+                mJoined++;
+            }
+            flight = existing;
+            request = new Request(flight, listener);
+            flight.mRequests.add(request);
+        }
+        if (start) {
+            starter.start(flight);
+        } else {
+            Log.v(TAG, "Joined %s", key);
+        }
+        return request;
+    }
+
+    /**
+     * Loads an image with {@code loader} on this thread or, if it is already being loaded, waits for that load.
+     * Blocks, don't call it on the main thread.
+     */
+    @Nullable
+    public Bitmap load(Key key, final Callable<Bitmap> loader) throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Bitmap[] bitmap = new Bitmap[1];
+        final Exception[] error = new Exception[1];
+        request(key, new Listener() {
+            @Override
+            public void onLoaded(@Nullable Bitmap loaded) {
+                bitmap[0] = loaded;
+                done.countDown();
+            }
+
+            @Override
+            public void onFailed(@Nullable Exception e) {
+                error[0] = e;
+                done.countDown();
+            }
+        }, new Starter() {
+            @Override
+            public void start(Flight flight) {
+                final Bitmap loaded;
+                try {
+                    loaded = loader.call();
+                } catch (Exception e) {
+                    flight.fail(e);
+                    return;
+                }
+                flight.complete(loaded);
+            }
+        });
+        done.await();
+        if (error[0] != null) throw error[0];
+        return bitmap[0];
+    }
+
+    /** Loads in progress. */
+    public synchronized int size() {
+        return mFlights.size();
+    }
+
+    /**
+     * @return How many loads were started and how many requests joined one that was in progress.
+     */
+    public synchronized String getStats() {
+        return "InFlightLoads{" + mFlights.size() + " in flight, " + mStarted + " started, " + mJoined + " joined}";
+    }
+}
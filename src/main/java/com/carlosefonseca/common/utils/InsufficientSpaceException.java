@@ -0,0 +1,20 @@
+package com.carlosefonseca.common.utils;
+
+import java.io.IOException;
+
+/**
+ * A download doesn't fit in the space left on the device. {@link FileDownloader} doesn't retry these.
+ */
+public class InsufficientSpaceException extends IOException {
+    /** Bytes needed or -1 if unknown (the disk got full while writing). */
+    public final long required;
+    /** Bytes that could be used, after the space reserved by other downloads. */
+    public final long available;
+
+    public InsufficientSpaceException(String file, long required, long available) {
+        super("Not enough space for " + file + ": " + (required >= 0 ? required + " bytes needed, " : "") +
+              available + " available");
+        this.required = required;
+        this.available = available;
+    }
+}
@@ -214,6 +214,38 @@ public final class ListUtils {
             return new ListComparator<>(newObjects, sameObjects, oldObjects, updatedObjects);
         }
 
+        /**
+         * Same as {@link #computeWithUpdates(java.util.Collection, java.util.Collection)} but matches the items with a
+         * hash map instead of searching the list for each one, so it's linear instead of quadratic. Use it for big lists.
+         *
+         * @param <T> Should implement {@link java.lang.Object#equals(Object)} and {@link Object#hashCode()}
+         */
+        public static <T extends Comparable<T>> ListComparator<T> computeWithUpdatesHashed(Collection<T> existingStuff,
+                                                                                           Collection<T> newStuff) {
+            LinkedHashMap<T, T> existing = new LinkedHashMap<>(existingStuff.size() * 4 / 3 + 1);
+            for (T t : existingStuff) existing.put(t, t);
+            ArrayList<T> newObjects = new ArrayList<>();
+            ArrayList<T> updatedObjects = new ArrayList<>();
+            ArrayList<T> sameObjects = new ArrayList<>();
+
+            for (T t : newStuff) {
+                final T oldT = existing.remove(t);
+                if (oldT == null) {
+                    newObjects.add(t);
+                } else {
+                    final int compareTo = oldT.compareTo(t);
+                    if (compareTo == 0) {
+                        sameObjects.add(t);
+                    } else if (compareTo > 0) {
+                        updatedObjects.add(t);
+                    } else {
+                        Log.w(TAG, "Existing object " + oldT + " is newer than 'new' object " + t);
+                    }
+                }
+            }
+            return new ListComparator<>(newObjects, sameObjects, new ArrayList<>(existing.values()), updatedObjects);
+        }
+
         protected void handleEqualObjects(T oldT, T t) {
             sameObjects.add(t);
         }
@@ -0,0 +1,189 @@
+package com.carlosefonseca.common.utils;
+
+import android.content.ComponentCallbacks2;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+/**
+ * The caches that hold memory the app can do without, trimmed together when the system is short of it (see
+ * {@link com.carlosefonseca.common.CFApp#onTrimMemory(int)}): the more pressure, the less of each is kept, until
+ * everything is dropped when the app is about to be killed in the background.
+ * <p/>
+ * The {@link BitmapPool} is cleared first and what the caches evict is freed instead of going to the pool, otherwise
+ * it would just move from one to the other.
+ */
+public final class MemoryCaches {
+    private static final String TAG = CodeUtils.getTag(MemoryCaches.class);
+
+    /**
+     * A cache that can give memory back.
+     */
+    public interface Trimmable {
+        /** What it holds, in its own unit (bytes for bitmaps). */
+        long getSize();
+
+        long getMaxSize();
+
+        /** Drops the least recently used entries until it holds at most {@code size}, without pooling them. */
+        void trimToSize(long size);
+    }
+
+    /**
+     * How full a cache is.
+     */
+    public static final class Occupancy {
+        public final String name;
+        public final long size;
+        public final long maxSize;
+
+        Occupancy(String name, long size, long maxSize) {
+            this.name = name;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + size + "/" + maxSize;
+        }
+    }
+
+    private static final class Registration {
+        final String name;
+        /** Null for caches that are registered for good. */
+        @Nullable final WeakReference<LruCache<?, ?>> lruCache;
+        @Nullable final Trimmable trimmable;
+
+        Registration(String name, @Nullable LruCache<?, ?> lruCache, @Nullable Trimmable trimmable) {
+            this.name = name;
+            this.lruCache = lruCache != null ? new WeakReference<LruCache<?, ?>>(lruCache) : null;
+            this.trimmable = trimmable;
+        }
+    }
+
+    /** Guarded by the class. */
+    private static final ArrayList<Registration> sCaches = new ArrayList<>();
+    private static int sLastLevel;
+
+    private MemoryCaches() {}
+
+    /**
+     * Trims {@code cache} with the others for as long as it's in use. It's only weakly referenced.
+     */
+    public static synchronized void register(String name, LruCache<?, ?> cache) {
+        sCaches.add(new Registration(name, cache, null));
+    }
+
+    /**
+     * Trims {@code cache} with the others for good, e.g. a cache that lives as long as the app.
+     */
+    public static synchronized void register(String name, Trimmable cache) {
+        sCaches.add(new Registration(name, null, cache));
+    }
+
+    /**
+     * Call from {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public static void onTrimMemory(int level) {
+        final float kept = getKeptFraction(level);
+        if (kept >= 1) return;
+        Log.i(TAG, "Trim level %d, keeping %d%%. Before: %s", level, (int) (kept * 100), getStats());
+        trim(kept);
+        synchronized (MemoryCaches.class) {
+            sLastLevel = level;
+        }
+        Log.i(TAG, "After: %s", getStats());
+    }
+
+    /**
+     * Call from {@link android.content.ComponentCallbacks#onLowMemory()}. Drops everything.
+     */
+    public static void onLowMemory() {
+        onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * @return How much of each cache is kept for a trim level: some when the device is running low while the app is
+     * in the foreground, less once the UI is hidden and nothing when the app is next to be killed.
+     */
+    public static float getKeptFraction(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) return 0;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) return 0.25f;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) return 0.5f;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) return 0.25f;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) return 0.5f;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) return 0.75f;
+        return 1;
+    }
+
+    /**
+     * Clears the pool and trims every cache to {@code kept} of its maximum size, 0 to clear them.
+     */
+    public static void trim(float kept) {
+        BitmapPool.clear();
+        for (Registration registration : getCaches()) {
+            if (registration.trimmable != null) {
+                trim(registration.trimmable, kept);
+            } else {
+                //noinspection ConstantConditions
+                final LruCache<?, ?> cache = registration.lruCache.get();
+                if (cache == null) continue;
+                if (kept <= 0) {
+                    cache.evictAll();
+                } else {
+                    cache.trimToSize((int) (cache.maxSize() * kept));
+                }
+            }
+        }
+    }
+
+    private static void trim(Trimmable cache, float kept) {
+        cache.trimToSize((long) (cache.getMaxSize() * kept));
+    }
+
+    /**
+     * @return The registered caches that are still in use and the pool, the latter last.
+     */
+    public static ArrayList<Occupancy> getOccupancy() {
+        final ArrayList<Occupancy> occupancy = new ArrayList<>();
+        for (Registration registration : getCaches()) {
+            if (registration.trimmable != null) {
+                occupancy.add(new Occupancy(registration.name, registration.trimmable.getSize(),
+                                            registration.trimmable.getMaxSize()));
+            } else {
+                //noinspection ConstantConditions
+                final LruCache<?, ?> cache = registration.lruCache.get();
+                if (cache != null) occupancy.add(new Occupancy(registration.name, cache.size(), cache.maxSize()));
+            }
+        }
+        occupancy.add(new Occupancy("BitmapPool", BitmapPool.getSize(), BitmapPool.getMaxSize()));
+        return occupancy;
+    }
+
+    /**
+     * The level of the last trim, or 0.
+     */
+    public static synchronized int getLastLevel() {
+        return sLastLevel;
+    }
+
+    public static String getStats() {
+        return "MemoryCaches" + getOccupancy();
+    }
+
+    /**
+     * @return The registrations, without the caches that were collected.
+     */
+    private static synchronized ArrayList<Registration> getCaches() {
+        for (Iterator<Registration> iterator = sCaches.iterator(); iterator.hasNext(); ) {
+            final Registration registration = iterator.next();
+            //noinspection ConstantConditions
+            if (registration.trimmable == null && registration.lruCache.get() == null) iterator.remove();
+        }
+        return new ArrayList<>(sCaches);
+    }
+}
@@ -18,6 +18,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import de.greenrobot.event.EventBus;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -33,6 +34,8 @@ import static com.carlosefonseca.common.utils.CodeUtils.isMainThread;
 public final class NetworkingUtils {
 
     private static final String TAG = getTag(NetworkingUtils.class);
+    /** Enough for the headers of an image, to read its size before decoding it. */
+    private static final int BOUNDS_BYTES = 64 * 1024;
     public static boolean NETWORK;
     public static boolean WIFI;
 
@@ -167,6 +170,17 @@ public final class NetworkingUtils {
         return wifi != null && wifi == NetworkInfo.State.CONNECTED || wifi == NetworkInfo.State.CONNECTING;
     }
 
+    /**
+     * Checks if the active connection may cost the user money, like cellular data or a hotspot. Before Jelly Bean,
+     * anything but wifi is considered metered.
+     */
+    public static boolean isMetered() {
+        ConnectivityManager conMan = (ConnectivityManager) getContext().getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (conMan == null) return false;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) return conMan.isActiveNetworkMetered();
+        return !isOnWifi();
+    }
+
 
     /**
      * Registers with the system for changes in wifi connectivity and posts an EventBus notification ({@link
@@ -297,7 +311,8 @@ public final class NetworkingUtils {
     };
 
     /**
-     * Fetches a Bitmap from a URL. Don't call this from the Main Thread.
+     * Fetches a Bitmap from a URL. Don't call this from the Main Thread. Decodes into a bitmap from the
+     * {@link BitmapPool} if there's one of the right size.
      *
      * @param url The image url.
      * @throws IOException
@@ -312,15 +327,34 @@ public final class NetworkingUtils {
             }
         }
         URL url1 = new URL(url.replace(" ", "%20"));
-        InputStream inputStream = url1.openConnection().getInputStream();
-        BitmapFactory.Options opts = null;
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-            opts = new BitmapFactory.Options();
-            opts.inMutable = true;
+        InputStream inputStream = new BufferedInputStream(url1.openConnection().getInputStream(), BOUNDS_BYTES);
+        try {
+            // the size, to find a bitmap in the pool
+            BitmapFactory.Options opts = new BitmapFactory.Options();
+            opts.inJustDecodeBounds = true;
+            inputStream.mark(BOUNDS_BYTES);
+            BitmapFactory.decodeStream(inputStream, null, opts);
+            try {
+                inputStream.reset();
+            } catch (IOException e) {
+                inputStream.close();
+                inputStream = url1.openConnection().getInputStream();
+            }
+            final int width = opts.outWidth;
+            final int height = opts.outHeight;
+            opts.inJustDecodeBounds = false;
+            BitmapPool.prepare(opts, width, height);
+            try {
+                return BitmapFactory.decodeStream(inputStream, null, opts);
+            } catch (IllegalArgumentException e) {
+                if (!BitmapPool.decodeFailed(opts)) throw e;
+                inputStream.close();
+                inputStream = url1.openConnection().getInputStream();
+                return BitmapFactory.decodeStream(inputStream, null, opts);
+            }
+        } finally {
+            inputStream.close();
         }
-        Bitmap bitmap = BitmapFactory.decodeStream(inputStream, null, opts);
-        inputStream.close();
-        return bitmap;
     }
 
     /**
@@ -0,0 +1,73 @@
+package com.carlosefonseca.common.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.decode.BaseImageDecoder;
+import com.nostra13.universalimageloader.core.decode.ImageDecodingInfo;
+
+import java.io.IOException;
+
+/**
+ * UIL's decoder, decoding into bitmaps from the {@link BitmapPool}.
+ */
+public class PooledImageDecoder extends BaseImageDecoder {
+    /** Set while decoding again without the pool, after a pooled bitmap was refused. */
+    private static final ThreadLocal<Boolean> sWithoutPool = new ThreadLocal<>();
+    private static final ThreadLocal<OptionsListener> sOptionsListener = new ThreadLocal<>();
+
+    /**
+     * Gets the options of the decodes made on a thread, e.g. to cancel them.
+     */
+    public interface OptionsListener {
+        void onDecoding(BitmapFactory.Options options);
+    }
+
+    /**
+     * Gives {@code listener} the options of the decodes made on this thread, until it's set to null. UIL's synchronous
+     * loads decode on the calling thread.
+     */
+    public static void setOptionsListener(@Nullable OptionsListener listener) {
+        if (listener != null) {
+            sOptionsListener.set(listener);
+        } else {
+            sOptionsListener.remove();
+        }
+    }
+
+    public PooledImageDecoder(boolean loggingEnabled) {
+        super(loggingEnabled);
+    }
+
+    @Override
+    public Bitmap decode(ImageDecodingInfo decodingInfo) throws IOException {
+        try {
+            return super.decode(decodingInfo);
+        } catch (IllegalArgumentException e) {
+            if (!BitmapPool.decodeFailed(decodingInfo.getDecodingOptions())) throw e;
+            sWithoutPool.set(Boolean.TRUE);
+            try {
+                return super.decode(decodingInfo);
+            } finally {
+                sWithoutPool.remove();
+            }
+        }
+    }
+
+    @Override
+    protected BitmapFactory.Options prepareDecodingOptions(ImageSize imageSize, ImageDecodingInfo decodingInfo) {
+        final BitmapFactory.Options options = super.prepareDecodingOptions(imageSize, decodingInfo);
+        final OptionsListener listener = sOptionsListener.get();
+        if (listener != null) listener.onDecoding(options);
+        if (sWithoutPool.get() != null) return options;
+        // the size is already rotated by the exif, which only matters when it has to be exact
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT && decodingInfo.shouldConsiderExifParams()) {
+            BitmapPool.prepare(options, 0, 0);
+        } else {
+            BitmapPool.prepare(options, imageSize.getWidth(), imageSize.getHeight());
+        }
+        return options;
+    }
+}
@@ -0,0 +1,82 @@
+package com.carlosefonseca.common.utils;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import com.nostra13.universalimageloader.cache.memory.MemoryCache;
+
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * UIL's memory cache, limited in bytes. Its entries {@link BitmapPool#retain(Bitmap)} their bitmaps, so that the pool
+ * only takes a bitmap once it left the cache and no view shows it.
+ */
+public class PooledMemoryCache implements MemoryCache, MemoryCaches.Trimmable {
+    private final LruCache<String, Bitmap> mCache;
+    /** Set while trimming, so that what's evicted is freed instead of going to the pool. */
+    private final ThreadLocal<Boolean> mFreeing = new ThreadLocal<>();
+
+    public PooledMemoryCache(int maxSize) {
+        mCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap value) {
+                return ImageUtils.sizeBitmap(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                BitmapPool.release(oldValue, mFreeing.get() == null);
+            }
+        };
+    }
+
+    @Override
+    public boolean put(String key, Bitmap value) {
+        BitmapPool.retain(value);
+        mCache.put(key, value);
+        return true;
+    }
+
+    @Override
+    public Bitmap get(String key) {
+        return mCache.get(key);
+    }
+
+    @Override
+    public Bitmap remove(String key) {
+        return mCache.remove(key);
+    }
+
+    @Override
+    public Collection<String> keys() {
+        return new HashSet<>(mCache.snapshot().keySet());
+    }
+
+    @Override
+    public long getSize() {
+        return mCache.size();
+    }
+
+    @Override
+    public long getMaxSize() {
+        return mCache.maxSize();
+    }
+
+    /**
+     * Evicts the least recently used bitmaps to free memory, so they don't go to the pool.
+     */
+    @Override
+    public void trimToSize(long size) {
+        mFreeing.set(Boolean.TRUE);
+        try {
+            mCache.trimToSize((int) size);
+        } finally {
+            mFreeing.remove();
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (String key : keys()) mCache.remove(key);
+    }
+}
@@ -9,7 +9,6 @@ import bolts.Continuation;
 import bolts.Task;
 import com.carlosefonseca.common.CFApp;
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
-import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.ImageScaleType;
 import com.nostra13.universalimageloader.core.display.FadeInBitmapDisplayer;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
@@ -20,8 +19,8 @@ import android.support.annotation.Nullable;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
@@ -40,6 +39,8 @@ public class Rembrandt {
     private static final int FADE_MILLIS = 100;
 
     LruCache<String, Bitmap> mCache = new ImageUtils.BitmapCache();
+    /** Views that ask for the same image, size and transform while it's loading wait for the same decode. */
+    private static final InFlightLoads sLoads = new InFlightLoads();
 
     private static final short NOT_ANIMATED = 0;
     private static final short FADE_IN = 1;
@@ -50,7 +51,6 @@ public class Rembrandt {
     private File mFile;
     private int mPlaceholder;
 
-    private HashMap<ImageView, String> mMapping = new HashMap<>();
     private Transform mTransform;
     private OnBitmap mNotify;
     private boolean mHideIfNull;
@@ -154,7 +154,7 @@ public class Rembrandt {
                 view.setImageBitmap(null);
                 if (mHideIfNull) view.setVisibility(View.GONE);
             }
-            mMapping.remove(view);
+            UIL.getViewBindings().unbind(view);
             run = Task.forResult(null);
         } else {
             view.setVisibility(View.VISIBLE);
@@ -168,7 +168,7 @@ public class Rembrandt {
                 Log.wtf(TAG, new RuntimeException("wtf"));
             }
 
-            ImageLoader.getInstance().displayImage(uri, view, options, animateFirstDisplayListener);
+            UIL.displayShared(uri, view, options, animateFirstDisplayListener);
             return Task.forResult(null);
 
 /*
@@ -176,7 +176,6 @@ public class Rembrandt {
                 final String url = mUrl;
                 final File file = mFile;
                 final int placeholder = mPlaceholder;
-                final HashMap<ImageView, String> mapping = mMapping;
                 final Transform transform = mTransform;
                 final OnBitmap notify = mNotify;
                 final LruCache<String, Bitmap> cache = mCache;
@@ -192,7 +191,7 @@ public class Rembrandt {
                               url,
                               file,
                               null);
-                        Rembrandt.run(view, url, file, null, placeholder, animation, mapping, transform, notify, cache)
+                        Rembrandt.run(view, url, file, null, placeholder, animation, transform, notify, cache)
                                  .continueWith(new Continuation<Void, Object>() {
                                      @Nullable
                                      @Override
@@ -218,7 +217,7 @@ public class Rembrandt {
                       mUrl,
                       mFile,
                       mMaxSize);
-                run = run(view, mUrl, mFile, mMaxSize, mPlaceholder, animation, mMapping, mTransform, mNotify, mCache);
+                run = run(view, mUrl, mFile, mMaxSize, mPlaceholder, animation, mTransform, mNotify, mCache);
             }
 */
         }
@@ -234,7 +233,6 @@ public class Rembrandt {
                                   @Nullable final Point maxSize,
                                   final int placeholder,
                                   final short animation,
-                                  final HashMap<ImageView, String> mapping,
                                   @Nullable final Transform transform,
                                   @Nullable final OnBitmap notify,
                                   final LruCache<String, Bitmap> cache) {
@@ -249,11 +247,12 @@ public class Rembrandt {
             view.setImageBitmap(null);
         }
 //        view.setTag(path);
-        mapping.put(view, path);
+        final ViewBindings bindings = UIL.getViewBindings();
 
         Bitmap bitmap = cache.get(path);
         if (bitmap != null) {
 //            Log.v("Got from cache");
+            bindings.unbind(view);
             if (notify != null) notify.bitmap(bitmap);
             setImageBitmapOnView(bitmap, view, animation == FADE_IN ? NOT_ANIMATED : animation);
             return Task.forResult(null);
@@ -262,76 +261,136 @@ public class Rembrandt {
             if (placeholder != 0) view.setImageResource(placeholder);
         }
 
+        // measured here, views aren't to be read from the background
+        int width = maxSize != null
+                    ? maxSize.x
+                    : view.getLayoutParams().width == WRAP_CONTENT ? 0 : Math.max(view.getMeasuredWidth(), 0);
+        int height = maxSize != null
+                     ? maxSize.y
+                     : view.getLayoutParams().height == WRAP_CONTENT ? 0 : Math.max(view.getMeasuredHeight(), 0);
+        Log.v(TAG, "Size: %dx%d", width, height);
+        if (width == 0 || height == 0) {
+            width = 0;
+            height = 0;
+        }
 
-        return Task.callInBackground(new Callable<Bitmap>() {
-            @Nullable
+        final Task<Bitmap>.TaskCompletionSource source = Task.create();
+        // requested before the view's previous load is canceled, so if it's the same one it goes on
+        final InFlightLoads.Request request = sLoads.request(new InFlightLoads.Key(path, width, height, transform),
+                                                             new InFlightLoads.Listener() {
             @Override
-            public Bitmap call() throws Exception {
-                if (!path.equals(mapping.get(view))) {
-                    Log.v(TAG, "CANCELED Image loading of " + url + ". View is mapped to another path.");
-                    return null;
-                }
-                int mWidth = maxSize != null
-                             ? maxSize.x
-                             : view.getLayoutParams().width == WRAP_CONTENT ? 0 : Math.max(view.getMeasuredWidth(), 0);
-                int mHeight = maxSize != null
-                              ? maxSize.y
-                              : view.getLayoutParams().height == WRAP_CONTENT
-                                ? 0
-                                : Math.max(view.getMeasuredHeight(), 0);
-
-                Log.v(TAG, "Size: %dx%d", mWidth, mHeight);
-
-                if (mWidth == 0 || mHeight == 0) {
-                    mWidth = 0;
-                    mHeight = 0;
-                }
-
-                Bitmap bitmap;
-                if (url != null) {
-                    if (!ImageUtils.isImage(url)) {
-                        Log.w(TAG, "Url is not an image: " + url);
-                        return null;
-                    }
-                    if (url.startsWith("http://")) {
-                        bitmap = bitmapFromUrl(url, mWidth, mHeight);
-                    } else {
-                        bitmap = bitmapFromFile(url, mWidth, mHeight);
-                    }
-                } else {
-                    bitmap = UIL.loadSync(UIL.getUri(file), mWidth, mHeight);
-                }
+            public void onLoaded(@Nullable Bitmap bitmap) {
                 if (bitmap != null) {
-                    if (transform != null) bitmap = transform.bitmap(bitmap);
                     cache.put(path, bitmap);
                     if (notify != null) notify.bitmap(bitmap);
                 }
-                return bitmap;
+                source.trySetResult(bitmap);
+            }
+
+            @Override
+            public void onFailed(@Nullable Exception error) {
+                if (error != null) {
+                    source.trySetError(error);
+                } else {
+                    source.trySetCancelled();
+                }
             }
-        }).continueWith(new Continuation<Bitmap, Void>() {
+        }, new InFlightLoads.Starter() {
+            @Override
+            public void start(InFlightLoads.Flight flight) {
+                decode(flight, url, file, flight.key.width, flight.key.height, transform);
+            }
+        });
+        final ViewBindings.Binding binding = bindings.create(path);
+        binding.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                request.cancel();
+                source.trySetCancelled();
+            }
+        });
+        bindings.bind(view, binding);
+
+        final WeakReference<ImageView> viewReference = new WeakReference<>(view);
+        return source.getTask().continueWith(new Continuation<Bitmap, Void>() {
             @Override
             public Void then(Task<Bitmap> bitmapTask) throws Exception {
-                if (!path.equals(mapping.get(view))) {
-                    Log.v(TAG, "CANCELED Image loading of " + url);
+                final ImageView imageView = viewReference.get();
+                if (bitmapTask.isCancelled() || imageView == null || !bindings.finish(imageView, binding)) {
+                    Log.v(TAG, "CANCELED Image loading of " + path + ". View is bound to another load.");
                     return null;
                 }
                 final Bitmap result = bitmapTask.getResult();
 
                 if (result == null || bitmapTask.getError() != null) {
-                    if (placeholder != 0) view.setImageResource(placeholder);
+                    if (placeholder != 0) imageView.setImageResource(placeholder);
                     if (bitmapTask.getError() != null) {
                         Log.w(TAG, bitmapTask.getError());
                     }
                     return null;
                 }
 
-                setImageBitmapOnView(result, view, animation);
-                mapping.remove(view);
+                setImageBitmapOnView(result, imageView, animation);
                 return null;
             }
         }, Task.UI_THREAD_EXECUTOR).continueWith(TaskUtils.LogErrorContinuation);
     }
 
+    /**
+     * Decodes the image of a flight in the background, unless every view waiting for it moved on first. If they move
+     * on while it decodes, the decode is stopped and whatever it gave goes to the {@link BitmapPool}.
+     */
+    private static void decode(final InFlightLoads.Flight flight, @Nullable final String url, final File file,
+                               final int width, final int height, @Nullable final Transform transform) {
+        Task.callInBackground(new Callable<Void>() {
+            @Nullable
+            @Override
+            public Void call() throws Exception {
+                if (flight.isCanceled()) return null;
+                Bitmap bitmap;
+                try {
+                    if (url != null && !ImageUtils.isImage(url)) {
+                        Log.w(TAG, "Url is not an image: " + url);
+                        flight.complete(null);
+                        return null;
+                    }
+                    bitmap = decodeSync(flight, url != null ? url : UIL.getUri(file), width, height);
+                    if (flight.isCanceled()) {
+                        // nobody shows it, the next decode can have it
+                        BitmapPool.put(bitmap);
+                        return null;
+                    }
+                    if (bitmap != null && transform != null) bitmap = transform.bitmap(bitmap);
+                } catch (Exception e) {
+                    flight.fail(e);
+                    return null;
+                }
+                // it stays in the cache after the views let go
+                flight.complete(BitmapPool.pin(bitmap));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Loads through UIL on this thread, with the decode canceled as soon as the flight is.
+     */
+    @Nullable
+    private static Bitmap decodeSync(final InFlightLoads.Flight flight, String uri, int width, int height) {
+        PooledImageDecoder.setOptionsListener(new PooledImageDecoder.OptionsListener() {
+            @Override
+            public void onDecoding(BitmapFactory.Options options) {
+                flight.setDecodeOptions(options);
+            }
+        });
+        try {
+            return UIL.loadSyncUnpinned(uri, width, height);
+        } finally {
+            PooledImageDecoder.setOptionsListener(null);
+            flight.setDecodeOptions(null);
+        }
+    }
+
     @Nullable
     public static Bitmap bitmapFromFile(String url, int widthPx, int heightPx) {
         return UIL.loadSync(url, widthPx, heightPx);
@@ -348,6 +407,7 @@ public class Rembrandt {
     }
 
     private static void setImageBitmapOnView(@NonNull Bitmap result, final ImageView view, short animated) {
+        BitmapPool.show(view, result);
         switch (animated) {
 
             case FADE_IN:
@@ -408,7 +468,6 @@ public class Rembrandt {
 
     public void destroy() {
         mCache = null;
-        mMapping = null;
     }
 
     public Rembrandt maxSize(int widthPixels, int heightPixels) {
@@ -56,6 +56,11 @@ public class Subscription<I, M> {
     }
 
     public void send(M message) {
+        // a copy, so listeners can unregister when notified
+        final ArrayList<I> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<>(this.listeners);
+        }
         for (I listener : listeners) {
             delegate.send(listener, message);
         }
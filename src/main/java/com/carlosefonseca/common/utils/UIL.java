@@ -4,6 +4,8 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.DisplayMetrics;
 import android.view.View;
 import android.widget.ImageView;
 import com.android.vending.expansion.zipfile.APKExpansionSupport;
@@ -14,20 +16,29 @@ import com.nostra13.universalimageloader.cache.disc.naming.FileNameGenerator;
 import com.nostra13.universalimageloader.core.DisplayImageOptions;
 import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
+import com.nostra13.universalimageloader.core.assist.FailReason;
 import com.nostra13.universalimageloader.core.assist.ImageScaleType;
 import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.LoadedFrom;
 import com.nostra13.universalimageloader.core.assist.QueueProcessingType;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
 import com.nostra13.universalimageloader.core.display.BitmapDisplayer;
 import com.nostra13.universalimageloader.core.display.FadeInBitmapDisplayer;
+import com.nostra13.universalimageloader.core.display.SimpleBitmapDisplayer;
 import com.nostra13.universalimageloader.core.download.BaseImageDownloaderImpl;
 import com.nostra13.universalimageloader.core.download.ImageDownloader;
+import com.nostra13.universalimageloader.core.imageaware.ImageAware;
 import com.nostra13.universalimageloader.core.imageaware.ImageViewAware;
+import com.nostra13.universalimageloader.core.imageaware.NonViewAware;
 import com.nostra13.universalimageloader.core.listener.ImageLoadingListener;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
+import com.nostra13.universalimageloader.utils.ImageSizeUtils;
+import com.nostra13.universalimageloader.utils.MemoryCacheUtils;
 import org.apache.commons.lang3.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.zip.ZipFile;
@@ -45,6 +56,10 @@ public final class UIL {
     private static ImageLoader sIL;
     @Nullable private static ZipResourceFile sApkExpansionZipFile;
 
+    private static final InFlightLoads sLoads = new InFlightLoads();
+    /** What each view is loading, here and in {@link Rembrandt}. */
+    private static final ViewBindings sViewBindings = new ViewBindings();
+
     private UIL() {}
 
     public static void initUIL(Context context) {
@@ -76,8 +91,11 @@ public final class UIL {
             sImageDownloader = new BaseImageDownloaderImpl(context, sApkExpansionZipFile);
         }
 
+        final PooledMemoryCache memoryCache = new PooledMemoryCache((int) (CodeUtils.getFreeMem() / 6));
+        MemoryCaches.register("UIL", memoryCache);
         ImageLoaderConfiguration config = builder.threadPriority(Thread.NORM_PRIORITY - 2)
-                                                 .memoryCacheSize((int) (CodeUtils.getFreeMem() / 6))
+                                                 .memoryCache(memoryCache)
+                                                 .imageDecoder(new PooledImageDecoder(false))
                                                  .diskCache(diskCache)
                                                  .tasksProcessingOrder(QueueProcessingType.LIFO)
                                                  .imageDownloader(sImageDownloader)
@@ -226,6 +244,15 @@ public final class UIL {
 
     @Nullable
     public static Bitmap loadSync(@Nullable String str, int widthPx, int heightPx) {
+        return BitmapPool.pin(loadSyncUnpinned(str, widthPx, heightPx));
+    }
+
+    /**
+     * Like {@link #loadSync(String, int, int)}, for a caller that either pins the bitmap or, if it ends up not using
+     * it, gives it to the {@link BitmapPool}.
+     */
+    @Nullable
+    static Bitmap loadSyncUnpinned(@Nullable String str, int widthPx, int heightPx) {
         if (str == null) return null;
         String uri = getUri(str);
         ImageSize targetImageSize = widthPx > 0 && heightPx > 0 ? new ImageSize(widthPx, heightPx) : null;
@@ -237,7 +264,7 @@ public final class UIL {
         if (file == null) return null;
         String uri = getUri(file);
         ImageSize targetImageSize = widthPx > 0 && heightPx > 0 ? new ImageSize(widthPx, heightPx) : null;
-        return sIL.loadImageSync(uri, targetImageSize);
+        return BitmapPool.pin(sIL.loadImageSync(uri, targetImageSize));
     }
 
     @Nullable
@@ -245,7 +272,7 @@ public final class UIL {
         if (str == null) return null;
         String uri = getUri(str);
         ImageSize targetImageSize = widthDp > 0 && heightDp > 0 ? new ImageSize(dp2px(widthDp), dp2px(heightDp)) : null;
-        return sIL.loadImageSync(uri, targetImageSize);
+        return BitmapPool.pin(sIL.loadImageSync(uri, targetImageSize));
     }
 
     public static void load(@Nullable String str, @NonNull ImageLoadingListener loadingListener) {
@@ -256,77 +283,393 @@ public final class UIL {
         if (str == null) return;
         String uri = getUri(str);
         ImageSize targetImageSize = widthPx > 0 && heightPx > 0 ? new ImageSize(widthPx, heightPx) : null;
-        sIL.loadImage(uri, targetImageSize, loadingListener);
+        sIL.loadImage(uri, targetImageSize, new PoolingListener(loadingListener, true));
     }
 
     public static void display(@Nullable String str, @NonNull ImageView imageView) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str), new ImageViewAware(imageView), null, null);
+            displayImage(UIL.getUri(str), imageView, null, null);
         }
     }
 
     public static void displayPhoto(@Nullable String str, @NonNull ImageView imageView) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str), new ImageViewAware(imageView), mOptionsForPhotos, null);
+            displayImage(UIL.getUri(str), imageView, mOptionsForPhotos, null);
         }
     }
 
     public static void displayIcon(@Nullable String str, @NonNull ImageView imageView) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str), new ImageViewAware(imageView), mOptionsForIcons, null);
+            displayImage(UIL.getUri(str), imageView, mOptionsForIcons, null);
         }
     }
 
     public static void display(@Nullable String str, @Nullable ImageView imageView, ImageLoadingListener listener) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str), imageView != null ? new ImageViewAware(imageView) : null, null, listener);
+            displayImage(UIL.getUri(str), imageView, null, listener);
         }
     }
 
     public static void display(@Nullable String str, @Nullable ImageView imageView, DisplayImageOptions displayImageOptions) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str),
-                             imageView != null ? new ImageViewAware(imageView) : null,
-                             displayImageOptions,
+            displayImage(UIL.getUri(str),
+                         imageView,
+                         displayImageOptions,
                              null);
         }
     }
 
     public static void display(@Nullable String str, @Nullable ImageView imageView, ImageLoadingListener listener, DisplayImageOptions displayImageOptions) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str),
-                             imageView != null ? new ImageViewAware(imageView) : null,
-                             displayImageOptions,
+            displayImage(UIL.getUri(str),
+                         imageView,
+                         displayImageOptions,
                              listener);
         }
     }
 
     static void display_(@Nullable String str, @Nullable ImageView imageView, ImageLoadingListener listener, DisplayImageOptions displayImageOptions) {
-        sIL.displayImage(UIL.getUri(str),
-                         imageView != null ? new ImageViewAware(imageView) : null,
-                         displayImageOptions,
-                         listener);
+        displayImage(UIL.getUri(str), imageView, displayImageOptions, listener);
     }
 
     public static void displayPhoto(@Nullable String str, @Nullable ImageView imageView, ImageLoadingListener listener) {
         if (StringUtils.isNotBlank(str)) {
-            sIL.displayImage(UIL.getUri(str),
-                             imageView != null ? new ImageViewAware(imageView) : null,
-                             mOptionsForPhotos,
-                             listener);
+            displayImage(UIL.getUri(str),
+                         imageView,
+                         mOptionsForPhotos,
+                         listener);
+        }
+    }
+
+    private static void displayImage(@Nullable String uri, @Nullable ImageView imageView,
+                                     @Nullable DisplayImageOptions options, @Nullable ImageLoadingListener listener) {
+        if (imageView != null) sViewBindings.unbind(imageView);
+        sIL.displayImage(uri, imageView != null ? new ImageViewAware(imageView) : null, options,
+                         new PoolingListener(listener, false));
+    }
+
+    /**
+     * Tells the {@link BitmapPool} where the bitmaps that UIL loads go: into the view, which lets go of the one it
+     * had, or to code that won't say when it's done with it.
+     */
+    private static final class PoolingListener implements ImageLoadingListener {
+        @Nullable private final ImageLoadingListener mListener;
+        private final boolean mHandedOut;
+
+        PoolingListener(@Nullable ImageLoadingListener listener, boolean handedOut) {
+            mListener = listener;
+            mHandedOut = handedOut;
+        }
+
+        @Override
+        public void onLoadingStarted(String imageUri, View view) {
+            if (mListener != null) mListener.onLoadingStarted(imageUri, view);
+        }
+
+        @Override
+        public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+            if (mListener != null) mListener.onLoadingFailed(imageUri, view, failReason);
+        }
+
+        @Override
+        public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+            if (mHandedOut) {
+                BitmapPool.pin(loadedImage);
+            } else if (view != null) {
+                BitmapPool.show(view, loadedImage);
+            }
+            if (mListener != null) mListener.onLoadingComplete(imageUri, view, loadedImage);
+        }
+
+        @Override
+        public void onLoadingCancelled(String imageUri, View view) {
+            if (mListener != null) mListener.onLoadingCancelled(imageUri, view);
+        }
+    }
+
+    //region SHARED LOADS
+    /**
+     * Like {@link #display(String, ImageView, ImageLoadingListener, DisplayImageOptions)} with an uri, but views that
+     * ask for the same image, at the same size and with the same decoding options, while it's being loaded wait for
+     * that load instead of each getting its own (see {@link InFlightLoads}). Each view is displayed with its own
+     * options and listener and can be given another image meanwhile without affecting the others. Main thread only.
+     */
+    static void displayShared(@Nullable String uri, ImageView imageView, DisplayImageOptions options,
+                              @Nullable ImageLoadingListener listener) {
+        final DisplayMetrics metrics = imageView.getResources().getDisplayMetrics();
+        final ImageSize size = ImageSizeUtils.defineTargetSizeForView(new ImageViewAware(imageView),
+                                                                      new ImageSize(metrics.widthPixels,
+                                                                                    metrics.heightPixels));
+        displayShared(uri, imageView, size, options, listener);
+    }
+
+    /**
+     * {@link #displayShared(String, ImageView, DisplayImageOptions, ImageLoadingListener)} decoding for {@code size}
+     * instead of the size of the view, e.g. the size of a page that isn't laid out yet.
+     */
+    public static void displayShared(@Nullable String uri, final ImageView imageView, final ImageSize size,
+                                     final DisplayImageOptions options,
+                                     @Nullable final ImageLoadingListener listener) {
+        final ImageViewAware aware = new ImageViewAware(imageView);
+        if (TextUtils.isEmpty(uri)) {
+            sViewBindings.unbind(imageView);
+            BitmapPool.show(imageView, null);
+            sIL.displayImage(uri, aware, options, listener);
+            return;
+        }
+
+        // what displayImage would do
+        sIL.cancelDisplayTask(aware);
+        if (listener != null) listener.onLoadingStarted(uri, imageView);
+        final Bitmap cached = getFromMemory(uri, size);
+        if (cached != null) {
+            sViewBindings.unbind(imageView);
+            options.getDisplayer().display(cached, aware, LoadedFrom.MEMORY_CACHE);
+            BitmapPool.show(imageView, cached);
+            if (listener != null) listener.onLoadingComplete(uri, imageView, cached);
+            return;
+        }
+        if (options.shouldShowImageOnLoading()) {
+            imageView.setImageDrawable(options.getImageOnLoading(imageView.getResources()));
+            BitmapPool.show(imageView, null);
+        } else if (options.isResetViewBeforeLoading()) {
+            imageView.setImageDrawable(null);
+            BitmapPool.show(imageView, null);
+        }
+
+        final InFlightLoads.Key key = getKey(uri, size, aware.getScaleType(), options);
+        final SharedDisplay display = new SharedDisplay(uri, imageView, options, listener);
+        // requested before the view's previous load is canceled, so if it's the same one it goes on
+        final InFlightLoads.Request request = sLoads.request(key, display,
+                                                             getStarter(size, aware.getScaleType(), options));
+        final ViewBindings.Binding binding = sViewBindings.create(key.toString());
+        binding.setOnCancel(new Runnable() {
+            @Override
+            public void run() {
+                request.cancel();
+            }
+        });
+        sViewBindings.bind(imageView, binding);
+        display.setBinding(binding);
+    }
+
+    /**
+     * Loads an image into the memory cache ahead of a
+     * {@link #displayShared(String, ImageView, ImageSize, DisplayImageOptions, ImageLoadingListener)} with the same
+     * size, scale type and options, which then shows it right away or waits for this load.
+     *
+     * @return The request, to cancel if the image isn't wanted anymore, or null if it's already in memory.
+     */
+    @Nullable
+    public static InFlightLoads.Request prefetch(String uri, ImageSize size, ViewScaleType scaleType,
+                                                 DisplayImageOptions options) {
+        if (getFromMemory(uri, size) != null) return null;
+        return sLoads.request(getKey(uri, size, scaleType, options), NO_LISTENER,
+                              getStarter(size, scaleType, options));
+    }
+
+    private static final InFlightLoads.Listener NO_LISTENER = new InFlightLoads.Listener() {
+        @Override
+        public void onLoaded(@Nullable Bitmap bitmap) {}
+
+        @Override
+        public void onFailed(@Nullable Exception error) {}
+    };
+
+    /**
+     * Loads the image of a flight with its own target, so the views waiting for it can come and go.
+     */
+    private static InFlightLoads.Starter getStarter(final ImageSize size, final ViewScaleType scaleType,
+                                                    final DisplayImageOptions options) {
+        return new InFlightLoads.Starter() {
+            @Override
+            public void start(final InFlightLoads.Flight flight) {
+                final ImageAware target = new FlightAware(flight.key.uri, size, scaleType);
+                flight.setOnCancel(new Runnable() {
+                    @Override
+                    public void run() {
+                        sIL.cancelDisplayTask(target);
+                    }
+                });
+                final DisplayImageOptions flightOptions =
+                        new DisplayImageOptions.Builder().cloneFrom(options).displayer(new SimpleBitmapDisplayer())
+                                                         .build();
+                sIL.displayImage(flight.key.uri, target, flightOptions, new SimpleImageLoadingListener() {
+                    @Override
+                    public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+                        flight.complete(loadedImage);
+                    }
+
+                    @Override
+                    public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+                        flight.fail(new FailedLoad(failReason));
+                    }
+
+                    @Override
+                    public void onLoadingCancelled(String imageUri, View view) {
+                        flight.fail(null);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * What each image view is loading. Binding a view to another load cancels the one it had.
+     */
+    static ViewBindings getViewBindings() {
+        return sViewBindings;
+    }
+
+    /**
+     * @return How many shared loads were started and joined.
+     */
+    public static String getSharedLoadStats() {
+        return sLoads.getStats();
+    }
+
+    @Nullable
+    private static Bitmap getFromMemory(String uri, ImageSize size) {
+        final Bitmap bitmap = sIL.getMemoryCache().get(MemoryCacheUtils.generateKey(uri, size));
+        return bitmap != null && !bitmap.isRecycled() ? bitmap : null;
+    }
+
+    /**
+     * The uri, the size and what else makes the decoded bitmap different.
+     */
+    private static InFlightLoads.Key getKey(String uri, ImageSize size, ViewScaleType scaleType,
+                                            DisplayImageOptions options) {
+        String decoding = options.getImageScaleType() + " " + scaleType + " " + options.isConsiderExifParams() + " " +
+                          options.getDecodingOptions().inPreferredConfig;
+        if (options.shouldPreProcess()) decoding += " pre@" + System.identityHashCode(options.getPreProcessor());
+        if (options.shouldPostProcess()) decoding += " post@" + System.identityHashCode(options.getPostProcessor());
+        return new InFlightLoads.Key(uri, size.getWidth(), size.getHeight(), decoding);
+    }
+
+    /**
+     * A view waiting for a shared load, displayed as {@link ImageLoader} would when it ends.
+     */
+    private static final class SharedDisplay implements InFlightLoads.Listener {
+        private final String mUri;
+        private final WeakReference<ImageView> mImageView;
+        private final DisplayImageOptions mOptions;
+        @Nullable private final ImageLoadingListener mListener;
+        @Nullable private ViewBindings.Binding mBinding;
+        /** A result that came before the binding, when the load finished right away. */
+        @Nullable private Runnable mEarlyResult;
+
+        SharedDisplay(String uri, ImageView imageView, DisplayImageOptions options,
+                      @Nullable ImageLoadingListener listener) {
+            mUri = uri;
+            mImageView = new WeakReference<>(imageView);
+            mOptions = options;
+            mListener = listener;
+        }
+
+        void setBinding(ViewBindings.Binding binding) {
+            mBinding = binding;
+            if (mEarlyResult != null) {
+                mEarlyResult.run();
+                mEarlyResult = null;
+            }
+        }
+
+        /**
+         * @return The view, if it's still waiting for this load.
+         */
+        @Nullable
+        private ImageView takeView() {
+            final ImageView imageView = mImageView.get();
+            //noinspection ConstantConditions
+            return imageView != null && sViewBindings.finish(imageView, mBinding) ? imageView : null;
+        }
+
+        @Override
+        public void onLoaded(@Nullable final Bitmap bitmap) {
+            if (bitmap == null) {
+                onFailed(new FailedLoad(new FailReason(FailReason.FailType.DECODING_ERROR, null)));
+                return;
+            }
+            if (mBinding == null) {
+                mEarlyResult = new Runnable() {
+                    @Override
+                    public void run() {
+                        onLoaded(bitmap);
+                    }
+                };
+                return;
+            }
+            final ImageView imageView = takeView();
+            if (imageView == null) return;
+            mOptions.getDisplayer().display(bitmap, new ImageViewAware(imageView), LoadedFrom.DISC_CACHE);
+            BitmapPool.show(imageView, bitmap);
+            if (mListener != null) mListener.onLoadingComplete(mUri, imageView, bitmap);
+        }
+
+        @Override
+        public void onFailed(@Nullable final Exception error) {
+            if (mBinding == null) {
+                mEarlyResult = new Runnable() {
+                    @Override
+                    public void run() {
+                        onFailed(error);
+                    }
+                };
+                return;
+            }
+            final ImageView imageView = takeView();
+            if (imageView == null) return;
+            if (error == null) {
+                if (mListener != null) mListener.onLoadingCancelled(mUri, imageView);
+                return;
+            }
+            if (mOptions.shouldShowImageOnFail()) {
+                imageView.setImageDrawable(mOptions.getImageOnFail(imageView.getResources()));
+                BitmapPool.show(imageView, null);
+            }
+            if (mListener != null) {
+                mListener.onLoadingFailed(mUri, imageView, error instanceof FailedLoad
+                                                           ? ((FailedLoad) error).reason
+                                                           : new FailReason(FailReason.FailType.UNKNOWN, error));
+            }
+        }
+    }
+
+    /**
+     * The target of a shared load. Each one is a different target for {@link ImageLoader}, even with the same uri,
+     * so loads of the same image at different sizes don't cancel each other.
+     */
+    private static final class FlightAware extends NonViewAware {
+        FlightAware(String uri, ImageSize size, ViewScaleType scaleType) {
+            super(uri, size, scaleType);
+        }
+
+        @Override
+        public int getId() {
+            return System.identityHashCode(this);
+        }
+    }
+
+    private static final class FailedLoad extends Exception {
+        final FailReason reason;
+
+        FailedLoad(FailReason reason) {
+            super(String.valueOf(reason.getType()), reason.getCause());
+            this.reason = reason;
         }
     }
+    //endregion
 
     @Nullable
     public static Bitmap getIcon(@Nullable String str, int w, int h) {
         if (StringUtils.isBlank(str)) return null;
-        return sIL.loadImageSync(getUri(str), new ImageSize(w, h), mOptionsForIcons);
+        return BitmapPool.pin(sIL.loadImageSync(getUri(str), new ImageSize(w, h), mOptionsForIcons));
     }
 
     @Nullable
     public static Bitmap getIconDP(@Nullable String str, int w, int h) {
         if (StringUtils.isBlank(str)) return null;
-        return sIL.loadImageSync(getUri(str), new ImageSize(dp2px(w), dp2px(h)), mOptionsForIcons);
+        return BitmapPool.pin(sIL.loadImageSync(getUri(str), new ImageSize(dp2px(w), dp2px(h)), mOptionsForIcons));
     }
 
     public static DisplayImageOptions getDisplayOptions(BitmapDisplayer displayer) {
@@ -0,0 +1,135 @@
+package com.carlosefonseca.common.utils;
+
+import android.support.annotation.Nullable;
+import android.view.View;
+
+import java.util.WeakHashMap;
+
+/**
+ * What each view is loading, so that a late result only goes to the view if it still wants it, and the load a view
+ * no longer wants is canceled instead of finishing for nothing (e.g. a row of a list recycled while scrolling).
+ * <p/>
+ * Views are weakly referenced and the table can be read from any thread. Each binding gets a generation, so an old
+ * binding can't be mistaken for the current one even if it's for the same key.
+ */
+public final class ViewBindings {
+
+    /**
+     * A view loading a key. Canceled when the view is bound to something else or unbound.
+     */
+    public static final class Binding {
+        public final String key;
+        public final long generation;
+        private boolean mCanceled;
+        @Nullable private Runnable mOnCancel;
+
+        Binding(String key, long generation) {
+            this.key = key;
+            this.generation = generation;
+        }
+
+        public synchronized boolean isCanceled() {
+            return mCanceled;
+        }
+
+        /**
+         * Sets what stops the load, e.g. canceling its request. Runs right away if the binding is already canceled.
+         */
+        public void setOnCancel(Runnable onCancel) {
+            synchronized (this) {
+                if (!mCanceled) {
+                    mOnCancel = onCancel;
+                    return;
+                }
+            }
+            onCancel.run();
+        }
+
+        void cancel() {
+            final Runnable onCancel;
+            synchronized (this) {
+                if (mCanceled) return;
+                mCanceled = true;
+                onCancel = mOnCancel;
+                mOnCancel = null;
+            }
+            if (onCancel != null) onCancel.run();
+        }
+
+        @Override
+        public String toString() {
+            return key + " #" + generation;
+        }
+    }
+
+    /** Guarded by this. Bindings must not reference their view, or it's never collected. */
+    private final WeakHashMap<View, Binding> mBindings = new WeakHashMap<>();
+    private long mGeneration;
+
+    /**
+     * Creates a binding for {@link #bind(View, Binding)}, so that the new load can be requested before the old one is
+     * canceled: if they are the same, it's joined instead of starting over.
+     */
+    public synchronized Binding create(String key) {
+        return new Binding(key, ++mGeneration);
+    }
+
+    /**
+     * Binds the view to a new load of {@code key}, canceling the one it had.
+     */
+    public Binding bind(View view, String key) {
+        final Binding binding = create(key);
+        bind(view, binding);
+        return binding;
+    }
+
+    /**
+     * Binds the view to {@code binding}, canceling the one it had.
+     */
+    public void bind(View view, Binding binding) {
+        final Binding previous;
+        synchronized (this) {
+            previous = mBindings.put(view, binding);
+        }
+        if (previous != null && previous != binding) previous.cancel();
+    }
+
+    @Nullable
+    public synchronized Binding get(View view) {
+        return mBindings.get(view);
+    }
+
+    /**
+     * @return Whether {@code binding} is still what the view is loading.
+     */
+    public synchronized boolean isCurrent(View view, Binding binding) {
+        final Binding current = mBindings.get(view);
+        return current != null && current.generation == binding.generation;
+    }
+
+    /**
+     * Ends the binding of a load that finished, without canceling it.
+     *
+     * @return Whether it was still current, i.e. whether to show the result.
+     */
+    public synchronized boolean finish(View view, Binding binding) {
+        if (!isCurrent(view, binding)) return false;
+        mBindings.remove(view);
+        return true;
+    }
+
+    /**
+     * Cancels the load of the view, if any.
+     */
+    public void unbind(View view) {
+        final Binding previous;
+        synchronized (this) {
+            previous = mBindings.remove(view);
+        }
+        if (previous != null) previous.cancel();
+    }
+
+    public synchronized int size() {
+        return mBindings.size();
+    }
+}
@@ -7,6 +7,7 @@ import android.graphics.Color;
 import android.support.v4.view.PagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,8 +16,9 @@ import android.widget.ImageView;
 import android.widget.Scroller;
 import com.carlosefonseca.common.R;
 import com.carlosefonseca.common.utils.*;
-import com.nostra13.universalimageloader.core.ImageLoader;
 import com.nostra13.universalimageloader.core.assist.FailReason;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
 import com.nostra13.universalimageloader.core.listener.SimpleImageLoadingListener;
 import org.apache.commons.collections4.CollectionUtils;
 import android.support.annotation.NonNull;
@@ -124,7 +126,16 @@ public class Gallery extends ViewPager {
         getLayoutParams().height = (int) (width / 2 + 24 * density);
     }
 
-    public static class GalleryAdapter extends PagerAdapter implements OnClickListener {
+    /**
+     * Sets how many pages past the offscreen ones may be loaded ahead while swiping fast, 3 by default.
+     * @see PagePrefetcher#setMaxDepth(int)
+     */
+    public void setMaxPrefetch(int pages) {
+        getOrCreateAdapter().getPagePrefetcher().setMaxDepth(pages);
+    }
+
+    public static class GalleryAdapter extends PagerAdapter
+            implements OnClickListener, PagePrefetcher.Host, PagePrefetcher.Source {
 
         @Nullable private List<File> imageList;
         @Nullable private ArrayList<String> urlList;
@@ -134,6 +145,7 @@ public class Gallery extends ViewPager {
         //        protected int gallery_layout = R.layout.gallery_styled_image_view;
         protected int gallery_layout = R.layout.gallery_page;
         private ImageView.ScaleType scaleType;
+        private final PagePrefetcher prefetcher = new PagePrefetcher(this, UIL.mOptionsForPhotos);
 
         @Override
         public void onClick(View v) {
@@ -188,6 +200,31 @@ public class Gallery extends ViewPager {
             return view == o;
         }
 
+        @Nullable
+        @Override
+        public String getUri(int position) {
+            if (urlList != null) return UIL.getUri(urlList.get(position));
+            if (imageList != null) return UIL.getUri(imageList.get(position));
+            return null;
+        }
+
+        @Override
+        public PagePrefetcher getPagePrefetcher() {
+            return prefetcher;
+        }
+
+        @Override
+        public void notifyDataSetChanged() {
+            prefetcher.cancel();
+            super.notifyDataSetChanged();
+        }
+
+        @Override
+        public void setPrimaryItem(ViewGroup container, int position, Object object) {
+            super.setPrimaryItem(container, position, object);
+            prefetcher.onPageShown(position);
+        }
+
 
         @Override
         public Object instantiateItem(ViewGroup container, final int position) {
@@ -212,18 +249,21 @@ public class Gallery extends ViewPager {
                 uri = UIL.getUri(file);
             }
 
-            ImageLoader.getInstance()
-                       .displayImage(uri, imageView, UIL.mOptionsForPhotos, new SimpleImageLoadingListener() {
-                           @Override
-                           public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
-                               imageView.setBackgroundColor(Color.GRAY);
-                           }
-
-                           @Override
-                           public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
-                               ResourceUtils.setBackground(imageView, null);
-                           }
-                       });
+            // decoded at the size of the page, as the prefetches, to find them in memory
+            final ImageSize pageSize = getPageSize(container);
+            UIL.displayShared(uri, imageView, pageSize, UIL.mOptionsForPhotos, new SimpleImageLoadingListener() {
+                @Override
+                public void onLoadingFailed(String imageUri, View view, FailReason failReason) {
+                    imageView.setBackgroundColor(Color.GRAY);
+                }
+
+                @Override
+                public void onLoadingComplete(String imageUri, View view, Bitmap loadedImage) {
+                    ResourceUtils.setBackground(imageView, null);
+                }
+            });
+            prefetcher.setPage(pageSize, ViewScaleType.fromImageView(imageView),
+                               container instanceof ViewPager ? ((ViewPager) container).getOffscreenPageLimit() : 1);
 
             view.setOnClickListener(this);
 
@@ -232,6 +272,14 @@ public class Gallery extends ViewPager {
             return view;
         }
 
+        private static ImageSize getPageSize(ViewGroup container) {
+            if (container.getWidth() > 0 && container.getHeight() > 0) {
+                return new ImageSize(container.getWidth(), container.getHeight());
+            }
+            final DisplayMetrics metrics = container.getResources().getDisplayMetrics();
+            return new ImageSize(metrics.widthPixels, metrics.heightPixels);
+        }
+
         @Nullable
         private OnClickListener getClickListener() {
             return clickListener;
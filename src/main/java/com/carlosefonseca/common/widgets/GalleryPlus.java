@@ -180,6 +180,13 @@ public class GalleryPlus extends FrameLayout {
         if (aspectRatio1 != 0) setAspectRatio(aspectRatio1);
     }
 
+    /**
+     * @see Gallery#setMaxPrefetch(int)
+     */
+    public void setMaxPrefetch(int pages) {
+        galleryView.setMaxPrefetch(pages);
+    }
+
     public void setCurrentItem(int item, boolean smoothScroll) {
         galleryView.setCurrentItem(item, smoothScroll);
     }
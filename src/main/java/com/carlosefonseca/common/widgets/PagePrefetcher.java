@@ -0,0 +1,209 @@
+package com.carlosefonseca.common.widgets;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.InFlightLoads;
+import com.carlosefonseca.common.utils.Log;
+import com.carlosefonseca.common.utils.UIL;
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+import com.nostra13.universalimageloader.core.assist.ViewScaleType;
+
+/**
+ * Loads the images of the pages around the current one into the memory cache, at the size of the page, so that they
+ * are ready when the pager instantiates them. The pages are displayed with
+ * {@link UIL#displayShared(String, android.widget.ImageView, ImageSize, DisplayImageOptions,
+ * com.nostra13.universalimageloader.core.listener.ImageLoadingListener)} with the same size and options, so a page that
+ * comes while its image is still being prefetched waits for that load.
+ * <p/>
+ * How many pages are prefetched past the ones the pager keeps (its offscreen page limit) grows while the user swipes
+ * fast, in the direction of the swipes, and shrinks when they slow down, limited by the free memory. Prefetches of
+ * pages that leave the window are canceled.
+ */
+public class PagePrefetcher {
+    private static final String TAG = CodeUtils.getTag(PagePrefetcher.class);
+
+    /** Page changes closer than this are a fast swipe. */
+    static final long FAST_SWIPE_MILLIS = 400;
+    /** Prefetched pages may take this fraction of the free memory. */
+    private static final int FREE_MEMORY_FRACTION = 4;
+
+    /**
+     * An adapter with a prefetcher, so {@link com.imbryk.viewPager.LoopPagerAdapterWrapper} can tell it to wrap
+     * around.
+     */
+    public interface Host {
+        PagePrefetcher getPagePrefetcher();
+    }
+
+    /**
+     * The images of the adapter.
+     */
+    public interface Source {
+        int getCount();
+
+        /** @return The uri of the image of the page, or null if there's none. */
+        @Nullable
+        String getUri(int position);
+    }
+
+    private final Source mSource;
+    private final DisplayImageOptions mOptions;
+    private int mMaxDepth = 3;
+    private boolean mLooping;
+
+    @Nullable private ImageSize mPageSize;
+    private ViewScaleType mScaleType = ViewScaleType.FIT_INSIDE;
+    private int mOffscreenLimit = 1;
+
+    private int mPosition = -1;
+    private long mLastChange;
+    /** Pages to prefetch ahead, in the direction of the last swipe. */
+    private int mDepth = 1;
+    private int mDirection = 1;
+    /** By position. */
+    private final SparseArray<InFlightLoads.Request> mRequests = new SparseArray<>();
+
+    public PagePrefetcher(Source source, DisplayImageOptions options) {
+        mSource = source;
+        mOptions = options;
+    }
+
+    /**
+     * Sets how the pages are displayed. Prefetches only start once this is known. Changing it cancels the prefetches.
+     *
+     * @param scaleType      Of the image views of the pages, e.g. {@link ViewScaleType#fromImageView(
+     *                       android.widget.ImageView)}.
+     * @param offscreenLimit Pages the pager keeps on each side, which it loads itself.
+     */
+    public void setPage(ImageSize size, ViewScaleType scaleType, int offscreenLimit) {
+        if (mPageSize != null && mPageSize.getWidth() == size.getWidth() &&
+            mPageSize.getHeight() == size.getHeight() && mScaleType == scaleType &&
+            mOffscreenLimit == offscreenLimit) {
+            return;
+        }
+        cancel();
+        mPageSize = size;
+        mScaleType = scaleType;
+        mOffscreenLimit = Math.max(1, offscreenLimit);
+    }
+
+    /**
+     * Sets how many pages may be prefetched on the side the user is swiping to, 3 by default. 0 disables
+     * prefetching.
+     */
+    public void setMaxDepth(int maxDepth) {
+        mMaxDepth = Math.max(0, maxDepth);
+        mDepth = Math.min(mDepth, mMaxDepth);
+        if (mPosition >= 0) update();
+    }
+
+    /**
+     * Whether the first page comes after the last one.
+     */
+    public void setLooping(boolean looping) {
+        mLooping = looping;
+    }
+
+    /**
+     * Call when the current page is {@code position}, e.g. from
+     * {@link android.support.v4.view.PagerAdapter#setPrimaryItem(android.view.ViewGroup, int, Object)}.
+     */
+    public void onPageShown(int position) {
+        if (position == mPosition) return;
+        final long now = SystemClock.uptimeMillis();
+        if (mPosition >= 0) {
+            int delta = position - mPosition;
+            // from the last page to the first is forward
+            final int count = mSource.getCount();
+            if (mLooping && Math.abs(delta) > count / 2) delta -= Integer.signum(delta) * count;
+            final int direction = Integer.signum(delta);
+            final boolean fast = now - mLastChange < FAST_SWIPE_MILLIS;
+            if (direction != 0 && direction != mDirection) {
+                mDirection = direction;
+                mDepth = 1;
+            } else {
+                mDepth = fast ? mDepth + 1 : mDepth - 1;
+            }
+        }
+        mDepth = Math.max(1, Math.min(mDepth, mMaxDepth));
+        mPosition = position;
+        mLastChange = now;
+        update();
+    }
+
+    /**
+     * Cancels every prefetch, e.g. when the data changes.
+     */
+    public void cancel() {
+        for (int i = 0; i < mRequests.size(); i++) mRequests.valueAt(i).cancel();
+        mRequests.clear();
+    }
+
+    private void update() {
+        final int count = mSource.getCount();
+        if (mPageSize == null || count == 0 || mMaxDepth == 0) {
+            cancel();
+            return;
+        }
+        final int depth = Math.min(mDepth, getMemoryLimit());
+        // past the pages the pager keeps, more of them on the side the user is going
+        final int ahead = mOffscreenLimit + depth;
+        final int behind = mOffscreenLimit + Math.min(1, depth);
+        final int first = mDirection > 0 ? mPosition - behind : mPosition - ahead;
+        final int last = mDirection > 0 ? mPosition + ahead : mPosition + behind;
+
+        for (int i = mRequests.size() - 1; i >= 0; i--) {
+            if (!isInWindow(mRequests.keyAt(i), first, last, count)) {
+                mRequests.valueAt(i).cancel();
+                mRequests.removeAt(i);
+            }
+        }
+        // farthest first, UIL runs the last one queued first
+        for (int distance = Math.max(ahead, behind); distance > mOffscreenLimit; distance--) {
+            if (mPosition + distance <= last) prefetch(mPosition + distance, count);
+            if (mPosition - distance >= first) prefetch(mPosition - distance, count);
+        }
+    }
+
+    private void prefetch(int position, int count) {
+        if (mLooping) {
+            position = (position % count + count) % count;
+        } else if (position < 0 || position >= count) {
+            return;
+        }
+        if (mRequests.get(position) != null) return;
+        final String uri = mSource.getUri(position);
+        if (uri == null) return;
+        //noinspection ConstantConditions
+        final InFlightLoads.Request request = UIL.prefetch(uri, mPageSize, mScaleType, mOptions);
+        if (request != null) {
+            Log.v(TAG, "Prefetching page %d", position);
+            mRequests.put(position, request);
+        }
+    }
+
+    private boolean isInWindow(int position, int first, int last, int count) {
+        if (!mLooping) return position >= first && position <= last;
+        for (int i = first; i <= last; i++) {
+            if ((i % count + count) % count == position) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return How many pages fit in a part of the free memory.
+     */
+    private int getMemoryLimit() {
+        //noinspection ConstantConditions
+        final int bytesPerPixel = mOptions.getDecodingOptions().inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4;
+        final long pageBytes = (long) mPageSize.getWidth() * mPageSize.getHeight() * bytesPerPixel;
+        final Runtime runtime = Runtime.getRuntime();
+        final long free = runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory();
+        return (int) Math.min(mMaxDepth, free / FREE_MEMORY_FRACTION / Math.max(1, pageBytes));
+    }
+
+}
@@ -0,0 +1,308 @@
+package com.carlosefonseca.common.widgets;
+
+import android.annotation.TargetApi;
+import android.graphics.*;
+import android.os.Build;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.DisplayMetrics;
+import android.view.View;
+import bolts.Continuation;
+import bolts.Task;
+import com.carlosefonseca.common.utils.BitmapPool;
+import com.carlosefonseca.common.utils.CodeUtils;
+import com.carlosefonseca.common.utils.ImageUtils;
+import com.carlosefonseca.common.utils.Log;
+import com.carlosefonseca.common.utils.MemoryCaches;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deep zoom for images too big to decode whole: a low resolution base layer of the whole image, shown as the view's
+ * bitmap, and tiles of the visible part decoded with {@link BitmapRegionDecoder} at the sample size that matches the
+ * current zoom, drawn on top of it.
+ * <p/>
+ * Tiles are decoded on a background thread, one at a time, and kept in an LRU of a few screens, so the memory used
+ * depends on the screen and not on the image. Tiles that are no longer visible when their turn comes are not decoded.
+ */
+@TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+final class TileRenderer {
+    private static final String TAG = CodeUtils.getTag(TileRenderer.class);
+
+    /** Side of a tile, in screen pixels. */
+    static final int TILE_SIZE = 256;
+    /** How many screens of tiles are kept. */
+    private static final int SCREENS_CACHED = 3;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private final View mView;
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+    private final Bitmap mBase;
+    private final int mBaseSample;
+    private final LruCache<Tile, Bitmap> mTiles;
+    /** Touched on the UI thread only. */
+    private final HashMap<Tile, Future<?>> mPending = new HashMap<>();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mInverse = new Matrix();
+    private final RectF mVisible = new RectF();
+    private final Rect mTileRect = new Rect();
+    private final float[] mValues = new float[9];
+    private volatile boolean mRecycled;
+
+    private TileRenderer(View view, BitmapRegionDecoder decoder, Bitmap base, int baseSample) {
+        mView = view;
+        mDecoder = decoder;
+        mWidth = decoder.getWidth();
+        mHeight = decoder.getHeight();
+        mBase = base;
+        mBaseSample = baseSample;
+
+        final DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+        mTiles = new LruCache<Tile, Bitmap>(SCREENS_CACHED * metrics.widthPixels * metrics.heightPixels * 4) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return ImageUtils.sizeBitmap(value);
+            }
+        };
+        MemoryCaches.register("Tiles", mTiles);
+    }
+
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+    }
+
+    /**
+     * Opens the image and decodes the base layer in the background.
+     *
+     * @return The renderer, on the UI thread, or an error.
+     */
+    static Task<TileRenderer> openInBackground(final View view, final File file) {
+        final DisplayMetrics metrics = view.getResources().getDisplayMetrics();
+        final int baseMaxSide = Math.max(metrics.widthPixels, metrics.heightPixels);
+        return Task.callInBackground(new Callable<TileRenderer>() {
+            @Override
+            public TileRenderer call() throws Exception {
+                return open(view, file.getAbsolutePath(), baseMaxSide);
+            }
+        }).continueWith(new Continuation<TileRenderer, TileRenderer>() {
+            @Override
+            public TileRenderer then(Task<TileRenderer> task) throws Exception {
+                if (task.isFaulted()) throw task.getError();
+                return task.getResult();
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Opens the image and decodes the base layer. Slow, call it in the background.
+     *
+     * @param baseMaxSide The longest side of the base layer, e.g. the longest side of the screen.
+     */
+    static TileRenderer open(View view, String path, int baseMaxSide) throws IOException {
+        final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(path, false);
+        int sample = 1;
+        while (Math.max(decoder.getWidth(), decoder.getHeight()) / sample > baseMaxSide) sample *= 2;
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sample;
+        BitmapPool.prepare(options, decoder.getWidth(), decoder.getHeight());
+        Bitmap base;
+        try {
+            base = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (!BitmapPool.decodeFailed(options)) throw e;
+            base = BitmapFactory.decodeFile(path, options);
+        }
+        if (base == null) {
+            decoder.recycle();
+            throw new IOException("Failed to decode " + path);
+        }
+        Log.i(TAG, "%s: %dx%d, base layer %dx%d", path, decoder.getWidth(), decoder.getHeight(), base.getWidth(),
+              base.getHeight());
+        return new TileRenderer(view, decoder, base, sample);
+    }
+
+    /** The low resolution version of the whole image. */
+    Bitmap getBase() {
+        return mBase;
+    }
+
+    /** Width of the full image. */
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Draws the tiles that are ready for what is visible and schedules the decoding of the ones that aren't. Tiles
+     * aren't needed while the base layer is sharp enough.
+     *
+     * @param matrix        Maps the base layer, drawn with {@code contentWidth} pixels of width, to the view.
+     * @param contentWidth  Width of the base layer in the coordinates of {@code matrix}.
+     * @param viewWidth     Visible width, in view pixels.
+     * @param viewHeight    Visible height, in view pixels.
+     */
+    void draw(Canvas canvas, Matrix matrix, float contentWidth, int viewWidth, int viewHeight) {
+        if (mRecycled) return;
+        matrix.getValues(mValues);
+        final float fullToContent = contentWidth / mWidth;
+        // view pixels per image pixel
+        final float scale = mValues[Matrix.MSCALE_X] * fullToContent;
+        int sample = 1;
+        while (sample * 2 * scale <= 1) sample *= 2;
+        if (sample >= mBaseSample || !matrix.invert(mInverse)) {
+            cancelPending(null);
+            return;
+        }
+
+        mVisible.set(0, 0, viewWidth, viewHeight);
+        mInverse.mapRect(mVisible);
+        final float contentToFull = 1 / fullToContent;
+        final int tileSide = TILE_SIZE * sample;
+        final int left = Math.max(0, (int) (mVisible.left * contentToFull) / tileSide);
+        final int top = Math.max(0, (int) (mVisible.top * contentToFull) / tileSide);
+        final int right = Math.min((mWidth - 1) / tileSide, (int) (mVisible.right * contentToFull) / tileSide);
+        final int bottom = Math.min((mHeight - 1) / tileSide, (int) (mVisible.bottom * contentToFull) / tileSide);
+
+        final HashSet<Tile> visible = new HashSet<>();
+        canvas.save();
+        canvas.concat(matrix);
+        canvas.scale(fullToContent, fullToContent);
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                final Tile tile = new Tile(sample, column, row);
+                visible.add(tile);
+                final Bitmap bitmap = mTiles.get(tile);
+                if (bitmap != null) {
+                    tile.getRect(mTileRect, mWidth, mHeight);
+                    canvas.drawBitmap(bitmap, null, mTileRect, mPaint);
+                } else if (!mPending.containsKey(tile)) {
+                    mPending.put(tile, sExecutor.submit(new Decode(tile)));
+                }
+            }
+        }
+        canvas.restore();
+        cancelPending(visible);
+    }
+
+    /**
+     * Frees the tiles, e.g. while the view is detached. They are decoded again when drawn.
+     */
+    void clearTiles() {
+        cancelPending(null);
+        mTiles.evictAll();
+    }
+
+    /**
+     * Stops decoding tiles and frees them. Can't be used afterwards.
+     */
+    void recycle() {
+        mRecycled = true;
+        cancelPending(null);
+        mTiles.evictAll();
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.recycle();
+            }
+        });
+    }
+
+    /**
+     * Cancels the decoding of the tiles that aren't in {@code visible}.
+     */
+    private void cancelPending(@Nullable HashSet<Tile> visible) {
+        for (Iterator<Map.Entry<Tile, Future<?>>> iterator = mPending.entrySet().iterator(); iterator.hasNext(); ) {
+            final Map.Entry<Tile, Future<?>> entry = iterator.next();
+            if (visible == null || !visible.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    private final class Decode implements Runnable {
+        private final Tile mTile;
+
+        Decode(Tile tile) {
+            mTile = tile;
+        }
+
+        @Override
+        public void run() {
+            if (mRecycled) return;
+            final Rect rect = new Rect();
+            mTile.getRect(rect, mWidth, mHeight);
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = mTile.sample;
+            final Bitmap bitmap;
+            try {
+                bitmap = mDecoder.decodeRegion(rect, options);
+            } catch (RuntimeException | OutOfMemoryError e) {
+                Log.w(TAG, "Failed to decode tile " + mTile, e);
+                return;
+            }
+            mView.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mPending.remove(mTile) == null || mRecycled || bitmap == null) return;
+                    mTiles.put(mTile, bitmap);
+                    mView.invalidate();
+                }
+            });
+        }
+    }
+
+    private static final class Tile {
+        final int sample;
+        final int column;
+        final int row;
+
+        Tile(int sample, int column, int row) {
+            this.sample = sample;
+            this.column = column;
+            this.row = row;
+        }
+
+        /**
+         * Sets {@code rect} to the part of the image of this tile, in image pixels.
+         */
+        void getRect(Rect rect, int width, int height) {
+            final int side = TILE_SIZE * sample;
+            rect.set(column * side, row * side, Math.min(width, (column + 1) * side),
+                     Math.min(height, (row + 1) * side));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tile)) return false;
+            final Tile tile = (Tile) o;
+            return sample == tile.sample && column == tile.column && row == tile.row;
+        }
+
+        @Override
+        public int hashCode() {
+            return (sample * 31 + column) * 31 + row;
+        }
+
+        @Override
+        public String toString() {
+            return "1/" + sample + " " + column + "," + row;
+        }
+    }
+}
@@ -16,6 +16,7 @@ package com.carlosefonseca.common.widgets;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.graphics.drawable.Drawable;
@@ -26,6 +27,7 @@ import android.os.Build.VERSION_CODES;
 import android.os.Bundle;
 import android.os.Parcelable;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
@@ -35,6 +37,12 @@ import android.view.animation.AccelerateDecelerateInterpolator;
 import android.widget.ImageView;
 import android.widget.Scroller;
 import android.support.annotation.Nullable;
+import bolts.Continuation;
+import bolts.Task;
+import com.carlosefonseca.common.utils.UIL;
+
+import java.io.File;
+import java.util.concurrent.Callable;
 
 import static com.carlosefonseca.common.widgets.TouchImageView.State.*;
 
@@ -88,6 +96,11 @@ public class TouchImageView extends ImageView {
     private ScaleGestureDetector mScaleDetector;
     private GestureDetector mGestureDetector;
 
+    @Nullable private TileRenderer mTiles;
+    @Nullable private File mTilesFile;
+    /** The max zoom to go back to when the tiled image is replaced, 0 if it wasn't raised. */
+    private float mMaxScaleBeforeTiles;
+
     public TouchImageView(Context context) {
         super(context);
         sharedConstructing(context);
@@ -124,28 +137,111 @@ public class TouchImageView extends ImageView {
 
     @Override
     public void setImageResource(int resId) {
+        recycleTiles();
         super.setImageResource(resId);
         savePreviousImageValues();
     }
 
     @Override
     public void setImageBitmap(@Nullable Bitmap bm) {
+        recycleTiles();
         super.setImageBitmap(bm);
         savePreviousImageValues();
     }
 
     @Override
     public void setImageDrawable(Drawable drawable) {
+        recycleTiles();
         super.setImageDrawable(drawable);
         savePreviousImageValues();
     }
 
     @Override
     public void setImageURI(Uri uri) {
+        recycleTiles();
         super.setImageURI(uri);
         savePreviousImageValues();
     }
 
+    /**
+     * Shows an image of any size, zoomable up to its full resolution: the view gets a version that fits the screen
+     * and the visible part is decoded in tiles as it's zoomed in (see {@link TileRenderer}). Before Android 2.3.3 the
+     * image is only decoded at twice the screen size.
+     */
+    public Task<Void> setImageFile(@Nullable final File file) {
+        mTilesFile = file;
+        if (file == null) {
+            setImageBitmap(null);
+            return Task.forResult(null);
+        }
+        if (!TileRenderer.isSupported()) {
+            final DisplayMetrics metrics = getResources().getDisplayMetrics();
+            return Task.callInBackground(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return UIL.loadSync(file, metrics.widthPixels * 2, metrics.heightPixels * 2);
+                }
+            }).continueWith(new Continuation<Bitmap, Void>() {
+                @Override
+                public Void then(Task<Bitmap> task) throws Exception {
+                    if (file.equals(mTilesFile)) setImageBitmap(task.getResult());
+                    return null;
+                }
+            }, Task.UI_THREAD_EXECUTOR);
+        }
+        return TileRenderer.openInBackground(this, file).continueWith(new Continuation<TileRenderer, Void>() {
+            @Override
+            public Void then(Task<TileRenderer> task) throws Exception {
+                final TileRenderer tiles = task.getResult();
+                if (!file.equals(mTilesFile)) {
+                    if (tiles != null) tiles.recycle();
+                    return null;
+                }
+                if (task.isFaulted()) {
+                    Log.w(DEBUG, "Failed to open " + file, task.getError());
+                    setImageBitmap(null);
+                    return null;
+                }
+                setImageBitmap(tiles.getBase());
+                mTiles = tiles;
+                mTilesFile = file;
+                // for fitImageToView to raise the max zoom
+                requestLayout();
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
+    private void recycleTiles() {
+        if (mTiles != null) {
+            mTiles.recycle();
+            mTiles = null;
+        }
+        mTilesFile = null;
+        if (mMaxScaleBeforeTiles > 0) {
+            setMaxZoom(mMaxScaleBeforeTiles);
+            mMaxScaleBeforeTiles = 0;
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        final Drawable drawable = getDrawable();
+        if (mTiles != null && drawable != null) {
+            canvas.save();
+            canvas.translate(getPaddingLeft(), getPaddingTop());
+            mTiles.draw(canvas, matrix, drawable.getIntrinsicWidth(), viewWidth, viewHeight);
+            canvas.restore();
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mTiles != null) mTiles.clearTiles();
+    }
+
     /**
      * Save the current matrix and view dimensions
      * in the prevMatrix and prevView variables.
@@ -384,6 +480,14 @@ public class TouchImageView extends ImageView {
         matchViewWidth = viewWidth - redundantXSpace;
         matchViewHeight = viewHeight - redundantYSpace;
 
+        //
+        // Allow zooming up to the full resolution of a tiled image
+        //
+        if (mTiles != null && mTiles.getWidth() / matchViewWidth > maxScale) {
+            if (mMaxScaleBeforeTiles == 0) mMaxScaleBeforeTiles = maxScale;
+            setMaxZoom(mTiles.getWidth() / matchViewWidth);
+        }
+
         if (normalizedScale == 1) {
             //
             // Stretch and center image to fit view
@@ -6,17 +6,28 @@ import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.view.GestureDetector;
 import android.view.GestureDetector.SimpleOnGestureListener;
 import android.view.MotionEvent;
 import android.view.View;
+import bolts.Continuation;
+import bolts.Task;
 import com.carlosefonseca.common.utils.CodeUtils;
 import com.carlosefonseca.common.utils.Log;
+import com.carlosefonseca.common.utils.UIL;
+
+import java.io.File;
+import java.util.concurrent.Callable;
 
 public class ZoomableImageView extends View {
     private static final String TAG = CodeUtils.getTag(ZoomableImageView.class);
 
     private Bitmap imgBitmap = null;
+    @Nullable private TileRenderer mTiles;
+    @Nullable private File mTilesFile;
+    /** The max zoom to go back to when the tiled image is replaced, 0 if it wasn't raised. */
+    private float mMaxScaleBeforeTiles;
 
     private int containerWidth;
     private int containerHeight;
@@ -60,8 +71,9 @@ public class ZoomableImageView extends View {
 
     private Handler mHandler = new Handler();
 
+    static final float DEFAULT_MAX_SCALE = 8.0f;
     float minScale;
-    float maxScale = 8.0f;
+    float maxScale = DEFAULT_MAX_SCALE;
 
     float wpRadius = 25.0f;
     float wpInnerRadius = 20.0f;
@@ -191,9 +203,16 @@ public class ZoomableImageView extends View {
     protected void onDraw(Canvas canvas) {
         if (imgBitmap != null && canvas != null) {
             canvas.drawBitmap(imgBitmap, matrix, background);
+            if (mTiles != null) mTiles.draw(canvas, matrix, imgBitmap.getWidth(), containerWidth, containerHeight);
         }
     }
 
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mTiles != null) mTiles.clearTiles();
+    }
+
     //Checks and sets the target image x and y co-ordinates if out of bounds
     private void checkImageConstraints() {
         if (imgBitmap == null) {
@@ -368,7 +387,69 @@ public class ZoomableImageView extends View {
         point.set(x / 2, y / 2);
     }
 
+    /**
+     * Shows an image of any size, zoomable up to its full resolution: the view gets a version that fits the screen
+     * and the visible part is decoded in tiles as it's zoomed in (see {@link TileRenderer}). Before Android 2.3.3 the
+     * image is only decoded at twice the screen size.
+     */
+    public Task<Void> setTiledImageFile(@Nullable final File file) {
+        mTilesFile = file;
+        if (file == null) {
+            setImageBitmap(null);
+            return Task.forResult(null);
+        }
+        if (!TileRenderer.isSupported()) {
+            final DisplayMetrics metrics = getResources().getDisplayMetrics();
+            return Task.callInBackground(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return UIL.loadSync(file, metrics.widthPixels * 2, metrics.heightPixels * 2);
+                }
+            }).continueWith(new Continuation<Bitmap, Void>() {
+                @Override
+                public Void then(Task<Bitmap> task) throws Exception {
+                    if (file.equals(mTilesFile)) setImageBitmap(task.getResult());
+                    return null;
+                }
+            }, Task.UI_THREAD_EXECUTOR);
+        }
+        return TileRenderer.openInBackground(this, file).continueWith(new Continuation<TileRenderer, Void>() {
+            @Override
+            public Void then(Task<TileRenderer> task) throws Exception {
+                final TileRenderer tiles = task.getResult();
+                if (!file.equals(mTilesFile)) {
+                    if (tiles != null) tiles.recycle();
+                    return null;
+                }
+                if (task.isFaulted()) {
+                    Log.w(TAG, "Failed to open " + file, task.getError());
+                    setImageBitmap(null);
+                    return null;
+                }
+                setImageBitmap(tiles.getBase());
+                mTiles = tiles;
+                mTilesFile = file;
+                // up to the full resolution
+                final float fullScale = (float) tiles.getWidth() / tiles.getBase().getWidth();
+                if (fullScale > maxScale) {
+                    mMaxScaleBeforeTiles = maxScale;
+                    maxScale = fullScale;
+                }
+                return null;
+            }
+        }, Task.UI_THREAD_EXECUTOR);
+    }
+
     public void setImageBitmap(@Nullable Bitmap b) {
+        if (mTiles != null) {
+            mTiles.recycle();
+            mTiles = null;
+        }
+        mTilesFile = null;
+        if (mMaxScaleBeforeTiles > 0) {
+            maxScale = mMaxScaleBeforeTiles;
+            mMaxScaleBeforeTiles = 0;
+        }
         if (b != null) {
             imgBitmap = b;
 
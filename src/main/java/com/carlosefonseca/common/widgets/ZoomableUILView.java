@@ -4,6 +4,7 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
+import com.carlosefonseca.common.utils.BitmapPool;
 import com.carlosefonseca.common.utils.CodeUtils;
 import com.carlosefonseca.common.utils.UIL;
 import com.nostra13.universalimageloader.core.ImageLoader;
@@ -51,17 +52,25 @@ public class ZoomableUILView extends ZoomableImageView {
         }
         DisplayMetrics d = getResources().getDisplayMetrics();
 
-        mBitmap = ImageLoader.getInstance().loadImageSync(uri, new ImageSize(d.widthPixels * 2, d.heightPixels * 2));
+        mBitmap = loadSync(uri, d.widthPixels * 2, d.heightPixels * 2);
         if (mBitmap != null) return mBitmap;
 
         //noinspection SuspiciousNameCombination
-        mBitmap = ImageLoader.getInstance().loadImageSync(uri, new ImageSize(d.heightPixels, d.heightPixels));
+        mBitmap = loadSync(uri, d.heightPixels, d.heightPixels);
         if (mBitmap != null) return mBitmap;
 
-        mBitmap = ImageLoader.getInstance().loadImageSync(uri, new ImageSize(d.widthPixels, d.heightPixels));
+        mBitmap = loadSync(uri, d.widthPixels, d.heightPixels);
         return mBitmap;
     }
 
+    /**
+     * Kept and shown here, so out of the {@link BitmapPool}.
+     */
+    @Nullable
+    private static Bitmap loadSync(String uri, int width, int height) {
+        return BitmapPool.pin(ImageLoader.getInstance().loadImageSync(uri, new ImageSize(width, height)));
+    }
+
     public synchronized void setImageFile(File file) {
         setImageBitmap(getBitmap(file));
     }
@@ -23,6 +23,7 @@ import android.support.v4.view.PagerAdapter;
 import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
+import com.carlosefonseca.common.widgets.PagePrefetcher;
 
 /**
  * A PagerAdapter wrapper responsible for providing a proper page to
@@ -44,6 +45,7 @@ public class LoopPagerAdapterWrapper extends PagerAdapter {
 
     LoopPagerAdapterWrapper(PagerAdapter adapter) {
         this.mAdapter = adapter;
+        if (adapter instanceof PagePrefetcher.Host) ((PagePrefetcher.Host) adapter).getPagePrefetcher().setLooping(true);
     }
 
     @Override
@@ -152,7 +154,10 @@ public class LoopPagerAdapterWrapper extends PagerAdapter {
 
     @Override
     public void setPrimaryItem(ViewGroup container, int position, Object object) {
-        mAdapter.setPrimaryItem(container, position, object);
+        int realPosition = (mAdapter instanceof FragmentPagerAdapter || mAdapter instanceof FragmentStatePagerAdapter)
+                ? position
+                : toRealPosition(position);
+        mAdapter.setPrimaryItem(container, realPosition, object);
     }
 
     /*